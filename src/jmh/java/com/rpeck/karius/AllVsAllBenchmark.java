@@ -0,0 +1,59 @@
+package com.rpeck.karius;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end over the bundled data/ genomes: ingesting them all, and comparing them all
+ * against each other with each ComparisonEngine, with exact k-mer sets and with sketches.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class AllVsAllBenchmark {
+  private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+  // ingesting doesn't depend on the engine, so it has a State without that @Param
+  @State(Scope.Benchmark)
+  public static class Ingest {
+    @Param({"0", "1000"})
+    public int sketchSize;
+  }
+
+  @State(Scope.Benchmark)
+  public static class Compare {
+    @Param({"0", "1000"})
+    public int sketchSize;
+
+    @Param({"blocked", "inverted"})
+    public String engine;
+
+    private List<Organism> organisms;
+    private ComparisonEngine comparisonEngine;
+
+    @Setup
+    public void setUp() throws IOException {
+      organisms = parseAll(sketchSize);
+      comparisonEngine = engine.equals("inverted") ? new InvertedIndexEngine(THREADS) : new BlockedComparisonEngine(THREADS);
+    }
+  }
+
+  @Benchmark
+  public List<Organism> ingest(Ingest state) throws IOException {
+    return parseAll(state.sketchSize);
+  }
+
+  @Benchmark
+  public PairBuffer compare(Compare state) {
+    return state.comparisonEngine.compare(state.organisms, 0, 0.1f);
+  }
+
+  private static List<Organism> parseAll(int sketchSize) throws IOException {
+    FastaParser parser = new FastaParser(BenchmarkData.dataDir().getPath());
+    parser.setThreads(THREADS);
+    return parser.parseAllFiles(false, 20, sketchSize);
+  }
+
+}
@@ -0,0 +1,35 @@
+package com.rpeck.karius;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Where the benchmarks find the bundled genomes. JMH runs the benchmarks in forked JVMs
+ * from the project directory, so the default of "data" works from Gradle; set
+ * -Dkarius.data=DIR to use some other set of FASTA files.
+ */
+final class BenchmarkData {
+  // S. pyogenes NZ131, 1.8 Mbp; the same genome the unit tests use
+  static final String GENOME = "GCF_000018125.1_ASM1812v1_genomic.fna.gz";
+
+  private BenchmarkData() {
+  }
+
+  static File dataDir() {
+    return new File(System.getProperty("karius.data", "data"));
+  }
+
+  static Path genome() throws IOException {
+    File f = new File(dataDir(), GENOME);
+    if (! f.isFile())
+      throw new IOException("Can't find benchmark genome " + f.getAbsolutePath() + "; set -Dkarius.data");
+    return f.toPath();
+  }
+
+  static List<Path> allGenomes() throws IOException {
+    return new FastaParser(dataDir().getPath()).listFastaFiles();
+  }
+
+}
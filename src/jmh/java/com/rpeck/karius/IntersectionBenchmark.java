@@ -0,0 +1,63 @@
+package com.rpeck.karius;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.LongStream;
+
+/**
+ * Organism.intersectionCount (which replaced Organism.intersect) for a genome-sized
+ * k-mer set against sets 1x to 512x smaller, which covers both the merge and the
+ * galloping paths of SortedLongArrays. Half of the smaller set is shared.<p>
+ *
+ * The merge path uses the SIMD kernel if it loaded (see VectorIntersection); the
+ * scalarMergeCount and vectorMergeCount benchmarks pin one or the other, so they can be
+ * compared in one run. Without the Vector API vectorMergeCount is the scalar one too.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class IntersectionBenchmark {
+  @Param({"1", "8", "32", "512"})
+  public int ratio;
+
+  @Param({"2000000"})
+  public int largeSize;
+
+  private Organism large;
+  private Organism small;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(42);
+    long[] largeKmers = LongStream.generate(random::nextLong).limit(largeSize).distinct().sorted().toArray();
+
+    int smallSize = largeSize / ratio;
+    long[] smallKmers = new long[smallSize];
+    for (int i = 0; i < smallSize; i++)
+      smallKmers[i] = i % 2 == 0 ? largeKmers[random.nextInt(largeKmers.length)] : random.nextLong();
+    smallKmers = LongStream.of(smallKmers).distinct().sorted().toArray();
+
+    large = Organism.fromKmers("large", "v1", "desc", largeKmers, 0);
+    small = Organism.fromKmers("small", "v1", "desc", smallKmers, 0);
+  }
+
+  @Benchmark
+  public int intersectionCount() {
+    return small.intersectionCount(large);
+  }
+
+  @Benchmark
+  public int scalarMergeCount() {
+    return SortedLongArrays.mergeCount(small.getKmers(), large.getKmers());
+  }
+
+  @Benchmark
+  public int vectorMergeCount() {
+    IntersectionKernel kernel = SortedLongArrays.vectorKernel();
+    return kernel != null ? kernel.mergeCount(small.getKmers(), large.getKmers())
+                          : SortedLongArrays.mergeCount(small.getKmers(), large.getKmers());
+  }
+
+}
@@ -0,0 +1,95 @@
+package com.rpeck.karius;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning one genome's lines into a frozen Organism, and the two halves of that on
+ * their own: rolling the canonical k-mers through KmerEncoder, and building (and
+ * freezing) the LongHashSet of them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class KmerBenchmark {
+  @Param({"16", "20", "31"})
+  public int k;
+
+  private FastaFile genome;
+  private String[] lines;
+  private long[] kmers; // every canonical k-mer of the genome, duplicates and all
+
+  @Setup
+  public void setUp() throws IOException {
+    genome = FastaParser.parseSingleFile(BenchmarkData.genome());
+    List<String> list = new ArrayList<>();
+    for (ListIterator<String> i = genome.fragments(); i.hasNext(); )
+      list.add(i.next());
+    lines = list.toArray(new String[0]);
+
+    long count = 0;
+    KmerEncoder encoder = new KmerEncoder(k);
+    for (String line : lines) {
+      for (int i = 0; i < line.length(); i++) {
+        if (encoder.push(line.charAt(i)))
+          count++;
+      }
+    }
+    kmers = new long[(int) count];
+    int n = 0;
+    encoder.reset();
+    for (String line : lines) {
+      for (int i = 0; i < line.length(); i++) {
+        if (encoder.push(line.charAt(i)))
+          kmers[n++] = encoder.canonical();
+      }
+    }
+  }
+
+  /**
+   * Each line on its own, as addFragment is documented to work.
+   */
+  @Benchmark
+  public Organism addFragment() {
+    Organism o = new Organism("bench", "v1", "desc", genome.totalBases(), 0, false);
+    for (String line : lines)
+      o.addFragment(line, k);
+    o.freeze();
+    return o;
+  }
+
+  /**
+   * The whole genome as one contig per record, k-mers spanning the line breaks.
+   */
+  @Benchmark
+  public Organism representOrganism() {
+    return FastaParser.representOrganism(genome, k);
+  }
+
+  @Benchmark
+  public long encode() {
+    KmerEncoder encoder = new KmerEncoder(k);
+    long sum = 0;
+    for (String line : lines) {
+      for (int i = 0; i < line.length(); i++) {
+        if (encoder.push(line.charAt(i)))
+          sum += encoder.canonical();
+      }
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public long[] buildSet() {
+    LongHashSet set = new LongHashSet(kmers.length, LongHashSet.DEFAULT_LOAD_FACTOR);
+    for (long kmer : kmers)
+      set.add(kmer);
+    return set.toSortedArray();
+  }
+
+}
@@ -0,0 +1,53 @@
+package com.rpeck.karius;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading one genome: the old line-based FastaParser, the streaming byte-level parser
+ * which replaced it for ingestion, and the IUPAC check that used to run on every line.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ParsingBenchmark {
+  private Path genome;
+  private List<String> lines;
+  private FastaStreamParser streamParser;
+
+  @Setup
+  public void setUp() throws IOException {
+    genome = BenchmarkData.genome();
+    lines = new ArrayList<>();
+    for (ListIterator<String> i = FastaParser.parseSingleFile(genome).fragments(); i.hasNext(); )
+      lines.add(i.next());
+    streamParser = new FastaStreamParser();
+  }
+
+  @Benchmark
+  public FastaFile parseSingleFile() throws IOException {
+    return FastaParser.parseSingleFile(genome);
+  }
+
+  @Benchmark
+  public Organism streamingParse() throws IOException {
+    return streamParser.parse(genome, 20, 0);
+  }
+
+  @Benchmark
+  public int containsIupacCodes() {
+    int count = 0;
+    for (String line : lines) {
+      if (FastaParser.containsIupacCodes(line))
+        count++;
+    }
+    return count;
+  }
+
+}
@@ -4,8 +4,12 @@ import org.apache.commons.cli.*;
 
 public class ArgParser {
   static void usage(Options options) {
+    usage("kmer-matcher", options);
+  }
+
+  static void usage(String command, Options options) {
     HelpFormatter formatter = new HelpFormatter();
-    formatter.printHelp("kmer-matcher", options);
+    formatter.printHelp(command, options);
   }
 
   static CommandLine parseArgs(String[] args) {
@@ -43,11 +47,11 @@ public class ArgParser {
 
     options.addOption(
             Option.builder("k")
-                    .type(Integer.class)
+                    .type(String.class)
                     .longOpt("kmer")
                     .required(true)
                     .hasArg()
-                    .desc("length of kmers to compare").build());
+                    .desc("length of kmers to compare, or a comma-separated list of lengths, e.g. 16,21,31, to compare them all from one pass over the input, writing a similarity matrix for each to the output path + .kN").build());
 
     options.addOption(
             Option.builder("t")
@@ -57,6 +61,108 @@ public class ArgParser {
                     .hasArg()
                     .desc("fraction of kmers that must match to include a possible genome match in the output, e.g. 0.9").build());
 
+    options.addOption(
+            Option.builder("s")
+                    .type(Integer.class)
+                    .longOpt("sketch-size")
+                    .required(false)
+                    .hasArg()
+                    .desc("estimate similarities from bottom-k MinHash sketches of this many hashes, e.g. 1000, rather than exact k-mer sets").build());
+
+    options.addOption(
+            Option.builder("i")
+                    .type(String.class)
+                    .longOpt("index")
+                    .required(false)
+                    .hasArg()
+                    .desc("directory in which to cache parsed k-mers and sketches, so that re-runs skip unchanged FASTA files").build());
+
+    options.addOption(
+            Option.builder("g")
+                    .type(String.class)
+                    .longOpt("packed-store")
+                    .required(false)
+                    .hasArg()
+                    .desc("directory in which to keep a 2-bit packed copy of each genome, so that re-runs with any --kmer skip the gunzip and decoding of unchanged FASTA files").build());
+
+    options.addOption(
+            Option.builder("a")
+                    .type(Boolean.class)
+                    .longOpt("append")
+                    .required(false)
+                    .desc("compare only the organisms which aren't already in --output, and add them to it").build());
+
+    options.addOption(
+            Option.builder("n")
+                    .type(Integer.class)
+                    .longOpt("threads")
+                    .required(false)
+                    .hasArg()
+                    .desc("number of worker threads for parsing and for comparing; defaults to the number of available processors. Parsing always uses at least two, a reader and a builder").build());
+
+    options.addOption(
+            Option.builder("e")
+                    .type(String.class)
+                    .longOpt("engine")
+                    .required(false)
+                    .hasArg()
+                    .desc("how to compare the pairs: blocked (intersect every pair; the default) or inverted (use an inverted k-mer index to compare only pairs which share k-mers)").build());
+
+    options.addOption(
+            Option.builder("d")
+                    .type(String.class)
+                    .longOpt("metric")
+                    .required(false)
+                    .hasArg()
+                    .desc("how to score a pair from its shared k-mers: average (of the two k-mer counts; the default), containment (of the smaller in the larger), min-containment, jaccard, mash (a distance; pairs below --threshold are kept), or the count-weighted weighted-jaccard and cosine").build());
+
+    options.addOption(
+            Option.builder("P")
+                    .type(Boolean.class)
+                    .longOpt("prefilter")
+                    .required(false)
+                    .desc("skip pairs whose HyperLogLog-estimated union shows they can't reach --threshold, without intersecting their k-mers; approximate, since a pair just over the threshold can occasionally be skipped").build());
+
+    options.addOption(
+            Option.builder("f")
+                    .type(String.class)
+                    .longOpt("output-format")
+                    .required(false)
+                    .hasArg()
+                    .desc("format of the similarity matrix: text (one \"A X B: score\" line per pair; the default) or binary (a memory-mappable sparse matrix; see SimilarityMatrixReader)").build());
+
+    options.addOption(
+            Option.builder("c")
+                    .type(String.class)
+                    .longOpt("clusters")
+                    .required(false)
+                    .hasArg()
+                    .desc("organism<TAB>species TSV file; if given, also write a ranked report of likely mislabelled organisms to the output path + .mislabels.tsv").build());
+
+    options.addOption(
+            Option.builder("m")
+                    .type(String.class)
+                    .longOpt("metrics")
+                    .required(false)
+                    .hasArg()
+                    .desc("print progress (throughput, ETA, heap) to stderr every few seconds, and write a JSON summary of per-phase time, throughput, per-organism k-mer counts and peak heap to this file").build());
+
+    options.addOption(
+            Option.builder("b")
+                    .type(String.class)
+                    .longOpt("memory-budget")
+                    .required(false)
+                    .hasArg()
+                    .desc("bytes of k-mers to keep in memory while comparing, e.g. 24g; the rest are spilled to a temp file next to the output and compared a pair of chunks at a time").build());
+
+    options.addOption(
+            Option.builder("x")
+                    .type(String.class)
+                    .longOpt("shard")
+                    .required(false)
+                    .hasArg()
+                    .desc("i/N: compare only shard i (0 <= i < N) of the pairs, writing binary partial results to the output path + .shard-i-of-N; combine the N shards with \"kmer-matcher merge\"").build());
+
     CommandLineParser parser = new DefaultParser();
     CommandLine cmd = null;
 
@@ -78,7 +184,72 @@ public class ArgParser {
     if (cmd.hasOption("verbose"))
       System.out.println("Running: kmer-matcher."); // TODO: richer; list command-line option values
 
-    // TODO: add validations, e.g. --kmer must be > 0
+    return cmd;
+  }
+
+  /**
+   * Parse the arguments of "kmer-matcher merge", which combines the results of a --shard run.
+   */
+  static CommandLine parseMergeArgs(String[] args) {
+    Options options = new Options();
+
+    options.addOption(
+            Option.builder("?")
+                    .type(Boolean.class)
+                    .longOpt("help")
+                    .required(false)
+                    .desc("print usage info").build());
+
+    options.addOption(
+            Option.builder("v")
+                    .type(Boolean.class)
+                    .longOpt("verbose")
+                    .required(false)
+                    .desc("print verbose output to stdout").build());
+
+    options.addOption(
+            Option.builder("o")
+                    .type(String.class)
+                    .longOpt("output")
+                    .required()
+                    .hasArg()
+                    .desc("output path given to the shards, and of the merged similarity matrix").build());
+
+    options.addOption(
+            Option.builder("N")
+                    .type(Integer.class)
+                    .longOpt("shards")
+                    .required()
+                    .hasArg()
+                    .desc("number of shards, N in --shard i/N").build());
+
+    options.addOption(
+            Option.builder("f")
+                    .type(String.class)
+                    .longOpt("output-format")
+                    .required(false)
+                    .hasArg()
+                    .desc("format of the merged similarity matrix: text (the default) or binary").build());
+
+    options.addOption(
+            Option.builder("c")
+                    .type(String.class)
+                    .longOpt("clusters")
+                    .required(false)
+                    .hasArg()
+                    .desc("organism<TAB>species TSV file; if given, also write a ranked report of likely mislabelled organisms to the output path + .mislabels.tsv").build());
+
+    CommandLine cmd = null;
+    try {
+      cmd = new DefaultParser().parse(options, args);
+    }
+    catch (ParseException e) {
+      usage("kmer-matcher merge", options);
+      System.exit(-1);
+    }
+
+    if (cmd.hasOption("?"))
+      usage("kmer-matcher merge", options);
     return cmd;
   }
 }
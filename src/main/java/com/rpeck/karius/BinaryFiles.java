@@ -0,0 +1,56 @@
+package com.rpeck.karius;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/**
+ * The bits of file format which OrganismIndex, PackedGenomeStore and the binary similarity
+ * matrix share.
+ */
+class BinaryFiles {
+
+  private BinaryFiles() {
+  }
+
+  /**
+   * The start of the name of a cache entry for a FASTA file. The hash of the path keeps
+   * files with the same name in different directories apart; the entries record the
+   * source path as well, to catch any collision.
+   */
+  static String entryName(Path source) {
+    String key = source.toAbsolutePath().toString();
+    return source.getFileName() + "-" + Integer.toHexString(key.hashCode());
+  }
+
+  /**
+   * Write a String as its length in bytes followed by its UTF-8; null is written as "".
+   */
+  static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] bytes = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Read a String written by {@link #writeString(DataOutputStream, String)}.
+   */
+  static String readString(ByteBuffer buf) {
+    byte[] bytes = new byte[buf.getInt()];
+    buf.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * The IOException for a file which turned out to be truncated or otherwise corrupt while
+   * we were reading it, which shows up as a BufferUnderflowException or one of its friends.
+   * @param what what the file is, e.g. "Corrupt index file"
+   */
+  static IOException corrupt(String what, File f, RuntimeException e) {
+    return new IOException(what + ": " + f + ": " + e, e);
+  }
+
+}
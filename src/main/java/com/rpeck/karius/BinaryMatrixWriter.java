@@ -0,0 +1,227 @@
+package com.rpeck.karius;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Compact binary sparse similarity matrix, for downstream jobs which want to look up one
+ * organism's neighbors without parsing the whole output; see SimilarityMatrixReader.<p>
+ *
+ * While the comparisons are running the pairs are streamed out in COO form, 12 bytes
+ * apiece. When the writer is closed the file is finalized: the COO records are turned
+ * into a symmetric CSR (compressed sparse row) matrix with a counting sort, so that each
+ * organism's row lists all of its neighbors, sorted by organism index. A file which was
+ * never finalized (e.g. the run died) can still be read through its COO section.<p>
+ *
+ * Format (big-endian), version 1:
+ * <pre>
+ *   int    magic "KSIM"
+ *   int    format version
+ *   int    flags: 1 if finalized
+ *   int    organism count n
+ *   long   offset of the COO section
+ *   long   pair count p (0 until finalized)
+ *   long   offset of the CSR section (0 until finalized)
+ *   string[n] organism names
+ *   ...    padding to a multiple of 8 bytes
+ *   COO:   p x (int i, int j, float score), with i &lt; j
+ *   ...    padding to a multiple of 8 bytes
+ *   CSR:   long[n + 1] row starts, int[2p] neighbors, float[2p] scores
+ * </pre>
+ * where a string is an int byte count followed by that many bytes of UTF-8.<p>
+ *
+ * Appending rewrites the file: the existing pairs are copied into a new file along with
+ * the new ones, which is then renamed over the old one, since the CSR section can't be
+ * extended in place.
+ */
+public class BinaryMatrixWriter implements SimilarityMatrixWriter {
+  static final int MAGIC = 0x4B53494D; // "KSIM"
+  static final int FORMAT_VERSION = 1;
+  static final int FLAG_FINALIZED = 1;
+  static final int HEADER_SIZE = 40;
+  static final int PAIR_SIZE = 12;
+
+  private final File f;
+  private final File target;
+  private final int organismCount;
+  private final long cooOffset;
+  private final DataOutputStream out;
+  private long pairCount = 0;
+  private boolean closed = false;
+
+  /**
+   * @param f the output file
+   * @param organisms names of the organisms, in index order
+   * @param append add to the existing output rather than replacing it; the existing
+   *               output's organisms must be the first ones in <code>organisms</code>
+   */
+  public BinaryMatrixWriter(File f, List<String> organisms, boolean append) throws IOException {
+    SimilarityMatrixReader existing = null;
+    if (append) {
+      if (! f.isFile())
+        throw new FileNotFoundException("Can't append to missing output: " + f);
+      existing = SimilarityMatrixReader.open(f);
+      if (existing.organismCount() > organisms.size())
+        throw new IOException("Existing output " + f + " has more organisms than we're appending to it");
+      for (int i = 0; i < existing.organismCount(); i++) {
+        if (! existing.organism(i).equals(organisms.get(i)))
+          throw new IOException("Organism " + i + " of existing output " + f + " is " + existing.organism(i)
+                  + ", not " + organisms.get(i));
+      }
+    }
+
+    // write a new file when appending, so the old one survives until we're done
+    this.target = f;
+    this.f = append ? new File(f.getPath() + ".tmp") : f;
+    this.organismCount = organisms.size();
+
+    byte[][] names = new byte[organisms.size()][];
+    long namesSize = 0;
+    for (int i = 0; i < names.length; i++) {
+      names[i] = organisms.get(i).getBytes(StandardCharsets.UTF_8);
+      namesSize += 4 + names[i].length;
+    }
+    this.cooOffset = align(HEADER_SIZE + namesSize);
+
+    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.f), 1 << 16));
+    out.writeInt(MAGIC);
+    out.writeInt(FORMAT_VERSION);
+    out.writeInt(0);
+    out.writeInt(organismCount);
+    out.writeLong(cooOffset);
+    out.writeLong(0);
+    out.writeLong(0);
+    for (byte[] name : names) {
+      out.writeInt(name.length);
+      out.write(name);
+    }
+    for (long pad = cooOffset - (HEADER_SIZE + namesSize); pad > 0; pad--)
+      out.writeByte(0);
+
+    if (existing != null) {
+      try {
+        for (long k = 0; k < existing.pairCount(); k++)
+          write(existing.pairFirst(k), existing.pairSecond(k), existing.pairScore(k));
+      } finally {
+        existing.close();
+      }
+    }
+  }
+
+  @Override
+  public void write(int i, int j, float score) throws IOException {
+    if (i >= j || j >= organismCount || i < 0)
+      throw new IllegalArgumentException("Bad pair for " + organismCount + " organisms: " + i + ", " + j);
+    out.writeInt(i);
+    out.writeInt(j);
+    out.writeFloat(score);
+    pairCount++;
+  }
+
+  /**
+   * Flush the COO records written so far, where an unfinalized reader can see them.
+   */
+  @Override
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  /**
+   * Finalize the file: build the CSR section and fill in the header.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed)
+      return;
+    closed = true;
+    out.close();
+
+    try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      long csrOffset = align(cooOffset + pairCount * PAIR_SIZE);
+      buildCsr(channel, csrOffset);
+
+      MappedRegion header = new MappedRegion(channel, FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+      header.putInt(8, FLAG_FINALIZED);
+      header.putLong(24, pairCount);
+      header.putLong(32, csrOffset);
+      header.force();
+    }
+
+    if (f != target)
+      Files.move(f.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Counting sort of the COO pairs, in both directions, into rows. This works through
+   * memory mappings of the file rather than arrays, so the matrix can be bigger than
+   * the heap.
+   */
+  private void buildCsr(FileChannel channel, long csrOffset) throws IOException {
+    int n = organismCount;
+    long entries = 2 * pairCount;
+    MappedRegion coo = new MappedRegion(channel, FileChannel.MapMode.READ_ONLY, cooOffset, pairCount * PAIR_SIZE);
+
+    long[] starts = new long[n + 1];
+    for (long k = 0; k < pairCount; k++) {
+      starts[coo.getInt(k * PAIR_SIZE) + 1]++;
+      starts[coo.getInt(k * PAIR_SIZE + 4) + 1]++;
+    }
+    for (int i = 0; i < n; i++)
+      starts[i + 1] += starts[i];
+
+    long neighborsOffset = 8L * (n + 1);
+    long scoresOffset = neighborsOffset + 4 * entries;
+    MappedRegion csr = new MappedRegion(channel, FileChannel.MapMode.READ_WRITE, csrOffset, scoresOffset + 4 * entries);
+    for (int i = 0; i <= n; i++)
+      csr.putLong(8L * i, starts[i]);
+
+    long[] fill = starts; // we're done with the originals, which are on disk now
+    for (long k = 0; k < pairCount; k++) {
+      int i = coo.getInt(k * PAIR_SIZE);
+      int j = coo.getInt(k * PAIR_SIZE + 4);
+      float score = coo.getFloat(k * PAIR_SIZE + 8);
+      long e = fill[i]++;
+      csr.putInt(neighborsOffset + 4 * e, j);
+      csr.putFloat(scoresOffset + 4 * e, score);
+      e = fill[j]++;
+      csr.putInt(neighborsOffset + 4 * e, i);
+      csr.putFloat(scoresOffset + 4 * e, score);
+    }
+
+    // if the pairs were written in (i, j) order, as Main does, the rows are already
+    // sorted; appended ones aren't
+    for (int i = 0; i < n; i++) {
+      long start = csr.getLong(8L * i);
+      long end = csr.getLong(8L * (i + 1));
+      boolean sorted = true;
+      for (long e = start + 1; e < end && sorted; e++)
+        sorted = csr.getInt(neighborsOffset + 4 * (e - 1)) < csr.getInt(neighborsOffset + 4 * e);
+      if (sorted)
+        continue;
+
+      int len = (int) (end - start);
+      int[] neighbors = new int[len];
+      float[] scores = new float[len];
+      for (int k = 0; k < len; k++) {
+        neighbors[k] = csr.getInt(neighborsOffset + 4 * (start + k));
+        scores[k] = csr.getFloat(scoresOffset + 4 * (start + k));
+      }
+      SimilarityMatrixReader.sortByNeighbor(neighbors, scores, len);
+      for (int k = 0; k < len; k++) {
+        csr.putInt(neighborsOffset + 4 * (start + k), neighbors[k]);
+        csr.putFloat(scoresOffset + 4 * (start + k), scores[k]);
+      }
+    }
+    csr.force();
+  }
+
+  private static long align(long position) {
+    return (position + 7) & ~7L;
+  }
+
+}
@@ -0,0 +1,270 @@
+package com.rpeck.karius;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Multi-threaded all-vs-all comparison of a list of frozen Organisms.<p>
+ *
+ * The upper triangle of the N x N pair matrix is tiled into square blocks of
+ * <code>blockSize</code> rows by <code>blockSize</code> columns. Within a block each row's
+ * k-mers get compared against each column's, so while we work through a block its
+ * 2 * blockSize Organisms stay hot in cache rather than streaming the whole list past
+ * every row. The block size is chosen so that a block's k-mers fit in about
+ * <code>CACHE_BYTES</code>, which is a reasonable share of a modern L3. For full k-mer
+ * sets of bacterial genomes (~16 MB apiece) that's only one or two Organisms per block,
+ * but for sketches it's hundreds.<p>
+ *
+ * The blocks are run on a work-stealing ForkJoinPool by an InOrderTask, so they get
+ * started in row-major order whoever steals what. Comparisons are read-only, so the
+ * workers share nothing but the (frozen) Organisms, and each pushes the pairs which
+ * pass the threshold to its thread's ResultSink.Producer.
+ * Each block is a batch, and each band of rows is a group, so the sink writes the
+ * pairs in (i, j) order no matter how many threads ran or who stole what.<p>
+ *
+ * The price of that order is that a band's first row can't be written until its last
+ * block is done, so the sink holds up to blockSize * N pairs at a time. Shards.merge
+ * needs the order, so rather than give it up the block size is capped so that a band
+ * has at most <code>MAX_BAND_PAIRS</code> pairs (about 50 MB of PairBuffer if they all
+ * pass): for more than 16k Organisms the blocks get shorter, which also means the
+ * output is flushed more often.<p>
+ *
+ * For --shard the list of blocks is cut into contiguous ranges with about the same
+ * number of pairs in each, and a shard only compares its own range. Every shard has to
+ * come up with exactly the same list of blocks, so the block size is then chosen from
+ * the Organisms and the number of shards alone, not the (per-machine) number of threads.
+ */
+public class BlockedComparisonEngine implements ComparisonEngine {
+  static final long CACHE_BYTES = 8L << 20;
+  static final int MAX_BLOCK_SIZE = 256;
+  // the most pairs in a band of rows, which the ResultSink holds until the band is done
+  static final long MAX_BAND_PAIRS = 1L << 22;
+  // aim for at least this many blocks per thread, so the stealing can even out the load
+  static final int MIN_BLOCKS_PER_THREAD = 4;
+  // and when sharded, at least this many per shard, which is enough for a 16 thread worker
+  static final int MIN_BLOCKS_PER_SHARD = 64;
+
+  private final int threads;
+  private int blockSize = 0; // 0 means choose one from the sizes of the Organisms
+  private int shard = 0;
+  private int shards = 1;
+  private SimilarityMetric metric = SimilarityMetric.AVERAGE;
+  private boolean prefilter = false;
+
+  /**
+   * @param threads number of worker threads
+   */
+  public BlockedComparisonEngine(int threads) {
+    if (threads <= 0)
+      throw new IllegalArgumentException("Number of threads must be > 0: " + threads);
+    this.threads = threads;
+  }
+
+  /**
+   * Override the block size, e.g. to exercise the tiling in tests.
+   */
+  void setBlockSize(int blockSize) {
+    if (blockSize <= 0)
+      throw new IllegalArgumentException("Block size must be > 0: " + blockSize);
+    this.blockSize = blockSize;
+  }
+
+  /**
+   * Only compare this shard's share of the blocks.
+   * @param shard which shard this is, from 0 to shards - 1
+   * @param shards how many shards the work is split into
+   */
+  public void setShard(int shard, int shards) {
+    if (shards <= 0 || shard < 0 || shard >= shards)
+      throw new IllegalArgumentException("Bad shard " + shard + " of " + shards);
+    this.shard = shard;
+    this.shards = shards;
+  }
+
+  @Override
+  public void setMetric(SimilarityMetric metric) {
+    this.metric = metric;
+  }
+
+  /**
+   * Screen the pairs with the Organisms' HyperLogLogs before intersecting them; see SizePruning.
+   */
+  public void setPrefilter(boolean prefilter) {
+    this.prefilter = prefilter;
+  }
+
+  @Override
+  public void compare(List<Organism> organisms, int firstNew, float threshold, ResultSink sink) {
+    Organism[] orgs = organisms.toArray(new Organism[0]);
+    for (Organism o : orgs)
+      o.freeze(); // freeze() isn't thread safe, so do it before sharing them
+
+    int b = blockSize > 0 ? blockSize : chooseBlockSize(orgs);
+    long[] blocks = blocks(orgs.length, b, firstNew);
+
+    SizePruning pruning = new SizePruning(orgs, firstNew, metric, threshold, prefilter);
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      Blocks work = new Blocks(orgs, blocks, b, firstNew, threshold, metric, pruning, sink);
+      pool.invoke(new InOrderTask(blocks.length, work::compareBlock));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * The pairs this shard compares, which for --shard is only its share of them.
+   */
+  @Override
+  public long pairsToCompare(List<Organism> organisms, int firstNew) {
+    if (shards == 1)
+      return ComparisonEngine.super.pairsToCompare(organisms, firstNew);
+
+    Organism[] orgs = organisms.toArray(new Organism[0]);
+    int b = blockSize > 0 ? blockSize : chooseBlockSize(orgs);
+    long pairs = 0;
+    for (long block : blocks(orgs.length, b, firstNew))
+      pairs += pairsIn(block, b, orgs.length, firstNew);
+    return pairs;
+  }
+
+  /**
+   * This shard's blocks of <code>b</code> rows and columns, in row-major order, packed as
+   * (first row << 32 | first column). Column blocks which lie entirely before firstNew
+   * have nothing to compare, so they're left out.
+   */
+  private long[] blocks(int n, int b, int firstNew) {
+    List<Long> blockList = new ArrayList<>();
+    for (int rows = 0; rows < n; rows += b) {
+      for (int cols = rows; cols < n; cols += b) {
+        if (Math.min(n, cols + b) > firstNew)
+          blockList.add(((long) rows << 32) | cols);
+      }
+    }
+    long[] blocks = new long[blockList.size()];
+    for (int k = 0; k < blocks.length; k++)
+      blocks[k] = blockList.get(k);
+    return shards > 1 ? shardOf(blocks, b, n, firstNew) : blocks;
+  }
+
+  /**
+   * Choose a block size such that a block's row and column Organisms fit in
+   * CACHE_BYTES and a band's pairs in MAX_BAND_PAIRS, but with enough blocks to keep all
+   * the threads busy.
+   */
+  int chooseBlockSize(Organism[] orgs) {
+    int n = orgs.length;
+    if (n == 0)
+      return 1;
+
+    long bytes = 0;
+    for (Organism o : orgs)
+      bytes += 8L * (o.isSketch() ? o.getSketch().size() : o.totalKmers());
+    long perOrganism = Math.max(1, bytes / n);
+
+    long fits = Math.min(CACHE_BYTES / (2 * perOrganism), MAX_BAND_PAIRS / n);
+    int b = (int) Math.max(1, Math.min(MAX_BLOCK_SIZE, fits));
+    long minBlocks = shards > 1 ? (long) MIN_BLOCKS_PER_SHARD * shards : (long) MIN_BLOCKS_PER_THREAD * threads;
+    while (b > 1 && blockCount(n, b) < minBlocks)
+      b /= 2;
+    return b;
+  }
+
+  /**
+   * This shard's contiguous range of the blocks: the ones in which the running total of
+   * pairs starts in its 1 / shards of the total.
+   */
+  long[] shardOf(long[] blocks, int b, int n, int firstNew) {
+    long[] pairs = new long[blocks.length + 1];
+    for (int k = 0; k < blocks.length; k++)
+      pairs[k + 1] = pairs[k] + pairsIn(blocks[k], b, n, firstNew);
+    long total = pairs[blocks.length];
+
+    int from = 0;
+    while (from < blocks.length && pairs[from] * shards < total * shard)
+      from++;
+    int to = from;
+    while (to < blocks.length && (shard + 1 == shards || pairs[to] * shards < total * (shard + 1)))
+      to++; // the last shard also takes any trailing blocks with no pairs
+    return Arrays.copyOfRange(blocks, from, to);
+  }
+
+  private static long pairsIn(long block, int b, int n, int firstNew) {
+    int firstRow = (int) (block >>> 32);
+    int firstCol = (int) block;
+    long pairs = 0;
+    for (int i = firstRow; i < Math.min(n, firstRow + b); i++)
+      pairs += Math.max(0, Math.min(n, firstCol + b) - Math.max(Math.max(i + 1, firstNew), firstCol));
+    return pairs;
+  }
+
+  private static long blockCount(int n, int b) {
+    long perSide = (n + b - 1) / b;
+    return perSide * (perSide + 1) / 2;
+  }
+
+  // everything the tasks share
+  private static class Blocks {
+    final Organism[] orgs;
+    final long[] blocks;
+    final int blockSize;
+    final int firstNew;
+    final float threshold;
+    final SimilarityMetric metric;
+    final SizePruning pruning;
+    final ResultSink sink;
+
+    Blocks(Organism[] orgs, long[] blocks, int blockSize, int firstNew, float threshold, SimilarityMetric metric,
+           SizePruning pruning, ResultSink sink) {
+      this.orgs = orgs;
+      this.blocks = blocks;
+      this.blockSize = blockSize;
+      this.firstNew = firstNew;
+      this.threshold = threshold;
+      this.metric = metric;
+      this.pruning = pruning;
+      this.sink = sink;
+    }
+
+    void compareBlock(int batch) {
+      int firstRow = (int) (blocks[batch] >>> 32);
+      int firstCol = (int) blocks[batch];
+      int lastRow = Math.min(orgs.length, firstRow + blockSize);
+      int lastCol = Math.min(orgs.length, firstCol + blockSize);
+      ResultSink.Producer producer = sink.producer();
+      long compared = 0;
+
+      for (int i = firstRow; i < lastRow; i++) {
+        Organism first = orgs[i];
+        int firstJ = Math.max(Math.max(i + 1, firstNew), firstCol);
+        compared += Math.max(0, lastCol - firstJ);
+        for (int j = firstJ; j < lastCol; j++) {
+          if (! pruning.canPass(i, j)) {
+            if (pruning.restOfRowFails(i, j))
+              break;
+            continue;
+          }
+          Organism second = orgs[j];
+          if (metric.isWeighted()) {
+            // one merge over the k-mers and their counts; there's no intersection to prune with
+            float score = metric.weightedScore(first, second);
+            if (score > threshold)
+              producer.add(i, j, score);
+            continue;
+          }
+          int intersection = pruning.intersectionCount(first, second, i, j);
+          if (metric.isSimilar(first, second, intersection, threshold))
+            producer.add(i, j, metric.score(first, second, intersection));
+        }
+      }
+
+      // the last block of a band of rows finishes a group
+      boolean endsBand = batch + 1 == blocks.length || (int) (blocks[batch + 1] >>> 32) != firstRow;
+      producer.compared(compared);
+      producer.endBatch(batch, endsBand);
+    }
+  }
+
+}
@@ -0,0 +1,145 @@
+package com.rpeck.karius;
+
+import java.util.Arrays;
+
+/**
+ * Bottom-k MinHash sketch of a set of k-mers: the <code>size</code> smallest 64-bit hashes
+ * of the (distinct) k-mers that were added.<p>
+ *
+ * A sketch is a fixed, small size no matter how big the genome is, and comparing two
+ * of them is O(size) instead of O(genome), which is what makes all-vs-all feasible for
+ * tens of thousands of genomes. The price is that similarities are estimates: the
+ * standard error of the Jaccard estimate is roughly sqrt(J(1 - J) / size).<p>
+ *
+ * The sketch is built in a streaming fashion as k-mers arrive. The hashes are kept
+ * sorted, so a new hash costs a comparison against the current maximum and, rarely, a
+ * binary search and an insertion. The expected number of insertions over n k-mers is
+ * only about size * ln(n / size).
+ */
+public class BottomKSketch {
+  private final int size;
+  private long[] hashes;  // sorted (signed) ascending; only the first count are valid
+  private int count = 0;
+
+  /**
+   * Create an empty sketch which will keep the given number of hashes.
+   * @param size number of hashes to keep, e.g. 1000
+   */
+  public BottomKSketch(int size) {
+    if (size <= 0)
+      throw new IllegalArgumentException("Sketch size must be > 0: " + size);
+    this.size = size;
+    this.hashes = new long[size];
+  }
+
+  /**
+   * Create a sketch from previously computed hashes, e.g. ones read back from disk.
+   * @param size number of hashes the sketch was built to keep
+   * @param hashes sorted hashes; at most <code>size</code> of them
+   */
+  BottomKSketch(int size, long[] hashes) {
+    this.size = size;
+    this.hashes = hashes;
+    this.count = hashes.length;
+  }
+
+  /**
+   * Hash a canonical k-mer for the sketch (the MurmurHash3 64-bit finalizer). Packed
+   * k-mers are anything but uniformly distributed, so they need to be mixed first.
+   */
+  public static long hash(long kmer) {
+    long h = kmer;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /**
+   * Add a canonical k-mer to the sketch. Adding the same k-mer again is a no-op.
+   */
+  public void add(long kmer) {
+    long h = hash(kmer);
+    if (count == size && h >= hashes[count - 1])
+      return;
+
+    int i = Arrays.binarySearch(hashes, 0, count, h);
+    if (i >= 0)
+      return; // already have it
+    i = -(i + 1);
+
+    int toMove = (count == size ? count - 1 : count) - i;
+    System.arraycopy(hashes, i, hashes, i + 1, toMove);
+    hashes[i] = h;
+    if (count < size)
+      count++;
+  }
+
+  /**
+   * Release any unused space once we're done adding k-mers.
+   */
+  public void freeze() {
+    if (hashes.length != count)
+      hashes = Arrays.copyOf(hashes, count);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Return the sorted hashes currently in the sketch. Don't modify them!
+   */
+  long[] hashes() {
+    return count == hashes.length ? hashes : Arrays.copyOf(hashes, count);
+  }
+
+  /**
+   * Estimate the number of distinct k-mers that were added. If the sketch never filled
+   * up it saw every distinct hash, so the count is exact. Otherwise the largest hash
+   * we kept tells us how densely the hash space was covered: (size - 1) / max.
+   */
+  public long estimateCardinality() {
+    if (count < size)
+      return count;
+    // map the signed hash onto [0, 1)
+    double max = ((hashes[count - 1] ^ Long.MIN_VALUE) >>> 11) * 0x1.0p-53;
+    return max == 0.0 ? count : Math.round((size - 1) / max);
+  }
+
+  /**
+   * Estimate the Jaccard similarity |A n B| / |A u B| of the sets behind two sketches.
+   * Of the smallest s hashes of the union of the two sketches, the fraction that are in
+   * both is an unbiased estimate, where s is the smaller of the two sketch sizes.
+   */
+  public double jaccard(BottomKSketch other) {
+    long[] a = this.hashes;
+    long[] b = other.hashes;
+    int aCount = this.count;
+    int bCount = other.count;
+    int s = Math.min(this.size, other.size);
+
+    int i = 0;
+    int j = 0;
+    int seen = 0;
+    int shared = 0;
+    while (seen < s && i < aCount && j < bCount) {
+      if (a[i] < b[j]) {
+        i++;
+      } else if (a[i] > b[j]) {
+        j++;
+      } else {
+        shared++;
+        i++;
+        j++;
+      }
+      seen++;
+    }
+    // if one sketch ran out first then the rest of the union comes from the other one
+    seen = Math.min(s, seen + (aCount - i) + (bCount - j));
+    return seen == 0 ? 0.0 : (double) shared / seen;
+  }
+
+}
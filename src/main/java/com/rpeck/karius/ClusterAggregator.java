@@ -0,0 +1,226 @@
+package com.rpeck.karius;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Online mislabel detection: running per-organism x per-cluster similarity aggregates,
+ * updated as the similar pairs are found, as described in the Main Javadoc.<p>
+ *
+ * Each organism is labelled with a cluster (e.g. its species) by a --clusters TSV file.
+ * For every organism and every cluster we keep the sum, count and max of the organism's
+ * similarities to members of that cluster, in flat primitive arrays indexed by
+ * <code>organism * clusters + cluster</code>. This is a SimilarityMatrixWriter, so it
+ * gets fed by the ResultSink's writer thread right alongside the real output, and the
+ * full matrix never needs to be stored or re-read.<p>
+ *
+ * The similarity between an organism and a cluster is the average over all the other
+ * members of the cluster. Pairs which weren't similar enough to make it into the matrix
+ * count as 0, so it's <code>sum / (cluster size - [organism is in it])</code>. An
+ * organism looks mislabelled if some other cluster is more similar to it than its own;
+ * the report ranks those by how much more.
+ */
+public class ClusterAggregator implements SimilarityMatrixWriter {
+  private final List<String> organisms;
+  private final List<String> clusterNames = new ArrayList<>();
+  private final int[] clusterOf;       // by organism; -1 if it isn't in the clusters file
+  private final int[] clusterSizes;
+  private final int clusters;
+  private final float[] sums;
+  private final int[] counts;
+  private final float[] maxes;
+
+  /**
+   * One row of the report.
+   */
+  public static class Suspect {
+    public final String organism;
+    public final String label;
+    public final float labelSimilarity;
+    public final String bestCluster;
+    public final float bestSimilarity;
+    public final float bestMax;
+
+    Suspect(String organism, String label, float labelSimilarity, String bestCluster,
+            float bestSimilarity, float bestMax) {
+      this.organism = organism;
+      this.label = label;
+      this.labelSimilarity = labelSimilarity;
+      this.bestCluster = bestCluster;
+      this.bestSimilarity = bestSimilarity;
+      this.bestMax = bestMax;
+    }
+
+    public float margin() {
+      return bestSimilarity - labelSimilarity;
+    }
+  }
+
+  /**
+   * @param organisms names of the organisms, in index order
+   * @param labels cluster of each organism, by name; organisms which aren't in it are ignored
+   */
+  public ClusterAggregator(List<String> organisms, Map<String, String> labels) {
+    this.organisms = organisms;
+    this.clusterOf = new int[organisms.size()];
+
+    Map<String, Integer> clusterIds = new HashMap<>();
+    for (int i = 0; i < organisms.size(); i++) {
+      String label = labels.get(organisms.get(i));
+      if (label == null) {
+        clusterOf[i] = -1;
+        continue;
+      }
+      Integer id = clusterIds.get(label);
+      if (id == null) {
+        id = clusterNames.size();
+        clusterIds.put(label, id);
+        clusterNames.add(label);
+      }
+      clusterOf[i] = id;
+    }
+
+    this.clusters = clusterNames.size();
+    this.clusterSizes = new int[clusters];
+    for (int c : clusterOf) {
+      if (c >= 0)
+        clusterSizes[c]++;
+    }
+
+    long cells = (long) organisms.size() * clusters;
+    if (cells > Integer.MAX_VALUE - 8)
+      throw new IllegalArgumentException("Too many organisms x clusters to aggregate: " + cells);
+    sums = new float[(int) cells];
+    counts = new int[(int) cells];
+    maxes = new float[(int) cells];
+  }
+
+  /**
+   * Read an organism to cluster TSV file: one "organism&lt;TAB&gt;cluster" line per
+   * organism. Blank lines and lines starting with '#' are skipped.
+   */
+  public static Map<String, String> readClusters(File f) throws IOException {
+    Map<String, String> labels = new HashMap<>();
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.trim().isEmpty() || line.startsWith("#"))
+          continue;
+        int tab = line.indexOf('\t');
+        if (tab < 0)
+          throw new IOException("Malformed line in clusters file " + f + ": " + line);
+        labels.put(line.substring(0, tab).trim(), line.substring(tab + 1).trim());
+      }
+    }
+    return labels;
+  }
+
+  /**
+   * Number of organisms which have a cluster.
+   */
+  public int labelled() {
+    int labelled = 0;
+    for (int c : clusterOf) {
+      if (c >= 0)
+        labelled++;
+    }
+    return labelled;
+  }
+
+  @Override
+  public void write(int i, int j, float score) {
+    add(i, clusterOf[j], score);
+    add(j, clusterOf[i], score);
+  }
+
+  private void add(int organism, int cluster, float score) {
+    if (cluster < 0 || clusterOf[organism] < 0)
+      return;
+    int cell = organism * clusters + cluster;
+    sums[cell] += score;
+    counts[cell]++;
+    if (score > maxes[cell])
+      maxes[cell] = score;
+  }
+
+  /**
+   * Average similarity of an organism to the other members of a cluster.
+   */
+  public float similarity(int organism, int cluster) {
+    int others = clusterSizes[cluster] - (clusterOf[organism] == cluster ? 1 : 0);
+    return others == 0 ? 0.0f : sums[organism * clusters + cluster] / others;
+  }
+
+  /**
+   * Number of similar pairs between an organism and a cluster's members.
+   */
+  public int count(int organism, int cluster) {
+    return counts[organism * clusters + cluster];
+  }
+
+  /**
+   * Return the organisms which are more similar to some other cluster than to their own,
+   * most suspicious first.
+   */
+  public List<Suspect> suspects() {
+    List<Suspect> suspects = new ArrayList<>();
+    for (int i = 0; i < organisms.size(); i++) {
+      int label = clusterOf[i];
+      if (label < 0)
+        continue;
+
+      float own = similarity(i, label);
+      int best = -1;
+      float bestSimilarity = own;
+      for (int c = 0; c < clusters; c++) {
+        if (c != label && similarity(i, c) > bestSimilarity) {
+          best = c;
+          bestSimilarity = similarity(i, c);
+        }
+      }
+      if (best >= 0) {
+        suspects.add(new Suspect(organisms.get(i), clusterNames.get(label), own, clusterNames.get(best),
+                bestSimilarity, maxes[i * clusters + best]));
+      }
+    }
+    suspects.sort((a, b) -> {
+      int byMargin = Float.compare(b.margin(), a.margin());
+      return byMargin != 0 ? byMargin : a.organism.compareTo(b.organism);
+    });
+    return suspects;
+  }
+
+  /**
+   * Write the ranked mislabel report as TSV, with a header line.
+   */
+  public void writeReport(File f) throws IOException {
+    try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(f), StandardCharsets.UTF_8))) {
+      out.println("organism\tlabel\tlabel_similarity\tbest_cluster\tbest_similarity\tbest_max\tmargin");
+      for (Suspect s : suspects()) {
+        out.println(s.organism + "\t" + s.label + "\t" + s.labelSimilarity + "\t" + s.bestCluster + "\t"
+                + s.bestSimilarity + "\t" + s.bestMax + "\t" + s.margin());
+      }
+      if (out.checkError())
+        throw new IOException("Error writing mislabel report: " + f);
+    }
+  }
+
+  /**
+   * Feed in all the pairs of an existing binary matrix, e.g. the old pairs when appending.
+   * Its organisms must be the first ones in this aggregator's list.
+   */
+  public void addAll(SimilarityMatrixReader matrix) {
+    for (long k = 0; k < matrix.pairCount(); k++)
+      write(matrix.pairFirst(k), matrix.pairSecond(k), matrix.pairScore(k));
+  }
+
+  @Override
+  public void flush() {
+  }
+
+  @Override
+  public void close() {
+  }
+
+}
@@ -0,0 +1,72 @@
+package com.rpeck.karius;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+/**
+ * Strategy for comparing all the pairs in a list of Organisms and keeping the similar ones.
+ * See BlockedComparisonEngine, which intersects every pair, and InvertedIndexEngine, which
+ * only looks at pairs which share at least one k-mer.
+ */
+public interface ComparisonEngine {
+
+  /**
+   * Compare every pair (i, j) with i &lt; j and j &gt;= firstNew, pushing the ones which
+   * pass the engine's SimilarityMetric to <code>sink</code> from whichever threads found
+   * them. The engine numbers its batches of work so that the sink can write them in
+   * order: (i, j) order for the in-memory engines, see OutOfCoreEngine for its own.
+   * Returns once all the pairs have been pushed.
+   *
+   * @param organisms the Organisms to compare; frozen here if they aren't already
+   * @param firstNew index of the first organism which needs comparing; 0 for all pairs
+   * @param threshold fraction that two organisms need to be similar to be kept
+   * @param sink where to push the similar pairs and their scores
+   */
+  void compare(List<Organism> organisms, int firstNew, float threshold, ResultSink sink);
+
+  /**
+   * Like {@link #compare(List, int, float, ResultSink)}, but collect the similar pairs in
+   * memory, e.g. for tests.
+   * @return the similar pairs and their scores, sorted by (i, j)
+   */
+  default PairBuffer compare(List<Organism> organisms, int firstNew, float threshold) {
+    PairBuffer results = new PairBuffer();
+    SimilarityMatrixWriter collector = new SimilarityMatrixWriter() {
+      @Override
+      public void write(int i, int j, float score) {
+        results.add(i, j, score);
+      }
+
+      @Override
+      public void flush() {
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+    try (ResultSink sink = new ResultSink(collector)) {
+      compare(organisms, firstNew, threshold, sink);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e); // the collector doesn't do I/O, so the engine lost a batch
+    }
+    results.sort(); // already in order except from OutOfCoreEngine
+    return results;
+  }
+
+  /**
+   * How many pairs {@link #compare(List, int, float, ResultSink)} will look at, for the
+   * Metrics' progress and ETA: all of them, unless the engine only does a share.
+   */
+  default long pairsToCompare(List<Organism> organisms, int firstNew) {
+    return Metrics.pairsToCompare(organisms.size(), firstNew);
+  }
+
+  /**
+   * Use <code>metric</code> to score the pairs and decide which are similar, rather than
+   * the default {@link SimilarityMetric#AVERAGE}.
+   */
+  void setMetric(SimilarityMetric metric);
+
+}
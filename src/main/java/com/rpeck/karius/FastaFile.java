@@ -15,6 +15,7 @@ public class FastaFile {
   private String description;
 
   private List<String> fragments;
+  private long totalBases = 0;
 
   /**
    * Create a FastaFile object which represents the raw data in a FASTA file.
@@ -23,18 +24,26 @@ public class FastaFile {
    * @param description taken from the rest of the tokens on the first line of the file
    */
   public FastaFile(String filename, String version, String description) {
-    this.organism = (new File(filename)).getName().replaceFirst("_genomic.fna.gz", "");
+    this.organism = organismName(filename);
     this.version = version;
     this.description = description;
     this.fragments = new ArrayList<>();
   }
 
+  /**
+   * Return the name of the organism in a FASTA file, given the file's name.
+   */
+  static String organismName(String filename) {
+    return (new File(filename)).getName().replaceFirst("_genomic.fna.gz", "");
+  }
+
   /**
    * Add a fragment of a genome to this organism's file representation
    * @param fragment
    */
   public void addFragment(String fragment) {
     fragments.add(fragment);
+    totalBases += fragment.length();
   }
 
   /**
@@ -57,4 +66,11 @@ public class FastaFile {
     return description;
   }
 
+  /**
+   * Return the total length of the fragments, e.g. to presize the k-mer set.
+   */
+  public long totalBases() {
+    return totalBases;
+  }
+
 }
@@ -6,6 +6,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.zip.GZIPInputStream;
 
 /**
@@ -13,11 +14,21 @@ import java.util.zip.GZIPInputStream;
  */
 public class FastaParser {
   private File inputDir = null;
-
-  private static Set<Byte> iupacCodeSet = new HashSet<>();
+  private OrganismIndex index = null;
+  private int threads = Runtime.getRuntime().availableProcessors();
+  private Metrics metrics = null;
+  private OrganismSpill spill = null;
+  private PackedGenomeStore packedStore = null;
+  private boolean counted = false;
+  private boolean prefilter = false;
+
+  // indexed by character: is it an IUPAC ambiguity code (or gap)?
+  private static final boolean[] IUPAC_CODES = new boolean[256];
   static {
-    for (char c : new char[] {'R', 'Y', 'S', 'W', 'K', 'M', 'B', 'D', 'H', 'V', 'N', '.', '-'})
-      iupacCodeSet.add((byte)c);
+    for (char c : new char[] {'R', 'Y', 'S', 'W', 'K', 'M', 'B', 'D', 'H', 'V', 'N', '.', '-'}) {
+      IUPAC_CODES[c] = true;
+      IUPAC_CODES[Character.toLowerCase(c)] = true;
+    }
   }
 
   /**
@@ -29,6 +40,66 @@ public class FastaParser {
     inputDir = new File(path);
   }
 
+  /**
+   * Use an on-disk index of previously parsed Organisms. Files with an up-to-date entry
+   * are loaded from it rather than parsed, and files without one are added to it.
+   * @param index the index, or null to always parse
+   */
+  public void setIndex(OrganismIndex index) {
+    this.index = index;
+  }
+
+  /**
+   * Set the number of threads to use for parsing and k-mer generation. Defaults to the
+   * number of available processors.
+   */
+  public void setThreads(int threads) {
+    if (threads <= 0)
+      throw new IllegalArgumentException("Number of threads must be > 0: " + threads);
+    this.threads = threads;
+  }
+
+  /**
+   * Count the files, bases and k-mers ingested by parseAllFiles in the given Metrics.
+   * @param metrics the metrics, or null not to bother
+   */
+  public void setMetrics(Metrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Spill the k-mers of the Organisms parseAllFiles ingests to the given file, returning
+   * stand-ins for them; see OutOfCoreEngine.
+   * @param spill the spill file, or null to keep everything in memory
+   */
+  void setSpill(OrganismSpill spill) {
+    this.spill = spill;
+  }
+
+  /**
+   * Read the genomes from 2-bit packed copies where there are up-to-date ones, rather
+   * than gunzipping and decoding their FASTA, and pack the others as they're parsed.
+   * @param packedStore the store, or null to always read the FASTA
+   */
+  public void setPackedStore(PackedGenomeStore packedStore) {
+    this.packedStore = packedStore;
+  }
+
+  /**
+   * Count how many times each k-mer occurs in the Organisms parseAllFiles ingests, for the
+   * weighted SimilarityMetrics.
+   */
+  public void setCounted(boolean counted) {
+    this.counted = counted;
+  }
+
+  /**
+   * Make the HyperLogLogs of the Organisms parseAllFiles ingests, for --prefilter.
+   */
+  public void setPrefilter(boolean prefilter) {
+    this.prefilter = prefilter;
+  }
+
   /**
    * Parse a single FASTA file and return the raw input data.
    */
@@ -56,39 +127,95 @@ public class FastaParser {
    * Does this fragment contain IUPAC codes?
    */
   static public boolean containsIupacCodes(String fragment) {
-    for (char c : fragment.toCharArray()) {
-      if (iupacCodeSet.contains((byte)c))
+    for (int i = 0; i < fragment.length(); i++) {
+      char c = fragment.charAt(i);
+      if (c < 256 && IUPAC_CODES[c])
         return true;
     }
     return false;
   }
 
   /**
-   * Represent an organism internally as a Set of kmers for efficient comparisons.
+   * Represent an organism internally as a frozen set of kmers for efficient comparisons.
    */
   static public Organism representOrganism(FastaFile ff, int kmerLen) {
+    return representOrganism(ff, kmerLen, 0);
+  }
+
+  /**
+   * Represent an organism internally for efficient comparisons: either a frozen set of
+   * kmers, or if sketchSize is > 0 a MinHash sketch of them built as we stream over the
+   * fragments.
+   * <p>
+   * The lines of each record are one contig, so k-mers span the line breaks, and a
+   * further '&gt;' header line starts a new contig. An IUPAC code only restarts the
+   * k-mer window (KmerEncoder treats anything but A, C, G and T as a break), so we lose
+   * the k-mers which contain it rather than the whole line. This gives exactly the same
+   * k-mers as FastaStreamParser.
+   */
+  static public Organism representOrganism(FastaFile ff, int kmerLen, int sketchSize) {
     Organism o = new Organism(
             ff.getOrganism(),
             ff.getVersion(),
-            ff.getDescription());
+            ff.getDescription(),
+            ff.totalBases(),
+            sketchSize,
+            false);
 
     ListIterator<String> i = ff.fragments();
     while (i.hasNext()) {
       String fragment = i.next();
-      if (! containsIupacCodes(fragment))
-        o.addFragment(fragment, kmerLen);
+      if (fragment.startsWith(">"))
+        o.endContig();
+      else
+        o.extendContig(fragment, kmerLen);
     }
 
+    o.freeze();
     return o;
   }
 
   /**
-   * Parse all the FASTA files in <code>inputDir</code>. Skips individual bad files.
+   * Parse all the FASTA files in <code>inputDir</code>, or load them from the index if
+   * one has been set. Skips individual bad files.
+   * <p>
+   * The files are ingested in parallel by an IngestionPipeline using
+   * {@link #setThreads(int)} threads, but the Organisms are returned in file order.
+   * @param verbose print progress to stdout
+   * @param kmerLen length of the k-mers
+   * @param sketchSize number of hashes in each Organism's MinHash sketch, or 0 for exact k-mer sets
    * @throws IOException
    */
-  public List<Organism> parseAllFiles(boolean verbose, int kmerLen) throws IOException {
-    List<Organism> organisms = new ArrayList<>();
+  public List<Organism> parseAllFiles(boolean verbose, int kmerLen, int sketchSize) throws IOException {
+    IngestionPipeline pipeline = new IngestionPipeline(threads, kmerLen, sketchSize, index, verbose);
+    pipeline.setMetrics(metrics);
+    pipeline.setSpill(spill);
+    pipeline.setPackedStore(packedStore);
+    pipeline.setCounted(counted);
+    pipeline.setPrefilter(prefilter);
+    return pipeline.run(listFastaFiles());
+  }
+
+  /**
+   * Like {@link #parseAllFiles(boolean, int, int)}, for several k-mer lengths at once: each
+   * file is read and parsed just once, into an Organism per length.
+   * @return a list of Organisms for each of <code>kmerLens</code>, in the same order
+   */
+  public List<List<Organism>> parseAllFiles(boolean verbose, int[] kmerLens, int sketchSize) throws IOException {
+    IngestionPipeline pipeline = new IngestionPipeline(threads, kmerLens, sketchSize, index, verbose);
+    pipeline.setMetrics(metrics);
+    pipeline.setSpill(spill);
+    pipeline.setPackedStore(packedStore);
+    pipeline.setCounted(counted);
+    pipeline.setPrefilter(prefilter);
+    return pipeline.runAll(listFastaFiles());
+  }
 
+  /**
+   * Return all the readable files under <code>inputDir</code>, in a stable order.
+   * @throws IOException
+   */
+  public List<Path> listFastaFiles() throws IOException {
     if (! inputDir.exists())
       throw new FileNotFoundException("Specified path to FASTA files does not exist: " + inputDir);
     if (! inputDir.canRead())
@@ -96,27 +223,12 @@ public class FastaParser {
     if (! inputDir.isDirectory())
       throw new FileNotFoundException("Specified path to FASTA files is not a directory: " + inputDir);
 
-    // TODO: try/catch inside the loop so that we get partial results if some files are bad
-      List<Path> fastaPaths =
-              Files.walk(Paths.get(inputDir.getCanonicalPath()))
-                      .filter(Files::isRegularFile)
-                      .filter(Files::isReadable)
-                      .collect(Collectors.toList());
-      for (Path p : fastaPaths) {
-        if (verbose) System.out.println("Parsing FASTA file: " + p.toString());
-
-        FastaFile ff;
-        try {
-          ff = parseSingleFile(p);
-          Organism o = representOrganism(ff, kmerLen);
-          ff = null; // try to get this to GC... weak references might be necessary instead.
-          organisms.add(o);
-        } catch (IOException e) {
-          System.err.println("Caught IO Exception parsing FASTA file: " + p + ": " + e);
-        }
-      }
-
-    return organisms;
+    try (Stream<Path> walk = Files.walk(Paths.get(inputDir.getCanonicalPath()))) {
+      return walk.filter(Files::isRegularFile)
+              .filter(Files::isReadable)
+              .sorted()
+              .collect(Collectors.toList());
+    }
   }
 
 }
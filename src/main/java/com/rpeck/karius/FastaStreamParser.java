@@ -0,0 +1,367 @@
+package com.rpeck.karius;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Streaming byte-level FASTA parser which feeds bases straight into an Organism's k-mer
+ * encoder, without ever materializing lines as Strings.<p>
+ *
+ * FastaFile holds a genome as a List of 80-character Strings: 2 bytes per base plus a
+ * String and a char[] header per line. For a multi-Mbp genome that's hundreds of MB before
+ * we've computed a single k-mer. This parser instead works on raw decompressed bytes in
+ * whatever chunks they arrive in ({@link #feed(byte[], int, int)}), so peak memory per
+ * genome is the read buffer plus the k-mer set itself.<p>
+ *
+ * A file may contain several records, each starting with a '&gt;' header line: e.g. a
+ * chromosome plus a few plasmids. Each record is a separate contig, so the k-mer window
+ * is reset at each header. Within a record, line breaks are ignored, so k-mers span
+ * them. Anything that isn't A, C, G or T (IUPAC codes) resets the window, so we only
+ * lose the k-mers that actually contain an ambiguous base.<p>
+ *
+ * The Organism's name comes from the file name, and its version and description from
+ * the first header, as in {@link FastaParser#parseSingleFile(Path)}.<p>
+ *
+ * Given several k-mer lengths (--kmer 16,21,31), it builds an Organism for each of them
+ * in the same pass, from one MultiKmerEncoder window, so the gunzip and the parsing are
+ * only paid for once.<p>
+ *
+ * Given a {@link #packInto(PackedGenomeStore.Writer)}, the parser also writes each base
+ * out 2 bits apiece as it goes, and {@link #parse(PackedGenome, int, int)} builds the same
+ * Organism from that later on without any text at all.<p>
+ *
+ * A parser is reusable, but not thread safe: use one per thread.
+ */
+public class FastaStreamParser {
+  static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+  private final byte[] buffer;
+  private boolean counted = false;
+
+  // per-file state
+  private String organismName;
+  private long genomeLengthHint;
+  private int sketchSize;
+  private int[] kmerLens;
+  private KmerEncoder encoder;      // for a single k-mer length
+  private MultiKmerEncoder multi;  // for several, or null
+  private PackedGenomeStore.Writer packer;
+  private Organism[] organisms;    // one per k-mer length, once we've started one
+  private boolean atLineStart;
+  private boolean inHeader;
+  private byte[] header = new byte[256];
+  private int headerLen;
+  private int records;
+  private long bases;
+  private long kmers;
+
+  public FastaStreamParser() {
+    this(DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * @param bufferSize size of the buffer used by {@link #parse(InputStream, String, long, int, int)}
+   */
+  public FastaStreamParser(int bufferSize) {
+    this.buffer = new byte[bufferSize];
+  }
+
+  /**
+   * Count how many times each k-mer occurs, for the weighted SimilarityMetrics, in the
+   * Organisms of the files begun from now on.
+   */
+  public void setCounted(boolean counted) {
+    this.counted = counted;
+  }
+
+  /**
+   * Stream a gzipped FASTA file into a frozen Organism.
+   *
+   * @param path the .fna.gz file
+   * @param kmerLen length of the k-mers
+   * @param sketchSize number of hashes in the Organism's MinHash sketch, or 0 for an exact k-mer set
+   */
+  public Organism parse(Path path, int kmerLen, int sketchSize) throws IOException {
+    try (InputStream in = new GZIPInputStream(new FileInputStream(path.toFile()), 1 << 16)) {
+      return parse(in, path.getFileName().toString(), gzipSizeHint(path), kmerLen, sketchSize);
+    }
+  }
+
+  /**
+   * Stream uncompressed FASTA from <code>in</code> into a frozen Organism.
+   *
+   * @param in uncompressed FASTA
+   * @param filename name of the input file, to extract the name of the organism
+   * @param genomeLengthHint approximate length of the genome to presize the k-mer set, or 0 if unknown
+   * @param kmerLen length of the k-mers
+   * @param sketchSize number of hashes in the Organism's MinHash sketch, or 0 for an exact k-mer set
+   */
+  public Organism parse(InputStream in, String filename, long genomeLengthHint, int kmerLen, int sketchSize)
+          throws IOException {
+    begin(filename, genomeLengthHint, kmerLen, sketchSize);
+    int n;
+    while ((n = in.read(buffer)) > 0)
+      feed(buffer, 0, n);
+    return finish();
+  }
+
+  /**
+   * Build an Organism from a genome packed by an earlier run: the same k-mers as parsing
+   * its FASTA would give, straight from the 2-bit codes.
+   *
+   * @param genome the packed genome
+   * @param kmerLen length of the k-mers
+   * @param sketchSize number of hashes in the Organism's MinHash sketch, or 0 for an exact k-mer set
+   */
+  public Organism parse(PackedGenome genome, int kmerLen, int sketchSize) {
+    return parseAll(genome, new int[] {kmerLen}, sketchSize)[0];
+  }
+
+  /**
+   * Like {@link #parse(PackedGenome, int, int)}, for several k-mer lengths at once.
+   * @return a frozen Organism for each of the lengths, in the same order
+   */
+  public Organism[] parseAll(PackedGenome genome, int[] kmerLens, int sketchSize) {
+    begin(genome.getOrganism(), genome.length(), kmerLens, sketchSize);
+    startOrganisms(genome.getVersion(), genome.getDescription());
+    long length = genome.length();
+    int contig = 0;
+    int run = 0;
+    long pos = 0;
+    while (pos < length) {
+      // reset the window at the contig starts and the ambiguous runs; in between, every
+      // base is valid
+      while (contig < genome.contigs() && genome.contigStart(contig) <= pos) {
+        resetWindow();
+        contig++;
+      }
+      if (run < genome.ambiguousRuns() && genome.ambiguousStart(run) <= pos) {
+        resetWindow();
+        pos = genome.ambiguousEnd(run++);
+        continue;
+      }
+
+      long end = length;
+      if (contig < genome.contigs())
+        end = Math.min(end, genome.contigStart(contig));
+      if (run < genome.ambiguousRuns())
+        end = Math.min(end, genome.ambiguousStart(run));
+      for (; pos < end; pos++)
+        push(genome.code(pos));
+    }
+    records = genome.contigs();
+    bases = length;
+    return finishAll();
+  }
+
+  /**
+   * Start a new file, for use with {@link #feed(byte[], int, int)} and {@link #finish()}.
+   */
+  public void begin(String filename, long genomeLengthHint, int kmerLen, int sketchSize) {
+    begin(filename, genomeLengthHint, new int[] {kmerLen}, sketchSize);
+  }
+
+  /**
+   * Start a new file, building an Organism for each of several k-mer lengths; for use with
+   * {@link #feed(byte[], int, int)} and {@link #finishAll()}.
+   */
+  public void begin(String filename, long genomeLengthHint, int[] kmerLens, int sketchSize) {
+    this.organismName = FastaFile.organismName(filename);
+    this.genomeLengthHint = genomeLengthHint;
+    this.sketchSize = sketchSize;
+    if (kmerLens.length == 1) {
+      if (encoder == null || encoder.getK() != kmerLens[0])
+        encoder = new KmerEncoder(kmerLens[0]);
+      multi = null;
+    } else if (multi == null || ! Arrays.equals(this.kmerLens, kmerLens)) {
+      multi = new MultiKmerEncoder(kmerLens);
+    }
+    this.kmerLens = kmerLens.clone();
+    resetWindow();
+    packer = null;
+    organisms = null;
+    atLineStart = true;
+    inHeader = false;
+    headerLen = 0;
+    records = 0;
+    bases = 0;
+    kmers = 0;
+  }
+
+  /**
+   * Also write the current file's bases to a packed genome, after {@link #begin(String, long, int, int)}.
+   * Finishing (or aborting) the Writer is up to the caller.
+   */
+  public void packInto(PackedGenomeStore.Writer packer) {
+    this.packer = packer;
+  }
+
+  /**
+   * Feed the next chunk of uncompressed FASTA. Chunks may split lines (and headers)
+   * anywhere.
+   */
+  public void feed(byte[] buf, int off, int len) {
+    final PackedGenomeStore.Writer packer = this.packer;
+    final int end = off + len;
+    for (int i = off; i < end; i++) {
+      byte b = buf[i];
+      if (inHeader) {
+        if (b == '\n') {
+          endHeader();
+          atLineStart = true;
+        } else {
+          appendToHeader(b);
+        }
+      } else if (b == '\n' || b == '\r') {
+        atLineStart = true;
+      } else if (b == '>' && atLineStart) {
+        inHeader = true;
+        headerLen = 0;
+        resetWindow(); // a new record is a new contig
+        if (packer != null)
+          packer.startContig();
+        records++;
+      } else {
+        atLineStart = false;
+        bases++;
+        int code = KmerEncoder.code(b & 0xff);
+        if (packer != null)
+          packer.add(code);
+        if (code < 0)
+          resetWindow();
+        else
+          push(code);
+      }
+    }
+  }
+
+  // roll a valid base into the window(s), adding any k-mers which are complete
+  private void push(int code) {
+    if (multi == null) {
+      if (encoder.pushCode(code)) {
+        if (organisms == null)
+          startOrganisms("", "");
+        organisms[0].addKmer(encoder.canonical());
+        kmers++;
+      }
+      return;
+    }
+
+    multi.pushCode(code);
+    for (int i = 0; i < multi.size(); i++) {
+      if (multi.isFull(i)) {
+        if (organisms == null)
+          startOrganisms("", "");
+        organisms[i].addKmer(multi.canonical(i));
+        kmers++;
+      }
+    }
+  }
+
+  private void resetWindow() {
+    if (multi != null)
+      multi.reset();
+    else
+      encoder.reset();
+  }
+
+  /**
+   * Finish the current file.
+   * @return the frozen Organism (for the first k-mer length, if there are several)
+   */
+  public Organism finish() {
+    return finishAll()[0];
+  }
+
+  /**
+   * Finish the current file.
+   * @return a frozen Organism for each of the k-mer lengths given to begin, in the same order
+   */
+  public Organism[] finishAll() {
+    if (inHeader)
+      endHeader();
+    if (organisms == null)
+      startOrganisms("", ""); // no header and no k-mers; an empty genome
+    for (Organism o : organisms)
+      o.freeze();
+    Organism[] result = organisms;
+    organisms = null;
+    return result;
+  }
+
+  /**
+   * Number of records (header lines) in the last file parsed.
+   */
+  public int records() {
+    return records;
+  }
+
+  /**
+   * Number of sequence characters (including ambiguous ones) in the last file parsed.
+   */
+  public long bases() {
+    return bases;
+  }
+
+  /**
+   * Number of k-mers (including duplicates) in the last file parsed.
+   */
+  public long kmers() {
+    return kmers;
+  }
+
+  private void appendToHeader(byte b) {
+    if (headerLen == header.length)
+      header = Arrays.copyOf(header, header.length * 2);
+    header[headerLen++] = b;
+  }
+
+  private void endHeader() {
+    inHeader = false;
+    if (organisms != null)
+      return; // only the first header names the genome
+
+    // ">version description", as in FastaParser.parseSingleFile
+    int len = headerLen;
+    if (len > 0 && header[len - 1] == '\r')
+      len--;
+    String line = new String(header, 0, len, StandardCharsets.UTF_8).trim();
+    int space = line.indexOf(' ');
+    if (space < 0)
+      startOrganisms(line, "");
+    else
+      startOrganisms(line.substring(0, space), line.substring(space + 1));
+  }
+
+  private void startOrganisms(String version, String description) {
+    organisms = new Organism[kmerLens.length];
+    for (int i = 0; i < organisms.length; i++)
+      organisms[i] = new Organism(organismName, version, description, genomeLengthHint, sketchSize, counted);
+  }
+
+  /**
+   * Return the uncompressed size of a gzip file from its trailer, which is a good enough
+   * genome length to presize the k-mer set with. It's only the size mod 2^32 (and only of
+   * the last member of a multi-member file), so it's just a hint.
+   */
+  static long gzipSizeHint(Path path) {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      if (channel.size() < 18)
+        return 0;
+      ByteBuffer trailer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+      channel.read(trailer, channel.size() - 4);
+      trailer.flip();
+      return trailer.remaining() == 4 ? trailer.getInt() & 0xffffffffL : 0;
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+}
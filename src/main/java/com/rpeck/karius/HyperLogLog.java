@@ -0,0 +1,125 @@
+package com.rpeck.karius;
+
+/**
+ * A HyperLogLog sketch of an Organism's k-mer set, for --prefilter: 2^12 one-byte
+ * registers (4 KB), each holding the largest "number of leading zeros + 1" of the hashes
+ * which land in it. The estimate of the set's cardinality has a relative standard error
+ * of about 1.04 / sqrt(4096) = 1.6%.<p>
+ *
+ * What makes it useful as a prefilter is that the sketch of A &cup; B is just the
+ * register-wise max of the two sketches, so the union of a pair can be estimated from
+ * 8 KB which stay in cache, without touching the pair's multi-MB k-mer arrays. We know
+ * |A| and |B| exactly, so |A &cap; B| = |A| + |B| - |A &cup; B| is bounded above by
+ * plugging in a deliberately low estimate of the union; see
+ * {@link #intersectionBound(HyperLogLog, HyperLogLog, int, int)}.<p>
+ *
+ * (A fixed-size Bloom filter, with an AND and a popcount per pair, was the other
+ * candidate, but at a few KB per genome it's useless: a bacterial genome has millions of
+ * k-mers, which set practically every bit, so every pair looks identical.)
+ */
+public class HyperLogLog {
+  static final int PRECISION = 12;
+  static final int REGISTERS = 1 << PRECISION;
+  static final double RELATIVE_ERROR = 1.04 / Math.sqrt(REGISTERS);
+  // how many standard errors to shrink the union estimate by: one-sided, a pair which
+  // really does pass the threshold is wrongly rejected about 0.1% of the time at worst
+  static final double UNION_SLACK = 3 * RELATIVE_ERROR;
+
+  private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTERS);
+  private static final double[] INVERSE_POWERS = new double[65]; // 2^-r
+  static {
+    for (int r = 0; r < INVERSE_POWERS.length; r++)
+      INVERSE_POWERS[r] = Math.scalb(1.0, -r);
+  }
+
+  private final byte[] registers;
+
+  public HyperLogLog() {
+    this(new byte[REGISTERS]);
+  }
+
+  /**
+   * Wrap previously computed registers, e.g. ones read back from an OrganismIndex.
+   */
+  HyperLogLog(byte[] registers) {
+    if (registers.length != REGISTERS)
+      throw new IllegalArgumentException("Expected " + REGISTERS + " registers, not " + registers.length);
+    this.registers = registers;
+  }
+
+  /**
+   * Sketch a set of k-mers.
+   */
+  static HyperLogLog of(long[] kmers) {
+    HyperLogLog hll = new HyperLogLog();
+    for (long kmer : kmers)
+      hll.add(kmer);
+    return hll;
+  }
+
+  /**
+   * Add a canonical k-mer. Adding the same k-mer again is a no-op.
+   */
+  public void add(long kmer) {
+    long h = BottomKSketch.hash(kmer);
+    int register = (int) (h >>> (64 - PRECISION));
+    // the rank of the rest of the hash, with a sentinel bit so that it's at most 64 - PRECISION + 1
+    int rank = Long.numberOfLeadingZeros((h << PRECISION) | (1L << (PRECISION - 1))) + 1;
+    if (rank > registers[register])
+      registers[register] = (byte) rank;
+  }
+
+  byte[] registers() {
+    return registers;
+  }
+
+  /**
+   * Estimate the number of distinct k-mers added.
+   */
+  public double estimate() {
+    double sum = 0;
+    int zeros = 0;
+    for (byte r : registers) {
+      sum += INVERSE_POWERS[r];
+      if (r == 0)
+        zeros++;
+    }
+    return correct(ALPHA * REGISTERS * REGISTERS / sum, zeros);
+  }
+
+  /**
+   * Estimate |A &cup; B| from the two sketches, without allocating the union's.
+   */
+  public static double unionEstimate(HyperLogLog a, HyperLogLog b) {
+    byte[] ra = a.registers;
+    byte[] rb = b.registers;
+    double sum = 0;
+    int zeros = 0;
+    for (int i = 0; i < REGISTERS; i++) {
+      int r = Math.max(ra[i], rb[i]);
+      sum += INVERSE_POWERS[r];
+      if (r == 0)
+        zeros++;
+    }
+    return correct(ALPHA * REGISTERS * REGISTERS / sum, zeros);
+  }
+
+  // the small range correction: linear counting while there are still empty registers
+  private static double correct(double raw, int zeros) {
+    if (raw <= 2.5 * REGISTERS && zeros > 0)
+      return REGISTERS * Math.log((double) REGISTERS / zeros);
+    return raw;
+  }
+
+  /**
+   * An upper bound on the number of k-mers two Organisms share, given their exact sizes:
+   * |A| + |B| - |A &cup; B|, with the union estimate lowered by UNION_SLACK (and never
+   * below the larger of the two, which it can't be).
+   */
+  public static int intersectionBound(HyperLogLog a, HyperLogLog b, int sizeA, int sizeB) {
+    double union = Math.max(unionEstimate(a, b) * (1 - UNION_SLACK), Math.max(sizeA, sizeB));
+    double bound = Math.ceil(sizeA + (double) sizeB - union);
+    return (int) Math.max(0, Math.min(Math.min(sizeA, sizeB), bound));
+  }
+
+}
@@ -0,0 +1,49 @@
+package com.rpeck.karius;
+
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * Runs units of work 0 .. count - 1 on a ForkJoinPool, for the ComparisonEngines.<p>
+ *
+ * The range is split in half until it's a single unit, so an idle worker steals a big
+ * chunk of the remaining work rather than one unit at a time. But a leaf doesn't run
+ * "its" unit: it claims the next one from a shared counter, whichever leaf it is, so the
+ * units get started in order no matter who stole what. That keeps the batches which a
+ * ResultSink has to hold on to, waiting for an earlier one, down to about one per thread.
+ */
+class InOrderTask extends RecursiveAction {
+  private static final long serialVersionUID = 1L;
+
+  private final AtomicInteger next;
+  private final IntConsumer work;
+  private final int from;
+  private final int to;
+
+  /**
+   * @param count number of units of work
+   * @param work runs a unit, given its number
+   */
+  InOrderTask(int count, IntConsumer work) {
+    this(new AtomicInteger(), work, 0, count);
+  }
+
+  private InOrderTask(AtomicInteger next, IntConsumer work, int from, int to) {
+    this.next = next;
+    this.work = work;
+    this.from = from;
+    this.to = to;
+  }
+
+  @Override
+  protected void compute() {
+    if (to - from > 1) {
+      int mid = (from + to) >>> 1;
+      invokeAll(new InOrderTask(next, work, from, mid), new InOrderTask(next, work, mid, to));
+    } else if (to > from) {
+      work.accept(next.getAndIncrement());
+    }
+  }
+
+}
@@ -0,0 +1,457 @@
+package com.rpeck.karius;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Parallel ingestion of a list of FASTA files into frozen Organisms.<p>
+ *
+ * There are two stages:
+ * <ol>
+ *   <li>a pool of reader threads which gunzip each file into a few reusable byte buffers
+ *   (or load it from the OrganismIndex, in which case it skips the second stage)</li>
+ *   <li>a pool of builder threads which run each file's bytes through a
+ *   FastaStreamParser into an Organism's k-mers or sketch, and store it in the index</li>
+ * </ol>
+ * Each file in flight is a GenomeStream: a small, fixed set of buffers which cycle
+ * between its reader and its builder. A reader blocks when all of its file's buffers
+ * are full, and the queue of streams waiting for a builder holds at most one per
+ * builder, so if the builders fall behind the readers stop. No genome is ever held
+ * in memory as a whole; it's just <code>BUFFERS_PER_STREAM * BUFFER_SIZE</code> bytes
+ * per file in flight, plus the k-mers themselves.<p>
+ *
+ * Given several k-mer lengths, each file is still read and parsed once, into an Organism
+ * per length (see FastaStreamParser), and {@link #runAll(List)} returns a list of
+ * Organisms for each length.<p>
+ *
+ * With a PackedGenomeStore, a file which has already been packed skips the gunzip: its
+ * reader just maps the packed genome and hands it to a builder, which streams the 2-bit
+ * codes into the k-mer encoder. A file which hasn't is packed by its builder as it's
+ * parsed.<p>
+ *
+ * There's always at least one thread in each stage, so asking for a single thread still
+ * gets two: a reader and a builder. The reader spends most of its time blocked waiting for
+ * the builder to free a buffer, so it's only about one thread's worth of CPU.<p>
+ *
+ * Results are collected into a slot per input file, so the output order is the input
+ * order no matter which threads finish first. Bad files are skipped with a message to
+ * stderr, just like the single-threaded version always did.
+ */
+public class IngestionPipeline {
+  static final int BUFFER_SIZE = 1 << 20;
+  static final int BUFFERS_PER_STREAM = 4;
+
+  // a filled buffer; len < 0 marks the end of the file, with error set if it didn't end well
+  private static class Chunk {
+    final byte[] buf;
+    final int len;
+    final IOException error;
+
+    Chunk(byte[] buf, int len, IOException error) {
+      this.buf = buf;
+      this.len = len;
+      this.error = error;
+    }
+  }
+
+  // one file in flight between its reader and its builder: either gunzipped chunks, or
+  // a packed genome which needs no reading at all
+  private static class GenomeStream {
+    final int slot;
+    final Path path;
+    final long genomeLengthHint;
+    final PackedGenome packed;
+    final BlockingQueue<Chunk> full = new ArrayBlockingQueue<>(BUFFERS_PER_STREAM + 1);
+    final BlockingQueue<byte[]> empty = new ArrayBlockingQueue<>(BUFFERS_PER_STREAM);
+
+    GenomeStream(int slot, Path path, long genomeLengthHint) {
+      this.slot = slot;
+      this.path = path;
+      this.genomeLengthHint = genomeLengthHint;
+      this.packed = null;
+    }
+
+    GenomeStream(int slot, Path path, PackedGenome packed) {
+      this.slot = slot;
+      this.path = path;
+      this.genomeLengthHint = packed.length();
+      this.packed = packed;
+    }
+
+    GenomeStream allocateBuffers() {
+      for (int i = 0; i < BUFFERS_PER_STREAM; i++)
+        empty.add(new byte[BUFFER_SIZE]);
+      return this;
+    }
+  }
+
+  private static final GenomeStream END = new GenomeStream(-1, null, 0);
+
+  private final int readerThreads;
+  private final int builderThreads;
+  private final int[] kmerLens;
+  private final int sketchSize;
+  private final OrganismIndex index;
+  private final boolean verbose;
+  private Metrics metrics = null;
+  private OrganismSpill spill = null;
+  private PackedGenomeStore packedStore = null;
+  private boolean counted = false;
+  private boolean prefilter = false;
+
+  /**
+   * @param threads total number of worker threads; split between the reader and builder
+   *                stages, with at least one in each, so 1 is really 2
+   * @param kmerLen length of the k-mers
+   * @param sketchSize number of hashes in each Organism's MinHash sketch, or 0 for exact k-mer sets
+   * @param index index to load from and store to, or null
+   * @param verbose print progress to stdout
+   */
+  public IngestionPipeline(int threads, int kmerLen, int sketchSize, OrganismIndex index, boolean verbose) {
+    this(threads, new int[] {kmerLen}, sketchSize, index, verbose);
+  }
+
+  /**
+   * Like {@link #IngestionPipeline(int, int, int, OrganismIndex, boolean)}, building an
+   * Organism for each of several k-mer lengths from one pass over each file.
+   */
+  public IngestionPipeline(int threads, int[] kmerLens, int sketchSize, OrganismIndex index, boolean verbose) {
+    if (threads <= 0)
+      throw new IllegalArgumentException("Number of threads must be > 0: " + threads);
+    this.readerThreads = Math.max(1, threads / 2);
+    this.builderThreads = Math.max(1, threads - readerThreads);
+    this.kmerLens = kmerLens.clone();
+    this.sketchSize = sketchSize;
+    this.index = index;
+    this.verbose = verbose;
+  }
+
+  /**
+   * Count files, bases and k-mers in the given Metrics as we go.
+   */
+  public void setMetrics(Metrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Spill each Organism's k-mers to the given file as soon as it's built (or loaded from
+   * the index), so that only stand-ins are kept in memory; see OutOfCoreEngine.
+   */
+  void setSpill(OrganismSpill spill) {
+    this.spill = spill;
+  }
+
+  /**
+   * Read genomes from the given PackedGenomeStore where it has them, and pack the ones it
+   * doesn't as they're parsed.
+   */
+  public void setPackedStore(PackedGenomeStore packedStore) {
+    this.packedStore = packedStore;
+  }
+
+  /**
+   * Count how many times each k-mer occurs, for the weighted SimilarityMetrics.
+   */
+  public void setCounted(boolean counted) {
+    this.counted = counted;
+  }
+
+  /**
+   * Make each Organism's HyperLogLog for --prefilter on the ingestion threads, before it's
+   * stored in the index or spilled.
+   */
+  public void setPrefilter(boolean prefilter) {
+    this.prefilter = prefilter;
+  }
+
+  /**
+   * Ingest the given files.
+   * @return the Organisms, in the same order as <code>paths</code>, minus any bad files
+   * @throws IOException if a worker failed with something other than a bad input file
+   */
+  public List<Organism> run(List<Path> paths) throws IOException {
+    return runAll(paths).get(0);
+  }
+
+  /**
+   * Ingest the given files, for each of the k-mer lengths.
+   * @return a list of Organisms for each k-mer length, in the order they were given; each
+   *         in the same order as <code>paths</code>, minus any bad files
+   * @throws IOException if a worker failed with something other than a bad input file
+   */
+  public List<List<Organism>> runAll(List<Path> paths) throws IOException {
+    Organism[][] results = new Organism[paths.size()][];
+    BlockingQueue<GenomeStream> streams = new ArrayBlockingQueue<>(builderThreads);
+    AtomicInteger nextPath = new AtomicInteger(0);
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    Thread[] readers = new Thread[readerThreads];
+    for (int t = 0; t < readers.length; t++) {
+      readers[t] = new Thread(() -> {
+        try {
+          for (int slot = nextPath.getAndIncrement(); slot < paths.size() && failure.get() == null;
+               slot = nextPath.getAndIncrement()) {
+            read(slot, paths.get(slot), results, streams, failure);
+          }
+        } catch (Throwable e) {
+          failure.compareAndSet(null, e);
+        }
+      }, "fasta-reader-" + t);
+    }
+
+    Thread[] builders = new Thread[builderThreads];
+    for (int t = 0; t < builders.length; t++) {
+      builders[t] = new Thread(() -> {
+        FastaStreamParser parser = new FastaStreamParser(0); // we bring our own buffers
+        parser.setCounted(counted);
+        try {
+          for (GenomeStream stream = streams.take(); stream != END; stream = streams.take()) {
+            Organism[] o = stream.packed != null ? build(parser, stream) : build(parser, stream, failure);
+            if (o != null)
+              results[stream.slot] = o;
+          }
+        } catch (Throwable e) {
+          failure.compareAndSet(null, e);
+        }
+      }, "kmer-builder-" + t);
+    }
+
+    for (Thread t : readers)
+      t.start();
+    for (Thread t : builders)
+      t.start();
+
+    try {
+      for (Thread t : readers)
+        t.join();
+      for (Thread t : builders) {
+        // offer rather than put: a builder that died won't drain its END
+        while (t.isAlive() && ! streams.offer(END, 100, TimeUnit.MILLISECONDS))
+          ;
+      }
+      for (Thread t : builders)
+        t.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while ingesting FASTA files", e);
+    }
+
+    if (failure.get() != null)
+      throw new IOException("Failed ingesting FASTA files: " + failure.get(), failure.get());
+
+    List<List<Organism>> organisms = new ArrayList<>(kmerLens.length);
+    for (int k = 0; k < kmerLens.length; k++) {
+      List<Organism> forK = new ArrayList<>(results.length);
+      for (Organism[] o : results) {
+        if (o != null)
+          forK.add(o[k]);
+      }
+      organisms.add(forK);
+    }
+    return organisms;
+  }
+
+  /**
+   * Reader stage: gunzip one file into its stream's buffers.
+   */
+  private void read(int slot, Path p, Organism[][] results, BlockingQueue<GenomeStream> streams,
+                    AtomicReference<Throwable> failure) throws InterruptedException, IOException {
+    if (index != null) {
+      // only if every k-mer length is there; otherwise it's a parse anyway
+      Organism[] cached = new Organism[kmerLens.length];
+      try {
+        for (int k = 0; k < kmerLens.length && (k == 0 || cached[k - 1] != null); k++)
+          cached[k] = index.load(p, kmerLens[k], sketchSize, counted);
+      } catch (IOException e) {
+        System.err.println("Caught IO Exception reading index for FASTA file: " + p + ": " + e);
+      }
+      if (cached[cached.length - 1] != null) {
+        if (verbose) System.out.println("Loaded from index: " + p.toString());
+        if (metrics != null) metrics.fileLoaded();
+        results[slot] = spill(makeHlls(cached));
+        return;
+      }
+    }
+
+    if (packedStore != null) {
+      PackedGenome packed = null;
+      try {
+        packed = packedStore.load(p);
+      } catch (IOException e) {
+        System.err.println("Caught IO Exception reading packed genome for FASTA file: " + p + ": " + e);
+      }
+      if (packed != null) {
+        if (verbose) System.out.println("Loaded packed genome: " + p.toString());
+        offer(streams, new GenomeStream(slot, p, packed), failure);
+        return;
+      }
+    }
+
+    if (verbose) System.out.println("Parsing FASTA file: " + p.toString());
+    GenomeStream stream = new GenomeStream(slot, p, FastaStreamParser.gzipSizeHint(p)).allocateBuffers();
+
+    // back-pressure: wait for a builder to free up, unless they've given up
+    if (! offer(streams, stream, failure))
+      return;
+
+    IOException error = null;
+    try (InputStream in = new GZIPInputStream(new FileInputStream(p.toFile()), 1 << 16)) {
+      while (true) {
+        byte[] buf = take(stream.empty, failure);
+        if (buf == null)
+          return;
+        int len = readFully(in, buf);
+        if (len > 0 && ! offer(stream.full, new Chunk(buf, len, null), failure))
+          return;
+        if (len < buf.length)
+          break;
+      }
+    } catch (IOException e) {
+      error = e;
+    }
+    offer(stream.full, new Chunk(null, -1, error), failure);
+  }
+
+  /**
+   * Builder stage: stream one file's buffers through the parser.
+   * @return the Organism, or null if the file was bad or we're giving up
+   */
+  private Organism[] build(FastaStreamParser parser, GenomeStream stream, AtomicReference<Throwable> failure)
+          throws InterruptedException, IOException {
+    parser.begin(stream.path.getFileName().toString(), stream.genomeLengthHint, kmerLens, sketchSize);
+    PackedGenomeStore.Writer packer = null;
+    if (packedStore != null) {
+      try {
+        packer = packedStore.writer(stream.path);
+        parser.packInto(packer);
+      } catch (IOException e) {
+        System.err.println("Caught IO Exception packing FASTA file: " + stream.path + ": " + e);
+      }
+    }
+
+    long bases = 0;
+    long kmers = 0;
+    while (true) {
+      Chunk chunk = take(stream.full, failure);
+      if (chunk == null || (chunk.len < 0 && chunk.error != null)) {
+        if (packer != null)
+          packer.abort();
+        if (chunk != null)
+          System.err.println("Caught IO Exception parsing FASTA file: " + stream.path + ": " + chunk.error);
+        return null;
+      }
+      if (chunk.len < 0)
+        break;
+      parser.feed(chunk.buf, 0, chunk.len);
+      if (metrics != null) {
+        // once per buffer, so the counting is free
+        metrics.ingested(parser.bases() - bases, parser.kmers() - kmers);
+        bases = parser.bases();
+        kmers = parser.kmers();
+      }
+      stream.empty.put(chunk.buf); // can't block: it came from here
+    }
+
+    Organism[] o = parser.finishAll();
+    if (packer != null) {
+      try {
+        packer.finish(o[0]);
+      } catch (IOException e) {
+        System.err.println("Caught IO Exception packing FASTA file: " + stream.path + ": " + e);
+      }
+    }
+    return store(stream, o);
+  }
+
+  /**
+   * Builder stage for a packed genome: no chunks, just the codes.
+   */
+  private Organism[] build(FastaStreamParser parser, GenomeStream stream) throws IOException {
+    Organism[] o = parser.parseAll(stream.packed, kmerLens, sketchSize);
+    if (metrics != null)
+      metrics.ingested(parser.bases(), parser.kmers());
+    return store(stream, o);
+  }
+
+  /**
+   * Count newly built Organisms, one per k-mer length, store them in the index and spill them.
+   */
+  private Organism[] store(GenomeStream stream, Organism[] o) throws IOException {
+    if (metrics != null) metrics.fileParsed();
+    makeHlls(o);
+    if (index != null) {
+      try {
+        for (int k = 0; k < kmerLens.length; k++)
+          index.store(stream.path, kmerLens[k], o[k]);
+      } catch (IOException e) {
+        System.err.println("Caught IO Exception writing index for FASTA file: " + stream.path + ": " + e);
+      }
+    }
+    return spill(o);
+  }
+
+  /**
+   * Make the Organisms' HyperLogLogs now, with --prefilter, rather than in the compare
+   * phase (or never, for a spilled stand-in).
+   */
+  private Organism[] makeHlls(Organism[] o) {
+    if (prefilter) {
+      for (Organism organism : o)
+        organism.getHll(); // null for a sketch, which --prefilter doesn't allow anyway
+    }
+    return o;
+  }
+
+  /**
+   * Swap Organisms for their spilled stand-ins, if we're spilling. Unlike a bad input
+   * file, failing to spill fails the whole run.
+   */
+  private Organism[] spill(Organism[] o) throws IOException {
+    if (spill != null) {
+      for (int k = 0; k < o.length; k++)
+        o[k] = spill.spill(o[k]);
+    }
+    return o;
+  }
+
+  /**
+   * Fill buf from in, returning fewer bytes than buf.length only at the end of the input.
+   */
+  private static int readFully(InputStream in, byte[] buf) throws IOException {
+    int len = 0;
+    int n;
+    while (len < buf.length && (n = in.read(buf, len, buf.length - len)) > 0)
+      len += n;
+    return len;
+  }
+
+  // blocking put/take which give up (returning false/null) once some other worker has failed
+
+  private static <T> boolean offer(BlockingQueue<T> queue, T item, AtomicReference<Throwable> failure)
+          throws InterruptedException {
+    while (! queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+      if (failure.get() != null)
+        return false;
+    }
+    return true;
+  }
+
+  private static <T> T take(BlockingQueue<T> queue, AtomicReference<Throwable> failure)
+          throws InterruptedException {
+    T item;
+    while ((item = queue.poll(100, TimeUnit.MILLISECONDS)) == null) {
+      if (failure.get() != null)
+        return null;
+    }
+    return item;
+  }
+
+}
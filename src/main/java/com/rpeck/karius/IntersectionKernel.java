@@ -0,0 +1,23 @@
+package com.rpeck.karius;
+
+/**
+ * A drop-in replacement for the linear merge kernels of SortedLongArrays, e.g. the
+ * SIMD one in src/vector (VectorIntersection), which SortedLongArrays loads if it can.
+ * Implementations must give exactly the same answers as
+ * {@link SortedLongArrays#mergeCount(long[], long[])} and
+ * {@link SortedLongArrays#mergeCountAtLeast(long[], long[], int)}.
+ */
+interface IntersectionKernel {
+
+  /**
+   * Count the elements common to two sorted, duplicate-free arrays.
+   */
+  int mergeCount(long[] a, long[] b);
+
+  /**
+   * Like {@link #mergeCount(long[], long[])}, but free to stop as soon as the count can't
+   * reach <code>required</code>, returning some number less than that.
+   */
+  int mergeCountAtLeast(long[] a, long[] b, int required);
+
+}
@@ -0,0 +1,255 @@
+package com.rpeck.karius;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Output-sensitive all-vs-all comparison through an inverted index from each k-mer (or
+ * sketch hash) to the list of organisms which contain it.<p>
+ *
+ * In a typical database most pairs of genomes share almost no k-mers, but
+ * BlockedComparisonEngine still merges the full k-mer arrays of all n^2 / 2 pairs. Here we
+ * instead:
+ * <ol>
+ *   <li>k-way merge all the Organisms' sorted arrays into posting lists: for each
+ *   distinct k-mer, the ascending ids of the organisms which have it. K-mers which
+ *   only one organism has can't contribute to any pair, so they're dropped, and the
+ *   k-mers themselves are never needed again, so only the ids are kept.</li>
+ *   <li>for each organism i, walk the posting lists it's in and count, in a primitive
+ *   per-thread accumulator indexed by organism, how many k-mers it shares with each
+ *   organism j &gt; i.</li>
+ *   <li>apply the threshold to the organisms which were touched, as the final filter, and
+ *   push the ones which pass to the ResultSink in order of j. Each organism's query is
+ *   a batch of its own.</li>
+ * </ol>
+ * The cost is proportional to the number of shared (k-mer, pair) occurrences rather than
+ * the number of pairs, and pairs which share nothing cost nothing at all.<p>
+ *
+ * The counts are exact intersection sizes for exact k-mer sets. For sketches they're
+ * only the number of shared hashes, which isn't the bottom-k estimate, so the pairs
+ * with any shared hash are re-scored with Organism.intersectionCount. A pair which
+ * shares no hashes has an estimated Jaccard of 0 anyway.<p>
+ *
+ * Memory is one int per (k-mer, organism) posting which survives, plus another per
+ * posting for the per-organism view of them, so this is best for sketches or for
+ * databases of mostly unrelated genomes.
+ */
+public class InvertedIndexEngine implements ComparisonEngine {
+  private final int threads;
+  private SimilarityMetric metric = SimilarityMetric.AVERAGE;
+
+  /**
+   * @param threads number of worker threads for the queries
+   */
+  public InvertedIndexEngine(int threads) {
+    if (threads <= 0)
+      throw new IllegalArgumentException("Number of threads must be > 0: " + threads);
+    this.threads = threads;
+  }
+
+  /**
+   * @throws IllegalArgumentException for a weighted metric: the posting lists only count shared k-mers
+   */
+  @Override
+  public void setMetric(SimilarityMetric metric) {
+    if (metric.isWeighted())
+      throw new IllegalArgumentException("The inverted index engine can't use the weighted metric " + metric.name());
+    this.metric = metric;
+  }
+
+  @Override
+  public void compare(List<Organism> organisms, int firstNew, float threshold, ResultSink sink) {
+    Organism[] orgs = organisms.toArray(new Organism[0]);
+    for (Organism o : orgs)
+      o.freeze(); // freeze() isn't thread safe, so do it before sharing them
+
+    Index index = Index.build(orgs);
+
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      Queries work = new Queries(orgs, index, firstNew, threshold, metric, sink);
+      pool.invoke(new InOrderTask(orgs.length, work::query));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * The sorted k-mers of an Organism, or the sorted hashes of its sketch.
+   */
+  static long[] valuesOf(Organism o) {
+    return o.isSketch() ? o.getSketch().hashes() : o.getKmers();
+  }
+
+  /**
+   * The posting lists, in two compressed sparse row views.<p>
+   *
+   * <code>postings</code> holds all the lists back to back, each in ascending organism
+   * order, with the last id of each list stored complemented (~id, so negative) to mark
+   * its end. For organism i, <code>positions[starts[i]] .. positions[starts[i + 1] - 1]</code>
+   * are the positions in <code>postings</code> where i occurs, other than at the end of
+   * a list: the organisms after it in the list are the ones it needs to be counted against.
+   */
+  static class Index {
+    final int[] postings;
+    final int[] starts;
+    final int[] positions;
+
+    private Index(int[] postings, int[] starts, int[] positions) {
+      this.postings = postings;
+      this.starts = starts;
+      this.positions = positions;
+    }
+
+    static Index build(Organism[] orgs) {
+      int n = orgs.length;
+      long[][] values = new long[n][];
+      for (int i = 0; i < n; i++)
+        values[i] = valuesOf(orgs[i]);
+
+      // k-way merge, with a binary heap of organism ids ordered by their current value
+      // (then by id, so that each posting list comes out in ascending order)
+      int[] cursors = new int[n];
+      int[] heap = new int[n];
+      int heapSize = 0;
+      for (int i = 0; i < n; i++) {
+        if (values[i].length > 0)
+          heap[heapSize++] = i;
+      }
+      for (int k = heapSize / 2 - 1; k >= 0; k--)
+        siftDown(heap, heapSize, k, values, cursors);
+
+      int[] postings = new int[Math.max(16, n)];
+      int size = 0;
+      int[] counts = new int[n]; // non-final occurrences of each organism
+      int[] list = new int[Math.max(1, n)];
+
+      while (heapSize > 0) {
+        long value = values[heap[0]][cursors[heap[0]]];
+        int listSize = 0;
+        while (heapSize > 0 && values[heap[0]][cursors[heap[0]]] == value) {
+          int i = heap[0];
+          list[listSize++] = i;
+          if (++cursors[i] == values[i].length)
+            heap[0] = heap[--heapSize];
+          siftDown(heap, heapSize, 0, values, cursors);
+        }
+        if (listSize < 2)
+          continue; // nobody to share it with
+
+        if (size + listSize > postings.length) {
+          if (size + (long) listSize > Integer.MAX_VALUE - 8)
+            throw new IllegalStateException("Too many shared k-mers for an inverted index; use --engine blocked");
+          postings = Arrays.copyOf(postings, (int) Math.min(Integer.MAX_VALUE - 8,
+                  Math.max(size + (long) listSize, postings.length + (long) (postings.length >> 1))));
+        }
+        for (int k = 0; k < listSize - 1; k++) {
+          postings[size++] = list[k];
+          counts[list[k]]++;
+        }
+        postings[size++] = ~list[listSize - 1];
+      }
+
+      // transpose into the per-organism view
+      int[] starts = new int[n + 1];
+      for (int i = 0; i < n; i++)
+        starts[i + 1] = starts[i] + counts[i];
+      int[] fill = Arrays.copyOf(starts, n);
+      int[] positions = new int[starts[n]];
+      for (int p = 0; p < size; p++) {
+        int id = postings[p];
+        if (id >= 0)
+          positions[fill[id]++] = p;
+      }
+
+      return new Index(Arrays.copyOf(postings, size), starts, positions);
+    }
+
+    private static void siftDown(int[] heap, int heapSize, int k, long[][] values, int[] cursors) {
+      int item = heap[k];
+      long itemValue = k < heapSize ? values[item][cursors[item]] : 0;
+      while (true) {
+        int child = 2 * k + 1;
+        if (child >= heapSize)
+          break;
+        if (child + 1 < heapSize && less(heap[child + 1], heap[child], values, cursors))
+          child++;
+        int c = heap[child];
+        long childValue = values[c][cursors[c]];
+        if (itemValue < childValue || (itemValue == childValue && item < c))
+          break;
+        heap[k] = c;
+        k = child;
+      }
+      if (k < heapSize)
+        heap[k] = item;
+    }
+
+    private static boolean less(int a, int b, long[][] values, int[] cursors) {
+      long va = values[a][cursors[a]];
+      long vb = values[b][cursors[b]];
+      return va < vb || (va == vb && a < b);
+    }
+  }
+
+  // everything the tasks share: the index, and per-thread accumulators
+  private static class Queries {
+    final Organism[] orgs;
+    final Index index;
+    final int firstNew;
+    final float threshold;
+    final SimilarityMetric metric;
+    final ResultSink sink;
+    // per-thread query state: shared counts by organism, and which ones we touched
+    final ThreadLocal<int[]> counts;
+    final ThreadLocal<int[]> touched;
+
+    Queries(Organism[] orgs, Index index, int firstNew, float threshold, SimilarityMetric metric, ResultSink sink) {
+      this.orgs = orgs;
+      this.index = index;
+      this.firstNew = firstNew;
+      this.threshold = threshold;
+      this.metric = metric;
+      this.sink = sink;
+      this.counts = ThreadLocal.withInitial(() -> new int[orgs.length]);
+      this.touched = ThreadLocal.withInitial(() -> new int[orgs.length]);
+    }
+
+    void query(int i) {
+      int[] counts = this.counts.get();
+      int[] touched = this.touched.get();
+      int[] postings = index.postings;
+      int minJ = Math.max(i + 1, firstNew);
+      int touchedCount = 0;
+
+      for (int k = index.starts[i]; k < index.starts[i + 1]; k++) {
+        for (int p = index.positions[k] + 1; ; p++) {
+          int id = postings[p];
+          int j = id < 0 ? ~id : id;
+          if (j >= minJ && counts[j]++ == 0)
+            touched[touchedCount++] = j;
+          if (id < 0)
+            break;
+        }
+      }
+
+      // the final filter: the threshold on the pairs which share anything at all
+      Arrays.sort(touched, 0, touchedCount);
+      ResultSink.Producer producer = sink.producer();
+      Organism first = orgs[i];
+      for (int t = 0; t < touchedCount; t++) {
+        int j = touched[t];
+        Organism second = orgs[j];
+        int intersection = first.isSketch() ? first.intersectionCount(second) : counts[j];
+        counts[j] = 0;
+        if (metric.isSimilar(first, second, intersection, threshold))
+          producer.add(i, j, metric.score(first, second, intersection));
+      }
+      // every pair (i, j >= minJ) was compared, even the ones which shared nothing
+      producer.compared(Math.max(0, orgs.length - minJ));
+      producer.endBatch(i, true);
+    }
+  }
+
+}
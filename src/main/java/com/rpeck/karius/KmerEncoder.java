@@ -0,0 +1,220 @@
+package com.rpeck.karius;
+
+import java.util.Arrays;
+
+/**
+ * Rolling k-mer encoder which packs A, C, G and T into 2 bits apiece so that a k-mer
+ * can be carried around as a single long rather than as a String.<p>
+ *
+ * Bases are pushed in one at a time, and the encoder keeps both the forward k-mer and
+ * its reverse complement up to date in O(1). There's no allocation per base and no
+ * O(k) rehash of the whole window. The value handed back is the <i>canonical</i>
+ * k-mer: the smaller of the two strands, so that the same stretch of DNA matches no
+ * matter which strand a given assembly happens to report.<p>
+ *
+ * For k <= 32 the canonical k-mer is exact: it's simply the packed bases, so there
+ * are no collisions at all. For k > 32 the bases no longer fit in a long, so we fall
+ * back to a rolling ntHash-style 64-bit hash of each strand and take the smaller of
+ * the two. That's not exact, but it's a lot better than the 32-bit String.hashCode()
+ * we used to use.<p>
+ *
+ * Each base's seed is rotated by its position in the window. A plain 64-bit rotation
+ * repeats every 64 positions, so for k > 64 two bases 64 apart would get the same
+ * rotation: swapping them wouldn't change the hash, and two equal ones would cancel out.
+ * As in ntHash2, the rotation is split instead: the low 33 bits and the high 31 bits
+ * rotate separately, which repeats only every 33 * 31 = 1023 positions.<p>
+ *
+ * Any character other than A, C, G or T (in either case) breaks the window, e.g. IUPAC
+ * codes. The next k-mer is emitted once k valid bases have been seen since the break.
+ */
+public class KmerEncoder {
+  /** Largest k for which k-mers are packed exactly into a long. */
+  public static final int MAX_PACKED_K = 32;
+
+  /**
+   * Identifies the encoding produced by this class. Bump this if the packing or the
+   * k > 32 hash ever changes, so that anything persisted with the old scheme is ignored.
+   */
+  public static final int HASH_SCHEME = 2; // 2 split the rotation for k > 64
+
+  /**
+   * The HASH_SCHEME that k-mers of length <code>k</code> are encoded with. The packing for
+   * k <= 32 has never changed, so those are always scheme 1.
+   */
+  public static int hashScheme(int k) {
+    return k <= MAX_PACKED_K ? 1 : HASH_SCHEME;
+  }
+
+  static final byte INVALID = -1;
+
+  /** 2-bit code for each ASCII character, or INVALID. Complement of code c is 3 - c. */
+  private static final byte[] CODES = new byte[256];
+  static {
+    Arrays.fill(CODES, INVALID);
+    CODES['A'] = CODES['a'] = 0;
+    CODES['C'] = CODES['c'] = 1;
+    CODES['G'] = CODES['g'] = 2;
+    CODES['T'] = CODES['t'] = 3;
+  }
+
+  /** Per-base seeds for the k > 32 rolling hash, indexed by 2-bit code (from ntHash). */
+  private static final long[] SEEDS = {
+          0x3c8bfbb395c60474L, // A
+          0x3193c18562a02b4cL, // C
+          0x20323ed082572324L, // G
+          0x295549f54be24456L  // T
+  };
+
+  private final int k;
+  private final long mask;     // low 2k bits, for k <= 32
+  private final int revShift;  // where the newest base's complement goes in the reverse k-mer
+
+  // the seeds rotated into place for the k > 32 hash, by 2-bit code
+  private final long[] forwardOut; // the base leaving the forward hash
+  private final long[] reverseIn;  // the complement of the base entering the reverse hash
+  private final long[] reverseOut; // the complement of the base leaving it
+
+  // ring of the last k codes, so we know which base is rolling out of the hash (k > 32 only)
+  private final byte[] window;
+  private int windowPos = 0;
+
+  private long forward = 0;
+  private long reverse = 0;
+  private int valid = 0;       // number of valid bases since the last reset, capped at k
+
+  /**
+   * Create an encoder for k-mers of the given length.
+   * @param k k-mer length; must be > 0
+   */
+  public KmerEncoder(int k) {
+    if (k <= 0)
+      throw new IllegalArgumentException("k-mer length must be > 0: " + k);
+
+    this.k = k;
+    this.mask = k >= MAX_PACKED_K ? -1L : (1L << (2 * k)) - 1;
+    this.revShift = 2 * (k - 1);
+    this.window = k > MAX_PACKED_K ? new byte[k] : null;
+    this.forwardOut = new long[4];
+    this.reverseIn = new long[4];
+    this.reverseOut = new long[4];
+    for (int code = 0; code < 4; code++) {
+      forwardOut[code] = splitRotateLeft(SEEDS[code], k);
+      reverseIn[code] = splitRotateLeft(SEEDS[3 - code], k - 1);
+      reverseOut[code] = splitRotateRight(SEEDS[3 - code]);
+    }
+  }
+
+  public int getK() {
+    return k;
+  }
+
+  /**
+   * Is k small enough that the canonical k-mers are exact rather than hashes?
+   */
+  public boolean isExact() {
+    return k <= MAX_PACKED_K;
+  }
+
+  /**
+   * Return the 2-bit code for a character, or a negative value if it's not one of
+   * A, C, G or T.
+   */
+  static int code(int c) {
+    return c < CODES.length ? CODES[c] : INVALID;
+  }
+
+  /**
+   * Forget the current window, e.g. at the start of a new fragment or contig.
+   */
+  public void reset() {
+    forward = 0;
+    reverse = 0;
+    valid = 0;
+    windowPos = 0;
+  }
+
+  /**
+   * Roll the next character into the window.
+   *
+   * @param c the next character of the sequence, as an unsigned byte or char value
+   * @return true if the window now holds a full k-mer, available from {@link #canonical()}
+   */
+  public boolean push(int c) {
+    int code = code(c);
+    if (code < 0) {
+      reset();
+      return false;
+    }
+    return pushCode(code);
+  }
+
+  /**
+   * Roll the next base into the window, already as a 2-bit code (0 to 3 for A, C, G and
+   * T), e.g. from a PackedGenome. There's no such thing as an invalid code here; call
+   * {@link #reset()} for an ambiguous base.
+   *
+   * @return true if the window now holds a full k-mer, available from {@link #canonical()}
+   */
+  public boolean pushCode(int code) {
+    if (window == null) {
+      forward = ((forward << 2) | code) & mask;
+      reverse = (reverse >>> 2) | ((long) (3 - code) << revShift);
+    } else {
+      forward = splitRotateLeft(forward) ^ SEEDS[code];
+      reverse = splitRotateRight(reverse) ^ reverseIn[code];
+      if (valid == k) {
+        int out = window[windowPos];
+        forward ^= forwardOut[out];
+        reverse ^= reverseOut[out];
+      }
+      window[windowPos] = (byte) code;
+      windowPos = windowPos + 1 == k ? 0 : windowPos + 1;
+    }
+
+    if (valid < k)
+      valid++;
+    return valid == k;
+  }
+
+  private static final long LOW_33 = (1L << 33) - 1;
+  private static final long LOW_31 = (1L << 31) - 1;
+
+  /**
+   * Rotate the low 33 bits and the high 31 bits of <code>x</code> left by one bit, each
+   * within itself (ntHash2's srol).
+   */
+  static long splitRotateLeft(long x) {
+    long wrapped = ((x >>> 63) << 33) | ((x >>> 32) & 1);
+    return ((x << 1) & ~(1L << 33)) | wrapped;
+  }
+
+  /**
+   * The inverse of {@link #splitRotateLeft(long)}.
+   */
+  static long splitRotateRight(long x) {
+    long wrapped = ((x & 1) << 32) | (((x >>> 33) & 1) << 63);
+    return ((x >>> 1) & ~(1L << 32)) | wrapped;
+  }
+
+  /**
+   * {@link #splitRotateLeft(long)} <code>n</code> times.
+   */
+  static long splitRotateLeft(long x, int n) {
+    int lowBits = n % 33;
+    int highBits = n % 31;
+    long low = x & LOW_33;
+    long high = x >>> 33;
+    low = ((low << lowBits) | (low >>> (33 - lowBits))) & LOW_33;
+    high = ((high << highBits) | (high >>> (31 - highBits))) & LOW_31;
+    return (high << 33) | low;
+  }
+
+  /**
+   * Return the canonical form of the current k-mer: the smaller (unsigned) of the forward
+   * and reverse-complement encodings. Only meaningful after {@link #push(int)} returned true.
+   */
+  public long canonical() {
+    return Long.compareUnsigned(forward, reverse) <= 0 ? forward : reverse;
+  }
+
+}
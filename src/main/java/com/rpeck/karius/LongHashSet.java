@@ -0,0 +1,224 @@
+package com.rpeck.karius;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing (linear probing) hash set of primitive longs, used to collect an
+ * Organism's k-mers during ingestion.<p>
+ *
+ * A HashSet&lt;Integer&gt; costs roughly 40-50 bytes per element once you add up the boxed
+ * Integer and the HashMap node. This costs 8 bytes per slot, so 8 / loadFactor bytes per
+ * element, and nothing at all is allocated per add. Once ingestion is done
+ * {@link #toSortedArray()} produces the compact frozen form: a sorted long[] with no
+ * empty slots, which is also what the intersection code wants.<p>
+ *
+ * Slots hold the key itself, with 0 meaning "empty". Since 0 is a perfectly good k-mer
+ * (AAAA...) it's tracked separately in <code>containsZero</code>.<p>
+ *
+ * A counting set also keeps how many times each key was added, for the weighted
+ * SimilarityMetrics: an unsigned short per slot, parallel to the keys, which saturates
+ * at MAX_COUNT. That's 2 more bytes per slot, and {@link #countsOf(long[])} gives them
+ * back in the order of the frozen keys.<p>
+ *
+ * Not thread safe.
+ */
+public class LongHashSet {
+  public static final float DEFAULT_LOAD_FACTOR = 0.7f;
+
+  /** Counts stop here: they're unsigned shorts. Read them with <code>count &amp; 0xffff</code>. */
+  public static final int MAX_COUNT = 0xffff;
+
+  private static final int MIN_CAPACITY = 16;
+  private static final int MAX_CAPACITY = 1 << 30;
+  private static final long PHI = 0x9E3779B97F4A7C15L; // 2^64 / golden ratio, for Fibonacci hashing
+
+  private final float loadFactor;
+  private final boolean counting;
+
+  private long[] slots;
+  private short[] counts;     // parallel to slots if we're counting, otherwise null
+  private int shift;          // 64 - log2(slots.length); we take the top bits of the hash
+  private int resizeAt;
+  private int size = 0;       // number of keys in slots; doesn't include the zero key
+  private boolean containsZero = false;
+  private int zeroCount = 0;
+
+  /**
+   * Create an empty set with room for a default number of elements.
+   */
+  public LongHashSet() {
+    this(MIN_CAPACITY, DEFAULT_LOAD_FACTOR);
+  }
+
+  /**
+   * Create an empty set presized so that it won't need to grow until it holds more than
+   * <code>expectedSize</code> elements.
+   *
+   * @param expectedSize number of elements we expect to add, e.g. the genome length in bases
+   * @param loadFactor fraction of the slots that may be filled before growing, in (0, 1)
+   */
+  public LongHashSet(long expectedSize, float loadFactor) {
+    this(expectedSize, loadFactor, false);
+  }
+
+  /**
+   * Like {@link #LongHashSet(long, float)}, optionally counting how many times each key is added.
+   */
+  public LongHashSet(long expectedSize, float loadFactor, boolean counting) {
+    if (! (loadFactor > 0.0f && loadFactor < 1.0f))
+      throw new IllegalArgumentException("Load factor must be between 0 and 1: " + loadFactor);
+    this.loadFactor = loadFactor;
+    this.counting = counting;
+    allocate(capacityFor(expectedSize, loadFactor));
+  }
+
+  private static int capacityFor(long expectedSize, float loadFactor) {
+    long needed = (long) Math.ceil(Math.max(expectedSize, 1) / (double) loadFactor);
+    if (needed > MAX_CAPACITY)
+      return MAX_CAPACITY;
+    return Math.max(MIN_CAPACITY, Integer.highestOneBit((int) needed - 1) << 1);
+  }
+
+  private void allocate(int capacity) {
+    slots = new long[capacity];
+    if (counting)
+      counts = new short[capacity];
+    shift = 64 - Integer.numberOfTrailingZeros(capacity);
+    resizeAt = Math.min(capacity - 1, (int) (capacity * (double) loadFactor));
+  }
+
+  private int slot(long key) {
+    return (int) ((key * PHI) >>> shift);
+  }
+
+  /**
+   * Add a key, counting it if this is a counting set.
+   * @return true if the key wasn't already present
+   */
+  public boolean add(long key) {
+    if (key == 0) {
+      if (counting && zeroCount < MAX_COUNT)
+        zeroCount++;
+      if (containsZero)
+        return false;
+      containsZero = true;
+      return true;
+    }
+
+    int mask = slots.length - 1;
+    for (int i = slot(key); ; i = (i + 1) & mask) {
+      long existing = slots[i];
+      if (existing == key) {
+        if (counting && counts[i] != (short) MAX_COUNT)
+          counts[i]++;
+        return false;
+      }
+      if (existing == 0) {
+        slots[i] = key;
+        if (counting)
+          counts[i] = 1;
+        if (++size >= resizeAt)
+          grow();
+        return true;
+      }
+    }
+  }
+
+  public boolean contains(long key) {
+    if (key == 0)
+      return containsZero;
+
+    int mask = slots.length - 1;
+    for (int i = slot(key); ; i = (i + 1) & mask) {
+      long existing = slots[i];
+      if (existing == key)
+        return true;
+      if (existing == 0)
+        return false;
+    }
+  }
+
+  /**
+   * How many times a key has been added, up to MAX_COUNT; 0 if it hasn't been.
+   * @throws IllegalStateException if this isn't a counting set
+   */
+  public int count(long key) {
+    if (! counting)
+      throw new IllegalStateException("This LongHashSet isn't counting");
+    if (key == 0)
+      return zeroCount;
+
+    int mask = slots.length - 1;
+    for (int i = slot(key); ; i = (i + 1) & mask) {
+      long existing = slots[i];
+      if (existing == key)
+        return counts[i] & 0xffff;
+      if (existing == 0)
+        return 0;
+    }
+  }
+
+  public boolean isCounting() {
+    return counting;
+  }
+
+  private void grow() {
+    if (slots.length == MAX_CAPACITY)
+      throw new IllegalStateException("LongHashSet is full: " + size + " elements");
+
+    long[] old = slots;
+    short[] oldCounts = counts;
+    allocate(old.length << 1);
+    int mask = slots.length - 1;
+    for (int o = 0; o < old.length; o++) {
+      long key = old[o];
+      if (key != 0) {
+        int i = slot(key);
+        while (slots[i] != 0)
+          i = (i + 1) & mask;
+        slots[i] = key;
+        if (counting)
+          counts[i] = oldCounts[o];
+      }
+    }
+  }
+
+  public int size() {
+    return containsZero ? size + 1 : size;
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /**
+   * Return the keys as a new, sorted (signed) array with no empty slots. This is the
+   * compact "frozen" form of the set.
+   */
+  public long[] toSortedArray() {
+    long[] sorted = new long[size()];
+    int n = 0;
+    if (containsZero)
+      sorted[n++] = 0;
+    for (long key : slots) {
+      if (key != 0)
+        sorted[n++] = key;
+    }
+    Arrays.sort(sorted);
+    return sorted;
+  }
+
+  /**
+   * Return the counts of the given keys, e.g. those from {@link #toSortedArray()}, as
+   * unsigned shorts in the same order. It's a lookup per key, which is cheaper than
+   * sorting the counts along with the keys.
+   * @throws IllegalStateException if this isn't a counting set
+   */
+  public short[] countsOf(long[] keys) {
+    short[] result = new short[keys.length];
+    for (int i = 0; i < keys.length; i++)
+      result[i] = (short) count(keys[i]);
+    return result;
+  }
+
+}
@@ -2,13 +2,14 @@ package com.rpeck.karius;
 
 import org.apache.commons.cli.CommandLine;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
 /**
  * kmers-matcher is a program to identify organisms that have similar genomes by
@@ -19,48 +20,135 @@ import java.util.Set;
  *   necessary for real datasets. I'll discuss those below.<p>
  *
  *   2. Generation of the k-mers from the input files is O(n) in the input space
- *   (O(lineLength - kmerSize))<p>
+ *   (O(contigLength - kmerSize)). Each record's lines are one contig, so k-mers span
+ *   the line breaks, and an IUPAC code only restarts the rolling window: we lose just
+ *   the k-mers which contain it, not the whole line.<p>
  *
- *   3. Standard Java Sets are used to hold hashes of each k-mer. Currently the
- *   hashes are 32 bits. Testing with real data is needed to determine whether there
- *   are too many collisions in the Sets. This can be done by replacing the Sets with
- *   Maps that point to the full k-mer Strings and doing a full-String compare if
- *   there's a write collision. In addition, this would be used to verify that
- *   k-mers identified by the set intersection weren't false matches.<p>
+ *   3. Each k-mer is packed 2 bits per base into a long by KmerEncoder, using the
+ *   canonical (smaller of forward and reverse complement) form so that both strands
+ *   match. For k <= 32 this is exact, so unlike the String.hashCode() we started with
+ *   there are no collisions at all. For k > 32 we use a rolling 64-bit hash, so
+ *   collisions are possible but unlikely.<p>
  *
- *   If there are too many collisions the first thing to do is try a better 32-bit
- *   String hash function: String.hashCode isn't the best. If that doesn't do well
- *   enough we can either replace the Sets with the Maps and always do full equality
- *   tests, or move to a 64-bit hash. Both would be at a linear cost of both space and
- *   time.<p>
+ *   --kmer can also be a list, e.g. 16,21,31, for sweeping k. Each genome is still only
+ *   read and parsed once: a MultiKmerEncoder keeps one window of the last 32 bases, and
+ *   every k <= 32 is a mask and a shift of it, so we get an Organism per k from the one
+ *   pass. Then the pairs are compared once per k, writing a matrix (and manifest) for each
+ *   to the output path + ".k" + k. It takes the memory of all the k-mer sets at once,
+ *   though; with --memory-budget they're all spilled.<p>
  *
  *   4. The number of comparisons is n^2 - n, so that operation is likely to be
- *   the bottleneck. Java Set intersection might not be a fast enough operation. If not,
- *   I'd first look around for a Set implementation that uses hashes as an index into
- *   a bit array; I forget what this technique is called. If there isn't a good one,
- *   write one. Set intersection could also be parallelized easily, since intersection is
- *   a read-only operation and we really only need a count of matches.<p>
+ *   the bottleneck. Once ingestion is done each Organism's k-mers are frozen into a
+ *   sorted long[], and we only need the size of each intersection, so it's counted by
+ *   merging the two arrays (or galloping through the larger one if the sizes are very
+ *   different) without allocating anything. On JDK 16+ run with --add-modules
+ *   jdk.incubator.vector, the merge compares a vector register's worth of each array at
+ *   a time (see VectorIntersection in src/vector).<p>
  *
- *   5. The parsing of the input files, and generation of the Organism objects, can
- *   be trivially parallelized. The only contention would be on the list of Organisms.<p>
+ *   With a high --threshold most pairs can't pass, and we can often tell without
+ *   looking at their k-mers: the intersection can't be bigger than the smaller genome.
+ *   So the organisms are sorted by k-mer count before comparing, a row of the pair
+ *   matrix stops at the first genome which is too big for it, and the pairs which are
+ *   left are intersected only until it's clear they can't reach the count they need
+ *   (see SizePruning). The output is in order of genome size rather than file order.<p>
  *
- *   6. The pairwise comparisons can be dispatched to multiple threads, but most likely
- *   it's good enough to have one controller thread walking the pairs while the
- *   parallel set intersection gives you all the parallelism you can handle.<p>
+ *   --prefilter goes further: each Organism gets a 4 KB HyperLogLog of its k-mers while
+ *   it's ingested (and cached with it by --index), and before intersecting a pair we
+ *   estimate the size of their union from the two HyperLogLogs, which bounds the
+ *   intersection without touching the k-mers. It's a probabilistic bound, so a pair
+ *   within a few percent of the threshold can very occasionally be lost.<p>
+ *
+ *   If exact answers aren't needed, --sketch-size N keeps only a bottom-k MinHash
+ *   sketch of the N smallest k-mer hashes for each organism. Comparing two sketches
+ *   is O(N) rather than O(genome size), and the Jaccard similarity J it estimates
+ *   gives the same average-normalized score as the exact mode: 2J / (1 + J).<p>
+ *
+ *   The average isn't always the right normalization, though: a small genome which is
+ *   wholly inside a big one only scores about 2 * small / (small + big). --metric picks
+ *   another SimilarityMetric: containment (of the smaller in the larger), min-containment,
+ *   jaccard, or the mash distance. They're all functions of the two k-mer counts and the
+ *   intersection, so they cost the same, and --threshold is in the metric's units.<p>
+ *
+ *   Those all treat a genome as a set, so a k-mer in 50 copies of a repeat counts the same
+ *   as one which occurs once. --metric weighted-jaccard (sum of the smaller counts over
+ *   sum of the larger) and cosine (of the count vectors) weigh each k-mer by how often it
+ *   occurs. Its count is kept in an unsigned short, parallel to the sorted k-mers, which
+ *   saturates at 65535; that's 10 bytes a k-mer instead of 8, and only when the metric
+ *   needs them. Scoring a pair is still one merge of the two arrays, but there's no
+ *   pruning by size, and the counts don't go into sketches, spills or posting lists.<p>
+ *
+ *   5. The parsing of the input files, and generation of the Organism objects, is
+ *   done by IngestionPipeline: a pool of reader threads gunzips files into a few
+ *   reusable buffers apiece, and a pool of builder threads streams those buffers through
+ *   a FastaStreamParser straight into the k-mer encoder. Bounded queues between the
+ *   stages provide back-pressure, so memory stays bounded no matter how far the
+ *   readers could get ahead. --threads controls the pool sizes.<p>
+ *
+ *   With --metrics FILE a Metrics object counts bases and k-mers per second as the
+ *   files are ingested, and pairs per second (and an ETA) as they're compared, printing
+ *   a progress line to stderr every few seconds. At the end it writes a JSON summary
+ *   with the wall and CPU time of each phase, the heap high-water mark, and each
+ *   organism's k-mer count and duplicateHashes. The counters are striped LongAdders
+ *   which are only bumped per buffer or per batch, so they cost next to nothing.<p>
+ *
+ *   With --index DIR each Organism's frozen k-mers (or sketch) are cached on disk,
+ *   keyed by the FASTA file's path, size and mtime along with k and the hash scheme.
+ *   Re-runs memory-map the cached entries instead of re-parsing unchanged files.<p>
+ *
+ *   The index only helps with the same k, though. With --packed-store DIR the first run
+ *   also writes each genome out 2 bits per base (see PackedGenomeStore), with its contig
+ *   boundaries and runs of ambiguous bases on the side, and later runs with any --kmer
+ *   map that and stream the codes into the encoder: no gunzip, no text, and a genome
+ *   takes 1/8 of the space it does as Java chars.<p>
+ *
+ *   Each output file has a sidecar manifest (see MatrixManifest) listing the organisms
+ *   it covers. When a batch of new genomes arrives, --append compares only the new x old
+ *   and new x new pairs and appends them to the existing output, which is O(N * delta)
+ *   rather than O(N^2). It's best used with --index so the old genomes aren't re-parsed.<p>
+ *
+ *   The output is text lines like "A X B: 0.93" by default. --output-format binary
+ *   instead writes a compact sparse matrix (see BinaryMatrixWriter): an organism table
+ *   and int/int/float COO records, finalized into a symmetric CSR matrix, which
+ *   SimilarityMatrixReader memory-maps so downstream jobs can read one organism's
+ *   neighbors without scanning the whole file.<p>
+ *
+ *   6. Since intersection is a read-only operation the pairwise comparisons are
+ *   dispatched to multiple threads by BlockedComparisonEngine: it tiles the upper
+ *   triangle of the pair matrix into cache-sized blocks and runs them on a
+ *   work-stealing ForkJoinPool (--threads of them). Each worker keeps the pairs
+ *   which pass the threshold in its own ring buffer, which a ResultSink drains on a
+ *   separate writer thread, so formatting and I/O never hold up the comparisons. The
+ *   sink reorders the results by block, so the output is the same for any number of
+ *   threads, and it flushes as it goes so partial results survive a crash.<p>
+ *
+ *   Most pairs of genomes share almost no k-mers, though, so with --engine inverted
+ *   InvertedIndexEngine instead builds posting lists from each shared k-mer to the
+ *   organisms which have it, and counts the shared k-mers of only the pairs which
+ *   actually co-occur. That's output-sensitive rather than O(n^2).<p>
  *
  *   7. If multithreaded-on-one-CPU doesn't give you enough speedup then the work
  *   should be partitioned at a much coarser granularity. E.g., one could break up
  *   the dataset into 4 pieces, and have one machine compare chunk A against chunks
  *   B-D and so on.<p>
  *
+ *   That's --shard i/N: N processes, on one machine or many, each compare a contiguous
+ *   1 / N of the blocks of the pair matrix and write their pairs to a binary partial
+ *   output, then "kmer-matcher merge --output OUTPUT --shards N" combines them. The
+ *   shards only coordinate through marker files next to the output; see Shards.<p>
+ *
  *   8. It's a harder problem to distribute if the amount of DRAM for the Sets exceeds
  *   the size of the biggest machines, since you still have to compare all-against-all...
- *   Hopefully it doesn't come to that.<p>
+ *   It did come to that, so with --memory-budget SIZE each Organism's frozen k-mers are
+ *   spilled to a temp file next to the output (an OrganismSpill) as soon as it's
+ *   ingested, and OutOfCoreEngine reads them back in chunks of SIZE / 2, comparing a
+ *   pair of chunks at a time. Only two chunks are ever in the heap, so the run fits in
+ *   the budget (plus one k-mer set under construction per --threads during ingestion)
+ *   however big the database is.<p>
  *
- *   9. If the amount of text is huge then take care to make sure the FastaFile objects
- *   are GC'd as the k-mers are computed. They're not needed after that. We could also
- *   represent the characters as 2-bit values in a bit string, rather than 16-bit Java
- *   chars.<p><p>
+ *   9. Genomes are never held in memory as text: FastaStreamParser works on raw bytes
+ *   and feeds each base into KmerEncoder, which packs it into 2 bits. FastaFile, which
+ *   holds a genome as a List of Strings, is only used by tests and tools which want
+ *   the individual lines.<p><p>
  *
  *   We can use the similarity information we generated here to help identify
  *   mislabelled organisms, given a map of organism <-> species.<p>
@@ -72,90 +160,426 @@ import java.util.Set;
  *   each organism in the "cetacean" cluster. This average could actually be
  *   computed in very small time and space overhead by maintaining a sum and count
  *   for each cluster and updating it while the pairwise similarities are first
- *   computed, rather than waiting until the complete similaries matrix is computed.
+ *   computed, rather than waiting until the complete similaries matrix is computed.<p>
+ *
+ *   That's what --clusters does: given an organism -> species TSV, a ClusterAggregator
+ *   keeps those sums and counts (and maxes) as the results stream by, and at the end
+ *   writes a report of the organisms which are more similar to some other species
+ *   than to their own, ranked by how much, to the output path + ".mislabels.tsv".
  */
 public class Main {
+  static final String MISLABELS_SUFFIX = ".mislabels.tsv";
 
   /**
    * Compute organisms that have similar genomes by:<p>
    *   reading a directory of FASTA files for various organisms<p>
-   *   computing hashes for all the subsequences of size --kmer and putting those in Sets<p>
-   *   computing the Set intersection for each pair of organisms<p>
+   *   computing canonical k-mers for all the subsequences of size --kmer and putting those in Sets<p>
+   *   counting the k-mers in the intersection for each pair of organisms<p>
    *   comparing the size of the intersection to the average number of kmers in the pair and
    *     outputting the pair if it's a larger fraction than --threshold<p>
    *
+   * Only the pairs which include at least one organism at index >= firstNew are compared,
+   * which is what --append uses to compare only new x old and new x new pairs: O(N * delta)
+   * rather than O(N^2). The similar pairs are written to <code>writer</code> by a
+   * ResultSink, on a thread of its own as they're found, flushing as it goes, so a long
+   * run can be tailed. The writer is left open.<p>
+   *
    *   TODO: move exception handling into here if we want to generate partial results on IOException.
-   *   TODO: break up into generation and output to make it easier to unit test, and
-   *     make it streaming between the generation and the output.
    *
-   * @param outputPath local file path to which we should write the sparse similarity matrix
-   * @param organisms list of Organism objects so pairwise-compare
+   * @param organisms list of Organism objects so pairwise-compare; old ones first
+   * @param firstNew index of the first organism which isn't already in the output; 0 for all pairs
    * @param threshold fraction that two organisms need to be similar before we will write them to the output
+   * @param engine the engine to compare with
+   * @param writer where to write the similar pairs, in any --output-format
+   * @param metrics where to count the pairs compared and written, as the "compare" phase; or null
+   */
+  protected static void computeIntersectionsAndWriteOutput(List<Organism>organisms,
+                                                           int firstNew,
+                                                           float threshold,
+                                                           ComparisonEngine engine,
+                                                           SimilarityMatrixWriter writer,
+                                                           Metrics metrics) throws IOException {
+    if (metrics != null) // adding up over the k-mer lengths, with several --kmer
+      metrics.setPairsTotal(metrics.pairsTotal() + engine.pairsToCompare(organisms, firstNew));
+
+    // generate and evaluate all intersections; the results are written as they're found
+    Metrics.Phase phase = startPhase(metrics, Metrics.COMPARE);
+    try (ResultSink sink = new ResultSink(writer, metrics)) {
+      engine.compare(organisms, firstNew, threshold, sink);
+    }
+    finally {
+      endPhase(phase);
+    }
+  }
+
+  /**
+   * Like {@link #computeIntersectionsAndWriteOutput(List, int, float, ComparisonEngine, SimilarityMatrixWriter, Metrics)},
+   * writing a text matrix to <code>outputPath</code>, e.g. for tests. If firstNew is > 0
+   * the results are appended to the existing output rather than replacing it.
+   *
+   * @param outputPath local file path to which we should write the sparse similarity matrix
    */
   protected static void computeIntersectionsAndWriteOutput(String outputPath,
                                                            List<Organism>organisms,
-                                                           float threshold) throws IOException {
-
-    File f = new File(outputPath);
-    File d = f.getParentFile();
-    if (! d.exists()) {
-      d.mkdirs();
-    }
-
-    BufferedWriter writer = new BufferedWriter(new FileWriter(f));
-
-    // generate and evaluate all intersections
-    for (int i = 0; i < organisms.size(); i++) {
-      for (int j = i + 1; j < organisms.size(); j++) {
-        Organism first = organisms.get(i);
-        Organism second = organisms.get(j);
-        Set<Integer> intersection = first.intersect(second);
-
-        // TODO: what does the threshold mean if the number of fragments differ?
-        // Is it a fraction of the total number of kmers? Of the first in the
-        // comparison? The average? If it's a fraction of only the first then
-        // the threshold would not be symmetric, so I'll use the average.
-        float averageKmers = (first.totalKmers() + second.totalKmers()) / 2.0f;
-        float scaledThreshold = averageKmers * threshold;
-        if (intersection.size() > scaledThreshold) {
-          writer.write(first.getOrganism() + " X " + second.getOrganism() + ": "
-                  + (intersection.size() / averageKmers) + "\n");
-        }
+                                                           int firstNew,
+                                                           float threshold,
+                                                           ComparisonEngine engine) throws IOException {
+    try (SimilarityMatrixWriter writer = SimilarityMatrixWriter.open(
+            "text", new File(outputPath), MatrixManifest.namesOf(organisms), firstNew > 0)) {
+      computeIntersectionsAndWriteOutput(organisms, firstNew, threshold, engine, writer, null);
+    }
+  }
+
+  /**
+   * Parse a size in bytes, with an optional k, m or g suffix (powers of 1024), e.g. "24g".
+   * @throws NumberFormatException if it isn't one
+   */
+  static long parseBytes(String size) {
+    String s = size.trim().toLowerCase();
+    int shift = 0;
+    if (s.endsWith("k"))
+      shift = 10;
+    else if (s.endsWith("m"))
+      shift = 20;
+    else if (s.endsWith("g"))
+      shift = 30;
+    if (shift > 0)
+      s = s.substring(0, s.length() - 1);
+    long bytes = Long.parseLong(s);
+    if (bytes > (Long.MAX_VALUE >> shift))
+      throw new NumberFormatException("Size is too big: " + size);
+    return bytes << shift;
+  }
+
+  // a phase of the run, or null if there are no metrics
+  private static Metrics.Phase startPhase(Metrics metrics, String name) {
+    return metrics == null ? null : metrics.phase(name);
+  }
+
+  // end a phase from startPhase, if there is one
+  private static void endPhase(Metrics.Phase phase) {
+    if (phase != null)
+      phase.close();
+  }
+
+  /**
+   * "kmer-matcher merge": combine the partial outputs of a --shard run.
+   */
+  private static void merge(CommandLine cmd) {
+    boolean verbose = cmd.hasOption("verbose");
+    String outputPath = cmd.getOptionValue("output");
+    String outputFormat = cmd.getOptionValue("output-format", "text");
+    int shards = 0;
+    Map<String, String> labels = null;
+
+    try {
+      shards = Integer.valueOf(cmd.getOptionValue("shards"));
+      if (shards <= 0)
+        throw new NumberFormatException("--shards must be > 0: " + shards);
+      if (! outputFormat.equals("text") && ! outputFormat.equals("binary"))
+        throw new IllegalArgumentException("--output-format must be text or binary: " + outputFormat);
+      if (cmd.hasOption("clusters"))
+        labels = ClusterAggregator.readClusters(new File(cmd.getOptionValue("clusters")));
+    }
+    catch (IOException ioe) {
+      System.err.println("Exception reading --clusters file: " + ioe);
+      System.exit(-1);
+    }
+    catch (IllegalArgumentException e) {
+      System.err.println("Exception parsing command-line arguments: " + e);
+      System.exit(-1);
+    }
+
+    try {
+      long pairs = Shards.merge(outputPath, shards, outputFormat, labels);
+      if (verbose)
+        System.out.println("Merged " + pairs + " pairs from " + shards + " shards into " + outputPath + ".");
+    }
+    catch (IllegalArgumentException e) {
+      System.err.println("Can't merge the shards: " + e.getMessage());
+      System.exit(-1);
+    }
+    catch (IOException ioe) {
+      System.err.println("Exception merging shards: " + ioe);
+      System.exit(-1);
+    }
+  }
+
+  /**
+   * Parse --kmer: a k-mer length, or a comma-separated list of them, e.g. "16,21,31".
+   * @throws NumberFormatException if it isn't one
+   */
+  static int[] parseKmerLengths(String spec) {
+    String[] parts = spec.split(",");
+    int[] kmerLens = new int[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      kmerLens[i] = Integer.valueOf(parts[i].trim());
+      if (kmerLens[i] <= 0)
+        throw new NumberFormatException("--kmer lengths must be > 0: " + spec);
+      for (int j = 0; j < i; j++) {
+        if (kmerLens[j] == kmerLens[i])
+          throw new NumberFormatException("--kmer lengths must be distinct: " + spec);
       }
     }
-    writer.close();
+    return kmerLens;
+  }
+
+  /**
+   * The output path for one of the k-mer lengths: --output itself if there's only one,
+   * otherwise --output + ".k" + k, e.g. out.txt.k21.
+   */
+  static String outputFor(String outputPath, int[] kmerLens, int k) {
+    return kmerLens.length == 1 ? outputPath : outputPath + ".k" + k;
   }
 
   public static void main(String[] args) {
+    if (args.length > 0 && args[0].equals("merge")) {
+      merge(ArgParser.parseMergeArgs(Arrays.copyOfRange(args, 1, args.length)));
+      return;
+    }
+
     CommandLine cmd = ArgParser.parseArgs(args);
     boolean verbose = cmd.hasOption("verbose");
-    List<Organism> organisms = new ArrayList<>(); // no nulls, please...
+    boolean append = cmd.hasOption("append");
+    String outputPath = cmd.getOptionValue("output");
+    List<List<Organism>> organismsByK = new ArrayList<>(); // no nulls, please...
     float threshold = 1.0f;
+    int[] kmerLens = null;
+    String[] outputs = null; // the output path for each k-mer length
+    int sketchSize = 0;
+    int threads = Runtime.getRuntime().availableProcessors();
+    String engineName = cmd.getOptionValue("engine", "blocked");
+    String outputFormat = cmd.getOptionValue("output-format", "text");
+    String metricName = cmd.getOptionValue("metric", "average");
+    MatrixManifest[] existing = null;
+    Map<String, String> labels = null;
+    Metrics metrics = null;
+    long memoryBudget = 0;
+    boolean weighted = false; // does the metric need the k-mer counts?
+    OrganismSpill spill = null;
+    int[] shard = null; // {i, N} for --shard
 
     // TODO: move value parsing into a CommandLine wrapper class. It's an abomination
     // that that CommandLine doesn't have better error handling capabilities, including
     // default values...
     try {
       threshold = Float.valueOf(cmd.getOptionValue("threshold"));
-      FastaParser parser = new FastaParser(cmd.getOptionValue("path"));
-      organisms = parser.parseAllFiles(verbose, Integer.valueOf(cmd.getOptionValue("kmer")));
+      kmerLens = parseKmerLengths(cmd.getOptionValue("kmer"));
+      sketchSize = Integer.valueOf(cmd.getOptionValue("sketch-size", "0"));
+      if (sketchSize < 0)
+        throw new NumberFormatException("--sketch-size must be >= 0: " + sketchSize);
+      if (cmd.hasOption("threads"))
+        threads = Integer.valueOf(cmd.getOptionValue("threads"));
+      if (threads <= 0)
+        throw new NumberFormatException("--threads must be > 0: " + threads);
+      if (! engineName.equals("blocked") && ! engineName.equals("inverted"))
+        throw new IllegalArgumentException("--engine must be blocked or inverted: " + engineName);
+      if (cmd.hasOption("memory-budget")) {
+        memoryBudget = parseBytes(cmd.getOptionValue("memory-budget"));
+        if (memoryBudget <= 0)
+          throw new NumberFormatException("--memory-budget must be > 0: " + memoryBudget);
+        if (engineName.equals("inverted"))
+          throw new IllegalArgumentException("--memory-budget can't be used with --engine inverted, which needs every posting list in memory");
+      }
+      if (! outputFormat.equals("text") && ! outputFormat.equals("binary"))
+        throw new IllegalArgumentException("--output-format must be text or binary: " + outputFormat);
+      weighted = SimilarityMetric.forName(metricName, kmerLens[0]).isWeighted(); // and check it
+      if (weighted && (sketchSize > 0 || engineName.equals("inverted") || cmd.hasOption("memory-budget") || cmd.hasOption("prefilter")))
+        throw new IllegalArgumentException("--metric " + metricName + " needs the k-mer counts, which --sketch-size, --engine inverted, --memory-budget and --prefilter don't keep");
+      if (cmd.hasOption("clusters") && metricName.equals("mash"))
+        throw new IllegalArgumentException("--clusters needs a similarity, not --metric mash, which is a distance");
+      if (cmd.hasOption("prefilter") && (sketchSize > 0 || engineName.equals("inverted")))
+        throw new IllegalArgumentException("--prefilter is for exact k-mer sets with --engine blocked");
+
+      if (cmd.hasOption("shard")) {
+        shard = Shards.parse(cmd.getOptionValue("shard"));
+        if (append || cmd.hasOption("clusters") || memoryBudget > 0 || engineName.equals("inverted"))
+          throw new IllegalArgumentException("--shard can't be used with --append, --clusters, --memory-budget or --engine inverted");
+        if (cmd.hasOption("output-format") && ! outputFormat.equals("binary"))
+          throw new IllegalArgumentException("--shard always writes --output-format binary");
+        outputFormat = "binary";
+      }
+
+      outputs = new String[kmerLens.length];
+      for (int k = 0; k < kmerLens.length; k++) {
+        outputs[k] = outputFor(outputPath, kmerLens, kmerLens[k]);
+        if (shard != null)
+          outputs[k] = Shards.shardFile(outputs[k], shard[0], shard[1]).getPath();
+      }
+
+      if (append && cmd.hasOption("clusters") && ! outputFormat.equals("binary"))
+        throw new IllegalArgumentException("--clusters with --append needs --output-format binary, to re-read the existing pairs");
+
+      if (append) {
+        existing = new MatrixManifest[kmerLens.length];
+        for (int k = 0; k < kmerLens.length; k++) {
+          existing[k] = MatrixManifest.read(MatrixManifest.fileFor(outputs[k]));
+          existing[k].checkCompatible(kmerLens[k], sketchSize, threshold, outputFormat, metricName);
+        }
+      }
     }
     catch (IOException ioe) {
-      System.err.println("Exception parsing FASTA input files: " + ioe);
+      System.err.println("Exception reading the existing output's manifest for --append: " + ioe);
       System.exit(-1);
     }
-    catch (NumberFormatException e) {
+    catch (IllegalArgumentException e) {
       System.err.println("Exception parsing command-line arguments: " + e);
       System.exit(-1);
     }
 
+    if (shard != null) {
+      try {
+        for (String output : outputs)
+          Shards.clearDone(new File(output));
+      }
+      catch (IOException ioe) {
+        System.err.println("Exception clearing the shard's " + Shards.DONE_SUFFIX + " marker: " + ioe);
+        System.exit(-1);
+      }
+    }
+
+    if (cmd.hasOption("clusters")) {
+      try {
+        labels = ClusterAggregator.readClusters(new File(cmd.getOptionValue("clusters")));
+      }
+      catch (IOException ioe) {
+        System.err.println("Exception reading --clusters file: " + ioe);
+        System.exit(-1);
+      }
+    }
+
+    if (cmd.hasOption("metrics")) {
+      metrics = new Metrics();
+      metrics.startReporting(System.err, Metrics.DEFAULT_REPORT_INTERVAL_MS);
+    }
+
+    Metrics.Phase ingest = startPhase(metrics, Metrics.INGEST);
     try {
-      computeIntersectionsAndWriteOutput(cmd.getOptionValue("output"), organisms, threshold);
+      FastaParser parser = new FastaParser(cmd.getOptionValue("path"));
+      parser.setThreads(threads);
+      if (cmd.hasOption("index"))
+        parser.setIndex(new OrganismIndex(new File(cmd.getOptionValue("index"))));
+      else if (append && verbose)
+        System.out.println("NOTE: --append without --index will re-parse all of the existing FASTA files.");
+      if (cmd.hasOption("packed-store"))
+        parser.setPackedStore(new PackedGenomeStore(new File(cmd.getOptionValue("packed-store"))));
+      parser.setMetrics(metrics);
+      parser.setCounted(weighted);
+      parser.setPrefilter(cmd.hasOption("prefilter"));
+      if (memoryBudget > 0) {
+        spill = new OrganismSpill(new File(outputPath).getAbsoluteFile().getParentFile());
+        parser.setSpill(spill);
+      }
+      organismsByK = parser.parseAllFiles(verbose, kmerLens, sketchSize);
+      if (metrics != null)
+        metrics.setOrganisms(organismsByK.get(0));
+    }
+    catch (IOException ioe) {
+      System.err.println("Exception parsing FASTA input files: " + ioe);
+      System.exit(-1);
+    }
+    finally {
+      endPhase(ingest);
+    }
+
+    try {
+      // one matrix per k-mer length, from the Organisms ingested in the one pass
+      for (int k = 0; k < kmerLens.length; k++) {
+        List<Organism> organisms = organismsByK.get(k);
+        String output = outputs[k];
+        SimilarityMetric metric = SimilarityMetric.forName(metricName, kmerLens[k]);
+        if (verbose && kmerLens.length > 1)
+          System.out.println("Comparing the " + kmerLens[k] + "-mers, into " + output + ".");
+
+        int firstNew = 0;
+        if (append) {
+          try {
+            firstNew = existing[k].orderOldFirst(organisms);
+          }
+          catch (IllegalArgumentException e) {
+            System.err.println("Can't append to the existing output: " + e.getMessage());
+            System.exit(-1);
+          }
+          if (verbose)
+            System.out.println("Appending " + (organisms.size() - firstNew) + " new organisms to " + firstNew + " existing ones.");
+        }
+        // smallest first, so the pair loops can stop a row once the genomes get too big to
+        // pass the threshold (see SizePruning); the old ones stay in the existing output's order
+        organisms.subList(firstNew, organisms.size()).sort(Comparator.comparingInt(Organism::totalKmers));
+
+        ComparisonEngine engine;
+        if (spill != null) {
+          OutOfCoreEngine outOfCore = new OutOfCoreEngine(threads, memoryBudget, spill);
+          outOfCore.setPrefilter(cmd.hasOption("prefilter"));
+          engine = outOfCore;
+        } else if (engineName.equals("inverted")) {
+          engine = new InvertedIndexEngine(threads);
+        } else {
+          BlockedComparisonEngine blocked = new BlockedComparisonEngine(threads);
+          if (shard != null)
+            blocked.setShard(shard[0], shard[1]);
+          blocked.setPrefilter(cmd.hasOption("prefilter"));
+          engine = blocked;
+        }
+        engine.setMetric(metric);
+        List<String> names = MatrixManifest.namesOf(organisms);
+
+        // mislabel detection: fed the pairs as they're found, alongside the output
+        ClusterAggregator clusters = null;
+        if (labels != null) {
+          clusters = new ClusterAggregator(names, labels);
+          if (verbose)
+            System.out.println(clusters.labelled() + " of " + names.size() + " organisms are in --clusters.");
+          if (append) {
+            try (SimilarityMatrixReader old = SimilarityMatrixReader.open(new File(output))) {
+              clusters.addAll(old);
+            }
+          }
+        }
+
+        try (SimilarityMatrixWriter writer = SimilarityMatrixWriter.open(outputFormat, new File(output), names, append)) {
+          computeIntersectionsAndWriteOutput(organisms, firstNew, threshold, engine,
+                  clusters == null ? writer : SimilarityMatrixWriter.tee(writer, clusters), metrics);
+        }
+        if (clusters != null) {
+          File report = new File(output + MISLABELS_SUFFIX);
+          clusters.writeReport(report);
+          if (verbose)
+            System.out.println("Wrote mislabel report to " + report + ".");
+        }
+        new MatrixManifest(kmerLens[k], sketchSize, threshold, outputFormat, metric.name(), names)
+                .write(MatrixManifest.fileFor(output));
+
+        if (shard != null) {
+          Shards.markDone(new File(output));
+          if (verbose)
+            System.out.println("Shard " + shard[0] + " of " + shard[1] + " is done.");
+        }
+      }
+
+      if (spill != null)
+        spill.close();
+      if (metrics != null) {
+        metrics.close();
+        metrics.writeSummary(new File(cmd.getOptionValue("metrics")));
+        if (verbose)
+          System.out.println("Wrote metrics summary to " + cmd.getOptionValue("metrics") + ".");
+      }
+    }
+    catch (IllegalArgumentException e) {
+      // e.g. too many --clusters labels, or an engine which can't use the metric
+      System.err.println("Exception comparing organisms: " + e.getMessage());
+      System.exit(-1);
     }
     catch (IOException ioe) {
       System.err.println("Exception writing output file: " + ioe);
       System.exit(-1);
     }
+    catch (UncheckedIOException ioe) {
+      // from the comparison threads: reading back spilled k-mers, or the ResultSink failing
+      System.err.println("Exception comparing organisms: " + ioe.getCause());
+      System.exit(-1);
+    }
   }
 
 }
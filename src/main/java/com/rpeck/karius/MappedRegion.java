@@ -0,0 +1,69 @@
+package com.rpeck.karius;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A region of a file, memory-mapped in segments so that it can be bigger than the 2 GB
+ * a single MappedByteBuffer is limited to. Positions are byte offsets from the start of
+ * the region. The segment size is a multiple of 8, so as long as values are aligned to
+ * their own size within the region none of them straddle two segments.
+ */
+class MappedRegion {
+  static final int SEGMENT_SHIFT = 30;
+  static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+  private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+  private final MappedByteBuffer[] segments;
+
+  /**
+   * Map <code>length</code> bytes of the channel's file, starting at <code>offset</code>.
+   * A READ_WRITE mapping past the end of the file extends it.
+   */
+  MappedRegion(FileChannel channel, FileChannel.MapMode mode, long offset, long length) throws IOException {
+    int count = (int) ((length + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+    segments = new MappedByteBuffer[count];
+    for (int s = 0; s < count; s++) {
+      long start = (long) s << SEGMENT_SHIFT;
+      segments[s] = channel.map(mode, offset + start, Math.min(SEGMENT_SIZE, length - start));
+    }
+  }
+
+  byte get(long position) {
+    return segments[(int) (position >>> SEGMENT_SHIFT)].get((int) (position & SEGMENT_MASK));
+  }
+
+  int getInt(long position) {
+    return segments[(int) (position >>> SEGMENT_SHIFT)].getInt((int) (position & SEGMENT_MASK));
+  }
+
+  float getFloat(long position) {
+    return segments[(int) (position >>> SEGMENT_SHIFT)].getFloat((int) (position & SEGMENT_MASK));
+  }
+
+  long getLong(long position) {
+    return segments[(int) (position >>> SEGMENT_SHIFT)].getLong((int) (position & SEGMENT_MASK));
+  }
+
+  void putInt(long position, int value) {
+    segments[(int) (position >>> SEGMENT_SHIFT)].putInt((int) (position & SEGMENT_MASK), value);
+  }
+
+  void putFloat(long position, float value) {
+    segments[(int) (position >>> SEGMENT_SHIFT)].putFloat((int) (position & SEGMENT_MASK), value);
+  }
+
+  void putLong(long position, long value) {
+    segments[(int) (position >>> SEGMENT_SHIFT)].putLong((int) (position & SEGMENT_MASK), value);
+  }
+
+  /**
+   * Flush any changes to a READ_WRITE mapping to disk.
+   */
+  void force() {
+    for (MappedByteBuffer segment : segments)
+      segment.force();
+  }
+
+}
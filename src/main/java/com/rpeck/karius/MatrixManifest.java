@@ -0,0 +1,199 @@
+package com.rpeck.karius;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Sidecar file written next to a similarity matrix which records the organisms that went
+ * into it, in order, along with the parameters it was computed with. This is what lets
+ * --append tell which genomes are new, and refuse to mix matrices computed with
+ * different settings.<p>
+ *
+ * The format is plain text, one "key value" pair per line:
+ * <pre>
+ *   kmer 20
+ *   sketch-size 0
+ *   threshold 0.9
+ *   format text
+ *   metric average
+ *   organism GCF_000018125.1_ASM1812v1
+ *   organism ...
+ * </pre>
+ */
+public class MatrixManifest {
+  static final String SUFFIX = ".organisms";
+
+  private final int kmerLen;
+  private final int sketchSize;
+  private final float threshold;
+  private final String format;
+  private final String metric;
+  private final List<String> organisms;
+
+  /**
+   * @param kmerLen the --kmer of the matrix
+   * @param sketchSize the --sketch-size, or 0 for exact k-mer sets
+   * @param threshold the --threshold
+   * @param format the --output-format of the matrix
+   * @param metric the name of the --metric its scores are
+   * @param organisms the names of the organisms, in index order
+   */
+  public MatrixManifest(int kmerLen, int sketchSize, float threshold, String format, String metric,
+                        List<String> organisms) {
+    this.kmerLen = kmerLen;
+    this.sketchSize = sketchSize;
+    this.threshold = threshold;
+    this.format = format;
+    this.metric = metric;
+    this.organisms = organisms;
+  }
+
+  /**
+   * Return the manifest file for a given similarity matrix output path.
+   */
+  public static File fileFor(String outputPath) {
+    return new File(outputPath + SUFFIX);
+  }
+
+  /**
+   * Return the names of a list of Organisms, in order.
+   */
+  public static List<String> namesOf(List<Organism> organisms) {
+    List<String> names = new ArrayList<>(organisms.size());
+    for (Organism o : organisms)
+      names.add(o.getOrganism());
+    return names;
+  }
+
+  public static MatrixManifest read(File f) throws IOException {
+    int kmerLen = -1;
+    int sketchSize = 0;
+    float threshold = Float.NaN;
+    String format = "text"; // manifests from before --output-format
+    String metric = "average"; // and from before --metric
+    List<String> organisms = new ArrayList<>();
+
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isEmpty())
+          continue;
+        int space = line.indexOf(' ');
+        if (space < 0)
+          throw new IOException("Malformed line in manifest " + f + ": " + line);
+        String key = line.substring(0, space);
+        String value = line.substring(space + 1);
+        try {
+          switch (key) {
+            case "kmer": kmerLen = Integer.parseInt(value); break;
+            case "sketch-size": sketchSize = Integer.parseInt(value); break;
+            case "threshold": threshold = Float.parseFloat(value); break;
+            case "format": format = value; break;
+            case "metric": metric = value; break;
+            case "organism": organisms.add(value); break;
+            default: throw new IOException("Unknown key in manifest " + f + ": " + key);
+          }
+        } catch (NumberFormatException e) {
+          throw new IOException("Malformed line in manifest " + f + ": " + line, e);
+        }
+      }
+    }
+    if (kmerLen <= 0 || Float.isNaN(threshold))
+      throw new IOException("Manifest is missing kmer or threshold: " + f);
+    return new MatrixManifest(kmerLen, sketchSize, threshold, format, metric, organisms);
+  }
+
+  /**
+   * Write the manifest, replacing any existing one atomically.
+   */
+  public void write(File f) throws IOException {
+    File tmp = new File(f.getPath() + ".tmp");
+    try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+      out.println("kmer " + kmerLen);
+      out.println("sketch-size " + sketchSize);
+      out.println("threshold " + threshold);
+      out.println("format " + format);
+      out.println("metric " + metric);
+      for (String name : organisms)
+        out.println("organism " + name);
+      if (out.checkError())
+        throw new IOException("Error writing manifest: " + tmp);
+    }
+    Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Check that new results computed with these parameters can be merged into the matrix
+   * this manifest describes.
+   * @throws IllegalArgumentException if they can't
+   */
+  public void checkCompatible(int kmerLen, int sketchSize, float threshold, String format, String metric) {
+    if (! metric.equals(this.metric))
+      throw new IllegalArgumentException("Existing output was computed with --metric " + this.metric);
+    if (! format.equals(this.format))
+      throw new IllegalArgumentException("Existing output was written with --output-format " + this.format);
+    if (kmerLen != this.kmerLen)
+      throw new IllegalArgumentException("Existing output was computed with --kmer " + this.kmerLen);
+    if (sketchSize != this.sketchSize)
+      throw new IllegalArgumentException("Existing output was computed with --sketch-size " + this.sketchSize);
+    if (threshold != this.threshold)
+      throw new IllegalArgumentException("Existing output was computed with --threshold " + this.threshold);
+  }
+
+  /**
+   * Reorder a freshly parsed list of Organisms so that the ones already in this manifest
+   * come first, in manifest order, followed by the new ones in their original order.
+   * @return the index of the first new Organism in <code>organisms</code>
+   * @throws IllegalArgumentException if an Organism in the manifest is missing
+   */
+  public int orderOldFirst(List<Organism> organisms) {
+    Map<String, Organism> byName = new HashMap<>();
+    for (Organism o : organisms)
+      byName.put(o.getOrganism(), o);
+
+    List<Organism> ordered = new ArrayList<>(organisms.size());
+    for (String name : this.organisms) {
+      Organism o = byName.remove(name);
+      if (o == null)
+        throw new IllegalArgumentException("Organism " + name + " in the existing output is missing from --path");
+      ordered.add(o);
+    }
+    int firstNew = ordered.size();
+    for (Organism o : organisms) {
+      if (byName.containsKey(o.getOrganism()))
+        ordered.add(o);
+    }
+
+    organisms.clear();
+    organisms.addAll(ordered);
+    return firstNew;
+  }
+
+  public int getKmerLen() {
+    return kmerLen;
+  }
+
+  public int getSketchSize() {
+    return sketchSize;
+  }
+
+  public float getThreshold() {
+    return threshold;
+  }
+
+  public String getFormat() {
+    return format;
+  }
+
+  public String getMetric() {
+    return metric;
+  }
+
+  public List<String> getOrganisms() {
+    return organisms;
+  }
+
+}
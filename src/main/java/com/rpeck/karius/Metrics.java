@@ -0,0 +1,376 @@
+package com.rpeck.karius;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runtime instrumentation for a run, for --metrics: per-phase wall and CPU time,
+ * ingestion and comparison throughput, per-organism k-mer counts, and the heap
+ * high-water mark.<p>
+ *
+ * The counters are LongAdders, which stripe their cells across threads, so the workers
+ * never contend on a shared cache line. Even so they're only bumped once per buffer of
+ * FASTA (IngestionPipeline) or per batch of comparisons (ResultSink.Producer), never per
+ * base or per pair, so keeping them costs nothing measurable.<p>
+ *
+ * While it's running, {@link #startReporting(PrintStream, long)} prints a progress line
+ * for the current phase every so often: bases and k-mers per second while ingesting,
+ * pairs per second and an ETA while comparing. At the end
+ * {@link #writeSummary(File)} writes the whole lot as JSON.
+ */
+public class Metrics implements Closeable {
+  static final long DEFAULT_REPORT_INTERVAL_MS = 10_000;
+  static final long HEAP_SAMPLE_INTERVAL_MS = 200;
+
+  static final String INGEST = "ingest";
+  static final String COMPARE = "compare";
+
+  private final LongAdder filesParsed = new LongAdder();
+  private final LongAdder filesLoaded = new LongAdder();
+  private final LongAdder bases = new LongAdder();
+  private final LongAdder kmers = new LongAdder();
+  private final LongAdder pairsCompared = new LongAdder();
+  private final LongAdder pairsSimilar = new LongAdder();
+  private volatile long pairsTotal = 0;
+  private volatile long heapPeak = 0;
+
+  private final long startNanos = System.nanoTime();
+  private final long startCpuNanos = processCpuNanos();
+  private final List<Phase> phases = Collections.synchronizedList(new ArrayList<>());
+  private volatile Phase current = null;
+  private volatile List<Organism> organisms = Collections.emptyList();
+  private ScheduledExecutorService timer = null;
+
+  private static final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+  /**
+   * The wall and CPU time of one phase of the run. Closing it ends the phase.
+   */
+  public final class Phase implements Closeable {
+    final String name;
+    final long startNanos = System.nanoTime();
+    final long startCpuNanos = processCpuNanos();
+    private volatile long wallNanos = -1;
+    private volatile long cpuNanos = -1;
+
+    private Phase(String name) {
+      this.name = name;
+    }
+
+    public boolean isDone() {
+      return wallNanos >= 0;
+    }
+
+    /**
+     * Wall time so far, or in total once it's done.
+     */
+    public long wallNanos() {
+      return isDone() ? wallNanos : System.nanoTime() - startNanos;
+    }
+
+    /**
+     * CPU time of the whole process (all threads) during the phase, or -1 if the JVM
+     * can't tell us.
+     */
+    public long cpuNanos() {
+      if (isDone())
+        return cpuNanos;
+      long now = processCpuNanos();
+      return now < 0 || startCpuNanos < 0 ? -1 : now - startCpuNanos;
+    }
+
+    @Override
+    public void close() {
+      if (isDone())
+        return;
+      sampleHeap();
+      long cpu = cpuNanos();
+      wallNanos = System.nanoTime() - startNanos;
+      cpuNanos = cpu;
+      if (current == this)
+        current = null;
+    }
+  }
+
+  /**
+   * Start a new phase, which ends when it's closed, e.g.
+   * <code>Metrics.Phase p = metrics.phase("ingest"); try { ... } finally { p.close(); }</code>.
+   */
+  public Phase phase(String name) {
+    Phase p = new Phase(name);
+    phases.add(p);
+    current = p;
+    return p;
+  }
+
+  /**
+   * The first phase with the given name, or null.
+   */
+  public Phase getPhase(String name) {
+    synchronized (phases) {
+      for (Phase p : phases) {
+        if (p.name.equals(name))
+          return p;
+      }
+    }
+    return null;
+  }
+
+  /** Count a FASTA file which was parsed. */
+  public void fileParsed() {
+    filesParsed.increment();
+  }
+
+  /** Count an Organism which was loaded from the OrganismIndex rather than parsed. */
+  public void fileLoaded() {
+    filesLoaded.increment();
+  }
+
+  /** Count bases read and k-mers extracted from them (including duplicates). */
+  public void ingested(long bases, long kmers) {
+    this.bases.add(bases);
+    this.kmers.add(kmers);
+  }
+
+  /** Count pairs of organisms which have been compared. */
+  public void compared(long pairs) {
+    pairsCompared.add(pairs);
+  }
+
+  /** Count pairs which passed the threshold and were written. */
+  public void similar(long pairs) {
+    pairsSimilar.add(pairs);
+  }
+
+  /**
+   * Set the number of pairs the comparison phase will compare, for the ETA.
+   */
+  public void setPairsTotal(long pairsTotal) {
+    this.pairsTotal = pairsTotal;
+  }
+
+  /**
+   * Set the Organisms whose k-mer counts go in the summary.
+   */
+  public void setOrganisms(List<Organism> organisms) {
+    this.organisms = organisms;
+  }
+
+  public long filesParsed() { return filesParsed.sum(); }
+  public long filesLoaded() { return filesLoaded.sum(); }
+  public long bases() { return bases.sum(); }
+  public long kmers() { return kmers.sum(); }
+  public long pairsCompared() { return pairsCompared.sum(); }
+  public long pairsSimilar() { return pairsSimilar.sum(); }
+  public long pairsTotal() { return pairsTotal; }
+
+  /**
+   * Highest heap usage seen so far. It's sampled every HEAP_SAMPLE_INTERVAL_MS while
+   * reporting, and at the end of each phase, so a short spike can be missed.
+   */
+  public long heapPeak() {
+    sampleHeap();
+    return heapPeak;
+  }
+
+  /**
+   * Number of pairs an all-vs-all comparison of n organisms compares, when only the
+   * pairs with at least one organism at index >= firstNew are needed.
+   */
+  static long pairsToCompare(int n, int firstNew) {
+    return (long) n * (n - 1) / 2 - (long) firstNew * (firstNew - 1) / 2;
+  }
+
+  /**
+   * Print a progress line to <code>out</code> every <code>intervalMs</code>, and start
+   * sampling the heap, on a daemon thread, until {@link #close()}.
+   */
+  public synchronized void startReporting(PrintStream out, long intervalMs) {
+    if (timer != null)
+      return;
+    timer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "metrics-reporter");
+      t.setDaemon(true);
+      return t;
+    });
+    timer.scheduleAtFixedRate(this::sampleHeap, 0, HEAP_SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    timer.scheduleAtFixedRate(() -> out.println(progress()), intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * One line of progress for the current phase.
+   */
+  public String progress() {
+    StringBuilder line = new StringBuilder("[metrics ")
+            .append(duration(System.nanoTime() - startNanos)).append("] ");
+    Phase p = current;
+    if (p == null) {
+      line.append("idle");
+    } else if (p.name.equals(INGEST)) {
+      double seconds = seconds(p.wallNanos());
+      line.append(String.format(Locale.ROOT, "%s: %d files parsed, %d loaded; %.1f Mbases (%.1f Mbases/s), %.1f Mkmers (%.1f Mkmers/s)",
+              p.name, filesParsed(), filesLoaded(), bases() / 1e6, bases() / 1e6 / seconds,
+              kmers() / 1e6, kmers() / 1e6 / seconds));
+    } else if (p.name.equals(COMPARE)) {
+      double seconds = seconds(p.wallNanos());
+      long done = pairsCompared();
+      double rate = done / seconds;
+      line.append(String.format(Locale.ROOT, "%s: %d / %d pairs (%.1f%%, %.0f pairs/s), %d similar, ETA %s",
+              p.name, done, pairsTotal, pairsTotal == 0 ? 100.0 : 100.0 * done / pairsTotal, rate, pairsSimilar(),
+              rate > 0 ? duration((long) ((pairsTotal - done) / rate * 1e9)) : "?"));
+    } else {
+      line.append(p.name);
+    }
+    line.append(String.format(Locale.ROOT, "; heap %.1f MB (peak %.1f MB)",
+            memory.getHeapMemoryUsage().getUsed() / 1e6, heapPeak() / 1e6));
+    return line.toString();
+  }
+
+  /**
+   * Write everything as a JSON object.
+   */
+  public void writeSummary(File f) throws IOException {
+    try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(f), StandardCharsets.UTF_8))) {
+      out.print(toJson());
+      if (out.checkError())
+        throw new IOException("Error writing metrics summary: " + f);
+    }
+  }
+
+  String toJson() {
+    long cpu = processCpuNanos();
+    StringBuilder json = new StringBuilder("{\n");
+    json.append("  \"wallSeconds\": ").append(number(seconds(System.nanoTime() - startNanos))).append(",\n");
+    json.append("  \"cpuSeconds\": ").append(cpu < 0 ? "null" : number(seconds(cpu - startCpuNanos))).append(",\n");
+    json.append("  \"heapPeakBytes\": ").append(heapPeak()).append(",\n");
+
+    json.append("  \"phases\": [");
+    synchronized (phases) {
+      for (int i = 0; i < phases.size(); i++) {
+        Phase p = phases.get(i);
+        json.append(i == 0 ? "\n" : ",\n").append("    {\"name\": ").append(string(p.name))
+                .append(", \"wallSeconds\": ").append(number(seconds(p.wallNanos())))
+                .append(", \"cpuSeconds\": ").append(p.cpuNanos() < 0 ? "null" : number(seconds(p.cpuNanos())))
+                .append("}");
+      }
+    }
+    json.append("\n  ],\n");
+
+    double ingestSeconds = phaseSeconds(INGEST);
+    json.append("  \"ingest\": {")
+            .append("\"filesParsed\": ").append(filesParsed())
+            .append(", \"filesLoaded\": ").append(filesLoaded())
+            .append(", \"bases\": ").append(bases())
+            .append(", \"kmers\": ").append(kmers())
+            .append(", \"basesPerSecond\": ").append(number(rate(bases(), ingestSeconds)))
+            .append(", \"kmersPerSecond\": ").append(number(rate(kmers(), ingestSeconds)))
+            .append("},\n");
+
+    double compareSeconds = phaseSeconds(COMPARE);
+    json.append("  \"compare\": {")
+            .append("\"pairsTotal\": ").append(pairsTotal)
+            .append(", \"pairsCompared\": ").append(pairsCompared())
+            .append(", \"pairsSimilar\": ").append(pairsSimilar())
+            .append(", \"pairsPerSecond\": ").append(number(rate(pairsCompared(), compareSeconds)))
+            .append("},\n");
+
+    json.append("  \"organisms\": [");
+    List<Organism> orgs = organisms;
+    for (int i = 0; i < orgs.size(); i++) {
+      Organism o = orgs.get(i);
+      json.append(i == 0 ? "\n" : ",\n").append("    {\"name\": ").append(string(o.getOrganism()))
+              .append(", \"kmers\": ").append(o.totalKmers())
+              .append(", \"duplicateHashes\": ").append(o.duplicateHashes())
+              .append(", \"sketch\": ").append(o.isSketch())
+              .append("}");
+    }
+    json.append("\n  ]\n}\n");
+    return json.toString();
+  }
+
+  // the total wall time of the phases with the given name: with several --kmer lengths
+  // there's a compare phase for each
+  private double phaseSeconds(String name) {
+    long nanos = 0;
+    synchronized (phases) {
+      for (Phase p : phases) {
+        if (p.name.equals(name))
+          nanos += p.wallNanos();
+      }
+    }
+    return seconds(nanos);
+  }
+
+  /**
+   * Stop reporting.
+   */
+  @Override
+  public synchronized void close() {
+    if (timer != null) {
+      timer.shutdownNow();
+      timer = null;
+    }
+  }
+
+  private void sampleHeap() {
+    long used = memory.getHeapMemoryUsage().getUsed();
+    if (used > heapPeak) {
+      synchronized (this) {
+        heapPeak = Math.max(heapPeak, used);
+      }
+    }
+  }
+
+  /**
+   * CPU time of the whole process, or -1 if this JVM doesn't expose it.
+   */
+  static long processCpuNanos() {
+    OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    if (os instanceof com.sun.management.OperatingSystemMXBean)
+      return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+    return -1;
+  }
+
+  private static double seconds(long nanos) {
+    return nanos / 1e9;
+  }
+
+  private static double rate(long count, double seconds) {
+    return seconds > 0 ? count / seconds : 0.0;
+  }
+
+  private static String number(double d) {
+    return Double.isFinite(d) ? String.format(Locale.ROOT, "%.3f", d) : "null";
+  }
+
+  static String duration(long nanos) {
+    long s = Math.max(0, nanos / 1_000_000_000L);
+    return String.format(Locale.ROOT, "%d:%02d:%02d", s / 3600, (s / 60) % 60, s % 60);
+  }
+
+  static String string(String s) {
+    StringBuilder json = new StringBuilder("\"");
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\')
+        json.append('\\').append(c);
+      else if (c < 0x20)
+        json.append(String.format("\\u%04x", (int) c));
+      else
+        json.append(c);
+    }
+    return json.append('"').toString();
+  }
+
+}
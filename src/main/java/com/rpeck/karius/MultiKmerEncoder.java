@@ -0,0 +1,110 @@
+package com.rpeck.karius;
+
+/**
+ * The k-mers of several lengths at once, from one rolling window, for --kmer with a list
+ * of lengths (e.g. 16,21,31).<p>
+ *
+ * For k <= 32 a KmerEncoder's k-mer is just the last k bases, 2 bits apiece, so one
+ * window of the last 32 bases holds all of them: the forward k-mer is its low 2k bits,
+ * and if the reverse complement is kept with the newest base's complement in the top
+ * bits, the reverse k-mer is its top 2k bits. Each base costs one shift and OR of each
+ * strand however many lengths there are, and each length's canonical k-mer is a mask, a
+ * shift and a compare. A k > 32 is a hash which depends on the whole window, so each of
+ * those gets a KmerEncoder of its own.<p>
+ *
+ * The k-mers are exactly those of a KmerEncoder for each of the lengths.
+ */
+public class MultiKmerEncoder {
+  private final int[] ks;
+  private final long[] masks;          // low 2k bits, for k <= 32
+  private final KmerEncoder[] hashed;  // an encoder for each k > 32, or null
+  private final boolean[] hashedFull;
+  private final int maxPacked;         // the largest k <= 32
+
+  private long forward = 0;  // the last 32 bases, the newest in the low bits
+  private long reverse = 0;  // their reverse complement, the newest base's in the high bits
+  private int valid = 0;     // number of valid bases since the last reset, capped at maxPacked
+
+  /**
+   * Create an encoder for k-mers of each of the given lengths.
+   * @param ks k-mer lengths; each must be > 0
+   */
+  public MultiKmerEncoder(int[] ks) {
+    this.ks = ks.clone();
+    this.masks = new long[ks.length];
+    this.hashed = new KmerEncoder[ks.length];
+    this.hashedFull = new boolean[ks.length];
+    int max = 0;
+    for (int i = 0; i < ks.length; i++) {
+      if (ks[i] <= 0)
+        throw new IllegalArgumentException("k-mer length must be > 0: " + ks[i]);
+      if (ks[i] <= KmerEncoder.MAX_PACKED_K) {
+        masks[i] = ks[i] == KmerEncoder.MAX_PACKED_K ? -1L : (1L << (2 * ks[i])) - 1;
+        max = Math.max(max, ks[i]);
+      } else {
+        hashed[i] = new KmerEncoder(ks[i]);
+      }
+    }
+    this.maxPacked = max;
+  }
+
+  /**
+   * Number of k-mer lengths.
+   */
+  public int size() {
+    return ks.length;
+  }
+
+  public int getK(int i) {
+    return ks[i];
+  }
+
+  /**
+   * Forget the current window, e.g. at the start of a new contig or at an ambiguous base.
+   */
+  public void reset() {
+    forward = 0;
+    reverse = 0;
+    valid = 0;
+    for (int i = 0; i < ks.length; i++) {
+      if (hashed[i] != null) {
+        hashed[i].reset();
+        hashedFull[i] = false;
+      }
+    }
+  }
+
+  /**
+   * Roll the next base into the window, as a 2-bit code (see {@link KmerEncoder#pushCode(int)}).
+   */
+  public void pushCode(int code) {
+    forward = (forward << 2) | code;
+    reverse = (reverse >>> 2) | ((long) (3 - code) << 62);
+    if (valid < maxPacked)
+      valid++;
+    for (int i = 0; i < ks.length; i++) {
+      if (hashed[i] != null)
+        hashedFull[i] = hashed[i].pushCode(code);
+    }
+  }
+
+  /**
+   * Does the window hold a full k-mer of the <code>i</code>th length?
+   */
+  public boolean isFull(int i) {
+    return hashed[i] == null ? valid >= ks[i] : hashedFull[i];
+  }
+
+  /**
+   * The canonical k-mer of the <code>i</code>th length, as {@link KmerEncoder#canonical()}
+   * would give it. Only meaningful if {@link #isFull(int)}.
+   */
+  public long canonical(int i) {
+    if (hashed[i] != null)
+      return hashed[i].canonical();
+    long f = forward & masks[i];
+    long r = reverse >>> (64 - 2 * ks[i]);
+    return Long.compareUnsigned(f, r) <= 0 ? f : r;
+  }
+
+}
@@ -1,24 +1,44 @@
 package com.rpeck.karius;
 
-import java.util.HashSet;
-import java.util.Set;
-
 public class Organism {
   private String organism;
   private String version;
   private String description;
 
   /*
-   * Most likely we'll get a lot of collisions if we use a 32-bit String hash
-   * like String.hashCode(). If so, try a 64-bit one.
+   * Canonical k-mers from KmerEncoder. These are exact (2 bits per base) for k <= 32,
+   * so there are no collisions at all. Above that they're 64-bit hashes of the bases.
    * <br>
-   * TODO: test for collisions by using a Map<Long, String> and exact comparisons
-   * for the kmers, and if we still get a lot of collisions with a 64-bit hash
-   * we'll need to add exact comparisons to the matching.
+   * While we're ingesting they're collected in kmerSet. Once we're done, freeze()
+   * turns them into the sorted array kmers and drops the set; only one of the two
+   * is ever non-null.
    */
-  private Set<Integer> kmers;
+  private LongHashSet kmerSet;
+  private long[] kmers = null;
   private int duplicateHashes = 0;
 
+  // for the weighted SimilarityMetrics: how many times each k-mer occurs, as unsigned
+  // shorts parallel to kmers which saturate at LongHashSet.MAX_COUNT, or null if we're
+  // only keeping presence. 2 bytes on top of each k-mer's 8, and the sum and the
+  // Euclidean norm of them, which every pair would otherwise recompute
+  private short[] counts = null;
+  private long totalCount = 0;
+  private double countNorm = 0;
+
+  // in sketch mode we keep only a bottom-k MinHash sketch, and kmerSet and kmers are null
+  private BottomKSketch sketch = null;
+
+  // a HyperLogLog of the k-mers for --prefilter, made on demand by getHll(); null until then
+  private volatile HyperLogLog hll = null;
+
+  // once an OrganismSpill has written the frozen k-mers to disk they're dropped, and we
+  // only remember how many there were; -1 if they haven't been spilled
+  private int spilledKmers = -1;
+
+  // reused across calls to addFragment so that we don't allocate per fragment; it also
+  // carries the current contig's window from one call to extendContig to the next
+  private KmerEncoder encoder = null;
+
   /**
    * The internal representation of an organism's genome fragments, optimized for kmer matching.
    * These fragments have been cleaned of IUPAC codes.
@@ -28,44 +48,314 @@ public class Organism {
    * @param description
    */
   public Organism(String organism, String version, String description) {
+    this(organism, version, description, 0, 0, false);
+  }
+
+  /**
+   * The internal representation of an organism's genome fragments, presized for a genome
+   * of the given length so that the k-mer set doesn't have to grow (and rehash) while
+   * we're ingesting; a genome of n bases has at most n distinct k-mers. If sketchSize is
+   * > 0 then rather than all of the k-mers we keep only a bottom-k MinHash sketch of them,
+   * so similarities are estimates.
+   *
+   * @param organism
+   * @param version
+   * @param description
+   * @param genomeLength expected number of bases in the genome, or 0 if unknown
+   * @param sketchSize number of hashes in the sketch, or 0 to keep exact k-mer sets
+   * @param counted whether to count how many times each k-mer occurs as well, for the
+   *                weighted SimilarityMetrics; not for sketches
+   */
+  public Organism(String organism, String version, String description, long genomeLength, int sketchSize,
+                  boolean counted) {
+    this.organism = organism;
+    this.version = version;
+    this.description = description;
+    if (sketchSize > 0 && counted)
+      throw new IllegalArgumentException("Sketches can't be counted");
+    if (sketchSize > 0)
+      this.sketch = new BottomKSketch(sketchSize);
+    else
+      this.kmerSet = new LongHashSet(genomeLength, LongHashSet.DEFAULT_LOAD_FACTOR, counted);
+  }
+
+  private Organism(String organism, String version, String description,
+                   long[] kmers, BottomKSketch sketch, int duplicateHashes, HyperLogLog hll) {
     this.organism = organism;
     this.version = version;
     this.description = description;
-    this.kmers = new HashSet<>();
+    this.kmers = kmers;
+    this.sketch = sketch;
+    this.duplicateHashes = duplicateHashes;
+    this.hll = hll;
+  }
+
+  /**
+   * Recreate a frozen Organism from its sorted k-mers, e.g. ones read back from an OrganismIndex.
+   * @param hll the HyperLogLog of the k-mers, or null if we don't have it
+   * @param counts the k-mers' counts, parallel to them, or null if they weren't counted
+   */
+  static Organism fromKmers(String organism, String version, String description,
+                            long[] kmers, int duplicateHashes, HyperLogLog hll, short[] counts) {
+    Organism o = new Organism(organism, version, description, kmers, null, duplicateHashes, hll);
+    if (counts != null)
+      o.setCounts(counts);
+    return o;
   }
 
   /**
-   * Walk across the fragment generating hashes for each contained kmerLen subfragment.
+   * Like {@link #fromKmers(String, String, String, long[], int, HyperLogLog, short[])},
+   * for the k-mers alone, e.g. in tests.
+   */
+  static Organism fromKmers(String organism, String version, String description,
+                            long[] kmers, int duplicateHashes) {
+    return fromKmers(organism, version, description, kmers, duplicateHashes, null, null);
+  }
+
+  /**
+   * Recreate a sketch-mode Organism from its sketch, e.g. one read back from an OrganismIndex.
+   */
+  static Organism fromSketch(String organism, String version, String description, BottomKSketch sketch) {
+    return new Organism(organism, version, description, null, sketch, 0, null);
+  }
+
+  /**
+   * A stand-in for an Organism whose frozen k-mers have been spilled to disk by an
+   * OrganismSpill: everything but the k-mers themselves.
+   */
+  static Organism spilled(String organism, String version, String description,
+                          int kmerCount, int duplicateHashes, HyperLogLog hll) {
+    Organism o = new Organism(organism, version, description, null, null, duplicateHashes, hll);
+    o.spilledKmers = kmerCount;
+    return o;
+  }
+
+  /**
+   * Walk across the fragment adding the canonical k-mer for each contained kmerLen
+   * subfragment. The fragment is a contig of its own: no k-mers span its ends.
    * <p>
-   * Note that we're creating and throwing away a lot of Strings here, which isn't
-   * super efficient. If this turns out to perform poorly implement a version of
-   * String.hashCode() which takes a range. If the sequences are long we might do better
-   * by using a char[] for the fragments, or using CharSequence. PROFILE!
+   * The k-mers are rolled through a KmerEncoder a base at a time, so this is O(1) per
+   * k-mer and doesn't create any Strings. Any character other than {A, C, G, T} breaks
+   * the window, so k-mers which would span it are skipped.
    * @param fragment a fragment of an Organism's genome, represented as a String of {A, C, G, T}
    * @param kmerLen length of the component k-mers to compare
    */
   public void addFragment(String fragment, int kmerLen) {
-    // TODO: add unit test to check for off-by-one errors: for now I've only manually tested...
-    for (int i = 0; i < fragment.length() - kmerLen + 1; i++) {
-      int hash = fragment.substring(i, i + kmerLen).hashCode();
-      if (kmers.contains(hash)) {
-        duplicateHashes++;
-      } else {
-        kmers.add(hash);
-      }
+    endContig();
+    extendContig(fragment, kmerLen);
+  }
+
+  /**
+   * Continue the current contig with the next piece of it, e.g. the next line of a FASTA
+   * record. Unlike addFragment the window carries over from the previous piece, so we
+   * get the k-mers which span the line break. As in addFragment an ambiguous base
+   * restarts the window, so we lose only the k-mers which actually contain it.
+   * @param piece the next bases of the current contig
+   * @param kmerLen length of the component k-mers to compare
+   */
+  public void extendContig(String piece, int kmerLen) {
+    if (encoder == null || encoder.getK() != kmerLen)
+      encoder = new KmerEncoder(kmerLen);
+
+    for (int i = 0; i < piece.length(); i++) {
+      if (encoder.push(piece.charAt(i)))
+        addKmer(encoder.canonical());
+    }
+  }
+
+  /**
+   * End the current contig, so that the next call to extendContig starts a new one.
+   */
+  public void endContig() {
+    if (encoder != null)
+      encoder.reset();
+  }
+
+  /**
+   * Add a single canonical k-mer, as produced by KmerEncoder.
+   */
+  public void addKmer(long kmer) {
+    if (sketch != null) {
+      sketch.add(kmer); // can't tell whether it's a duplicate, so duplicateHashes isn't maintained
+      return;
+    }
+    if (kmerSet == null)
+      throw new IllegalStateException("Can't add k-mers to " + organism + " after it has been frozen");
+    if (! kmerSet.add(kmer))
+      duplicateHashes++;
+  }
+
+  /**
+   * Finish ingestion: convert the k-mer hash set into its compact, immutable form, a
+   * sorted long[] at 8 bytes per k-mer. Calling this more than once is harmless.
+   * <p>
+   * Note that this isn't synchronized: freeze each Organism before sharing it between
+   * threads (FastaParser.representOrganism does this for you).
+   */
+  public void freeze() {
+    if (sketch != null) {
+      sketch.freeze();
+    } else if (kmers == null && ! isSpilled()) {
+      kmers = kmerSet.toSortedArray();
+      if (kmerSet.isCounting())
+        setCounts(kmerSet.countsOf(kmers));
+      kmerSet = null;
+    }
+  }
+
+  private void setCounts(short[] counts) {
+    if (counts.length != kmers.length)
+      throw new IllegalArgumentException("Expected " + kmers.length + " counts, not " + counts.length);
+    long total = 0;
+    double squares = 0;
+    for (short c : counts) {
+      int count = c & 0xffff;
+      total += count;
+      squares += (double) count * count;
     }
+    this.counts = counts;
+    this.totalCount = total;
+    this.countNorm = Math.sqrt(squares);
+  }
+
+  public boolean isFrozen() {
+    return kmers != null || isSpilled();
+  }
+
+  /**
+   * Whether the k-mers have been spilled to disk, so that only OrganismSpill.load can get them.
+   */
+  public boolean isSpilled() {
+    return spilledKmers >= 0;
+  }
+
+  public boolean isSketch() {
+    return sketch != null;
+  }
+
+  /**
+   * Return the MinHash sketch, or null if we're keeping exact k-mer sets.
+   */
+  BottomKSketch getSketch() {
+    return sketch;
+  }
+
+  /**
+   * Return the HyperLogLog of the k-mers, making it if need be; null for sketches. Only
+   * --prefilter needs one, so IngestionPipeline makes them then, while it's still on an
+   * ingestion thread, and before spilling; a spilled stand-in can't make its own.
+   */
+  HyperLogLog getHll() {
+    HyperLogLog h = hll;
+    if (h == null && sketch == null) {
+      h = HyperLogLog.of(getKmers()); // racing threads just make the same one twice
+      hll = h;
+    }
+    return h;
+  }
+
+  /**
+   * Return the HyperLogLog of the k-mers if it has been made, or null; unlike
+   * {@link #getHll()} this never makes one.
+   */
+  HyperLogLog hllIfMade() {
+    return hll;
   }
 
   /**
-   * Return the intersection of the [hashes of the] k-mers for two Organisms. Allegedly,
-   * this is the fastest standard way to do this in Java.
+   * Return the sorted array of canonical k-mers, freezing this Organism if it isn't
+   * already. Don't modify it!
+   */
+  long[] getKmers() {
+    if (sketch != null)
+      throw new IllegalStateException(organism + " only has a sketch of its k-mers");
+    if (isSpilled())
+      throw new IllegalStateException(organism + "'s k-mers have been spilled to disk");
+    freeze();
+    return kmers;
+  }
+
+  /**
+   * Whether we're counting the k-mers (or have counted them), for the weighted SimilarityMetrics.
+   */
+  public boolean isCounted() {
+    return counts != null || (kmerSet != null && kmerSet.isCounting());
+  }
+
+  /**
+   * Return how many times each k-mer occurs, as unsigned shorts parallel to
+   * {@link #getKmers()}, freezing this Organism if it isn't already; null if it isn't counted.
+   */
+  short[] getCounts() {
+    freeze();
+    return counts;
+  }
+
+  /**
+   * The total of the k-mers' counts (each capped at LongHashSet.MAX_COUNT): the number of
+   * k-mers in the genome, duplicates and all, if none saturated. 0 if it isn't counted.
+   */
+  public long totalCount() {
+    freeze();
+    return totalCount;
+  }
+
+  /**
+   * The Euclidean norm of the k-mers' counts, as a vector; 0 if it isn't counted.
+   */
+  public double countNorm() {
+    freeze();
+    return countNorm;
+  }
+
+  /**
+   * The weighted intersection of two counted Organisms: the sum over their shared k-mers
+   * of the smaller count. See SortedLongArrays.minCountSum.
+   */
+  public long minCountSum(Organism other) {
+    return SortedLongArrays.minCountSum(this.getKmers(), this.requireCounts(), other.getKmers(), other.requireCounts());
+  }
+
+  /**
+   * The dot product of two counted Organisms' k-mer count vectors. See SortedLongArrays.countDotProduct.
+   */
+  public long countDotProduct(Organism other) {
+    return SortedLongArrays.countDotProduct(this.getKmers(), this.requireCounts(), other.getKmers(), other.requireCounts());
+  }
+
+  private short[] requireCounts() {
+    short[] c = getCounts();
+    if (c == null)
+      throw new IllegalStateException(organism + "'s k-mers weren't counted");
+    return c;
+  }
+
+  /**
+   * Return the number of k-mers that two Organisms have in common, without allocating
+   * anything. Both Organisms are frozen if they aren't already.
+   * <p>
+   * For sketches this is an estimate: from the estimated Jaccard similarity J and the
+   * estimated set sizes, |A n B| = J * (|A| + |B|) / (1 + J).
    * @param other
-   * @return
+   * @return the size of the intersection of the two k-mer sets
    */
-  public Set<Integer> intersect(Organism other) {
-    Set<Integer> intersection = new HashSet<Integer>(this.kmers);
-    intersection.retainAll(other.kmers);
-    return intersection;
+  public int intersectionCount(Organism other) {
+    if (this.sketch != null && other.sketch != null) {
+      double jaccard = this.sketch.jaccard(other.sketch);
+      return (int) Math.round(jaccard * (this.totalKmers() + (long) other.totalKmers()) / (1.0 + jaccard));
+    }
+    return SortedLongArrays.intersectionCount(this.getKmers(), other.getKmers());
+  }
+
+  /**
+   * Like {@link #intersectionCount(Organism)}, but stop counting as soon as it's clear the
+   * intersection is less than <code>required</code>, in which case the result is just
+   * some number less than that. Sketches are always counted in full; they're cheap.
+   */
+  public int intersectionCountAtLeast(Organism other, int required) {
+    if (this.sketch != null && other.sketch != null)
+      return intersectionCount(other);
+    return SortedLongArrays.intersectionCountAtLeast(this.getKmers(), other.getKmers(), required);
   }
 
   public String getOrganism() {
@@ -80,8 +370,15 @@ public class Organism {
     return description;
   }
 
+  /**
+   * Return the number of distinct k-mers. For sketches this is an estimate.
+   */
   public int totalKmers() {
-    return kmers.size();
+    if (sketch != null)
+      return (int) Math.min(Integer.MAX_VALUE, sketch.estimateCardinality());
+    if (isSpilled())
+      return spilledKmers;
+    return kmers != null ? kmers.length : kmerSet.size();
   }
 
   public int duplicateHashes() {
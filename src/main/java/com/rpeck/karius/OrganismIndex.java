@@ -0,0 +1,202 @@
+package com.rpeck.karius;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Persistent on-disk cache of frozen Organisms, so that re-runs over a mostly unchanged
+ * set of FASTA files don't have to gunzip and re-hash every genome.<p>
+ *
+ * There's one index file per (FASTA file, k, sketch size). Its header records everything
+ * the cached k-mers depend on: the source file's path, size and modification time, k,
+ * the sketch size and KmerEncoder.hashScheme(k). If any of those don't match we just
+ * treat it as a miss and re-parse, and the new entry replaces the stale one.<p>
+ *
+ * Format (big-endian), version 3:
+ * <pre>
+ *   int    magic "KIDX"
+ *   int    format version
+ *   int    hash scheme
+ *   int    k
+ *   int    sketch size (0 for an exact k-mer set)
+ *   long   source file size
+ *   long   source file modification time (ms)
+ *   string source path
+ *   string organism, version, description
+ *   int    duplicate hashes
+ *   int    count
+ *   ...    padding to a multiple of 8 bytes
+ *   long[count] sorted k-mers, or sorted sketch hashes
+ *   int    HyperLogLog register count (0 unless --prefilter made one)
+ *   byte[] HyperLogLog registers
+ *   int    k-mer count count (0 unless they were counted)
+ *   short[] counts of the k-mers, for the weighted metrics
+ * </pre>
+ * where a string is an int byte count followed by that many bytes of UTF-8. Versions 1
+ * and 2 are just the same thing cut short, after the k-mers and after the registers, so
+ * their entries are still read: anything missing from the end is taken as empty.<p>
+ *
+ * Entries are read back through a memory-mapped FileChannel, so loading an unchanged
+ * genome costs a page-in and a bulk copy rather than a parse. Entries are written to a
+ * temp file and renamed into place, so a crash (or a concurrent run) never leaves a
+ * half-written entry behind.<p>
+ *
+ * An entry with counts serves runs which don't need them too (they're just skipped), but
+ * one without them is a miss for a run which does, and gets replaced by one with them.
+ */
+public class OrganismIndex {
+  static final int MAGIC = 0x4B494458; // "KIDX"
+  static final int FORMAT_VERSION = 3; // 2 added the HyperLogLog, 3 the k-mer counts
+  static final String SUFFIX = ".kidx";
+
+  private final File dir;
+
+  /**
+   * Open (or create) an index in the given directory.
+   * @throws IOException if the directory can't be created or isn't writable
+   */
+  public OrganismIndex(File dir) throws IOException {
+    this.dir = dir;
+    if (! dir.exists() && ! dir.mkdirs())
+      throw new IOException("Can't create index directory: " + dir);
+    if (! dir.isDirectory())
+      throw new FileNotFoundException("Specified index path is not a directory: " + dir);
+  }
+
+  /**
+   * Return the index file for a given FASTA file and representation.
+   */
+  File entryFile(Path source, int kmerLen, int sketchSize) {
+    return new File(dir, BinaryFiles.entryName(source)
+            + ".k" + kmerLen + (sketchSize > 0 ? ".s" + sketchSize : "") + SUFFIX);
+  }
+
+  /**
+   * Load the cached Organism for a FASTA file, if there's an up-to-date entry for it.
+   *
+   * @param source the FASTA file
+   * @param kmerLen length of the k-mers
+   * @param sketchSize sketch size, or 0 for an exact k-mer set
+   * @return the frozen Organism, or null if there's no usable entry
+   * @throws IOException on an error reading the source file's attributes or the entry
+   */
+  public Organism load(Path source, int kmerLen, int sketchSize) throws IOException {
+    return load(source, kmerLen, sketchSize, false);
+  }
+
+  /**
+   * Like {@link #load(Path, int, int)}, optionally with the k-mers' counts.
+   * @param counted whether we need the counts; an entry without them is then a miss
+   */
+  public Organism load(Path source, int kmerLen, int sketchSize, boolean counted) throws IOException {
+    File f = entryFile(source, kmerLen, sketchSize);
+    if (! f.isFile())
+      return null;
+
+    BasicFileAttributes attrs = Files.readAttributes(source, BasicFileAttributes.class);
+    try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+      MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+      if (buf.remaining() < 36 || buf.getInt() != MAGIC || buf.getInt() > FORMAT_VERSION
+              || buf.getInt() != KmerEncoder.hashScheme(kmerLen) || buf.getInt() != kmerLen
+              || buf.getInt() != sketchSize || buf.getLong() != attrs.size()
+              || buf.getLong() != attrs.lastModifiedTime().toMillis()
+              || ! BinaryFiles.readString(buf).equals(source.toAbsolutePath().toString()))
+        return null;
+
+      String organism = BinaryFiles.readString(buf);
+      String version = BinaryFiles.readString(buf);
+      String description = BinaryFiles.readString(buf);
+      int duplicateHashes = buf.getInt();
+      int count = buf.getInt();
+      buf.position(align(buf.position()));
+
+      long[] values = new long[count];
+      LongBuffer longs = buf.asLongBuffer();
+      longs.get(values);
+      buf.position(buf.position() + 8 * count);
+
+      if (sketchSize > 0)
+        return Organism.fromSketch(organism, version, description, new BottomKSketch(sketchSize, values));
+      byte[] registers = new byte[buf.remaining() > 0 ? buf.getInt() : 0];
+      buf.get(registers);
+      short[] counts = null;
+      if (counted) {
+        int countCount = buf.remaining() > 0 ? buf.getInt() : 0;
+        if (countCount == 0)
+          return null;
+        counts = new short[countCount];
+        buf.asShortBuffer().get(counts);
+      }
+      HyperLogLog hll = registers.length == 0 ? null : new HyperLogLog(registers);
+      return Organism.fromKmers(organism, version, description, values, duplicateHashes, hll, counts);
+    }
+    catch (RuntimeException e) {
+      throw BinaryFiles.corrupt("Corrupt index file", f, e);
+    }
+  }
+
+  /**
+   * Write a frozen Organism's k-mers (or sketch) to the index, replacing any existing entry.
+   *
+   * @param source the FASTA file the Organism was built from
+   * @param kmerLen length of the k-mers
+   * @param o the Organism; frozen if it isn't already
+   * @throws IOException on a write error
+   */
+  public void store(Path source, int kmerLen, Organism o) throws IOException {
+    o.freeze();
+    int sketchSize = o.isSketch() ? o.getSketch().size() : 0;
+    long[] values = o.isSketch() ? o.getSketch().hashes() : o.getKmers();
+
+    BasicFileAttributes attrs = Files.readAttributes(source, BasicFileAttributes.class);
+    File f = entryFile(source, kmerLen, sketchSize);
+    File tmp = File.createTempFile(f.getName(), ".tmp", dir);
+
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT_VERSION);
+      out.writeInt(KmerEncoder.hashScheme(kmerLen));
+      out.writeInt(kmerLen);
+      out.writeInt(sketchSize);
+      out.writeLong(attrs.size());
+      out.writeLong(attrs.lastModifiedTime().toMillis());
+      BinaryFiles.writeString(out, source.toAbsolutePath().toString());
+      BinaryFiles.writeString(out, o.getOrganism());
+      BinaryFiles.writeString(out, o.getVersion());
+      BinaryFiles.writeString(out, o.getDescription());
+      out.writeInt(o.duplicateHashes());
+      out.writeInt(values.length);
+      for (int pad = align(out.size()) - out.size(); pad > 0; pad--)
+        out.writeByte(0);
+      for (long v : values)
+        out.writeLong(v);
+      HyperLogLog hll = o.hllIfMade();
+      byte[] registers = hll == null ? new byte[0] : hll.registers();
+      out.writeInt(registers.length);
+      out.write(registers);
+      short[] counts = o.isSketch() ? null : o.getCounts();
+      out.writeInt(counts == null ? 0 : counts.length);
+      if (counts != null) {
+        for (short c : counts)
+          out.writeShort(c);
+      }
+    }
+    catch (IOException e) {
+      tmp.delete();
+      throw e;
+    }
+
+    Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static int align(int position) {
+    return (position + 7) & ~7;
+  }
+
+}
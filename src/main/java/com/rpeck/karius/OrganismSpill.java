@@ -0,0 +1,119 @@
+package com.rpeck.karius;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * A temporary file of frozen k-mer arrays, for --memory-budget: as each Organism comes
+ * out of ingestion its sorted k-mers are appended here and dropped from the heap, leaving
+ * a stand-in (see Organism.spilled) which knows everything but the k-mers (it keeps
+ * their HyperLogLog too, if --prefilter made one). OutOfCoreEngine then reads them back
+ * a chunk at a time.<p>
+ *
+ * The file is written in whatever order the Organisms finish, and each one is found again
+ * by its offset, so the list can be put in any order (e.g. by --append) after spilling.
+ * It's only ever read by this process, so it's in native byte order, and it's deleted on
+ * close. Sketches are tiny, so they're never spilled.
+ */
+class OrganismSpill implements Closeable {
+  static final int IO_BUFFER_SIZE = 1 << 20;
+
+  private final File file;
+  private final FileChannel channel;
+  private final Map<Organism, Long> offsets = new IdentityHashMap<>(); // by stand-in
+  private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE).order(ByteOrder.nativeOrder());
+  private final LongBuffer writeLongs = writeBuffer.asLongBuffer(); // a view of all of writeBuffer
+  private long size = 0;
+
+  /**
+   * Create a new spill file in the given directory.
+   */
+  OrganismSpill(File dir) throws IOException {
+    this.file = File.createTempFile("kmers-", ".spill", dir);
+    this.file.deleteOnExit();
+    this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+  }
+
+  /**
+   * Append a frozen Organism's k-mers to the file.
+   * @return the stand-in to use in its place, or the Organism itself if it's a sketch
+   */
+  synchronized Organism spill(Organism o) throws IOException {
+    if (o.isSketch() || o.isSpilled())
+      return o;
+    long[] kmers = o.getKmers();
+    long offset = size;
+
+    for (int from = 0; from < kmers.length; from += writeLongs.capacity()) {
+      int count = Math.min(writeLongs.capacity(), kmers.length - from);
+      writeLongs.clear();
+      writeLongs.put(kmers, from, count);
+      writeBuffer.clear().limit(count * 8);
+      while (writeBuffer.hasRemaining())
+        size += channel.write(writeBuffer, size);
+    }
+
+    Organism stub = Organism.spilled(o.getOrganism(), o.getVersion(), o.getDescription(),
+            kmers.length, o.duplicateHashes(), o.hllIfMade());
+    offsets.put(stub, offset);
+    return stub;
+  }
+
+  /**
+   * Read a spilled Organism's k-mers back into the heap. Safe to call from several
+   * threads at once.
+   * @param o a stand-in returned by {@link #spill(Organism)}, or any other Organism,
+   *          which is returned as it is
+   * @return a frozen Organism with its k-mers
+   */
+  Organism load(Organism o) throws IOException {
+    if (! o.isSpilled())
+      return o;
+    Long offset;
+    synchronized (this) {
+      offset = offsets.get(o);
+    }
+    if (offset == null)
+      throw new IllegalArgumentException(o.getOrganism() + " wasn't spilled to " + file);
+
+    long[] kmers = new long[o.totalKmers()];
+    ByteBuffer buffer = ByteBuffer.allocate(IO_BUFFER_SIZE).order(ByteOrder.nativeOrder());
+    long position = offset;
+    for (int from = 0; from < kmers.length; ) {
+      int count = Math.min(IO_BUFFER_SIZE / 8, kmers.length - from);
+      buffer.clear().limit(count * 8);
+      while (buffer.hasRemaining()) {
+        int n = channel.read(buffer, position);
+        if (n < 0)
+          throw new IOException("Spill file " + file + " is truncated");
+        position += n;
+      }
+      buffer.flip();
+      buffer.asLongBuffer().get(kmers, from, count);
+      from += count;
+    }
+    return Organism.fromKmers(o.getOrganism(), o.getVersion(), o.getDescription(), kmers, o.duplicateHashes(),
+            o.hllIfMade(), null);
+  }
+
+  /**
+   * Close and delete the file.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      channel.close();
+    } finally {
+      file.delete();
+    }
+  }
+
+}
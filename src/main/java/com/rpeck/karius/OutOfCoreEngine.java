@@ -0,0 +1,221 @@
+package com.rpeck.karius;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * All-vs-all comparison of Organisms whose k-mers don't all fit in the heap at once, for
+ * --memory-budget.<p>
+ *
+ * The Organisms have been spilled to an OrganismSpill as they were ingested, so the list
+ * is just stand-ins. It's split into contiguous chunks whose k-mers take at most half of
+ * the memory budget each, and the pair matrix is processed a chunk pair at a time: for
+ * each chunk A, for each chunk B from A on, compare A's rows against B's columns. Only A
+ * and B are ever in the heap, so the budget bounds the memory no matter how big the
+ * database is; the price is that each chunk B is re-read from disk once per chunk A
+ * before it, which is sequential I/O and cheap next to the comparisons.<p>
+ *
+ * The chunks are read into ordinary long[]s with positional reads rather than left
+ * memory-mapped, both because SortedLongArrays works on arrays and because a
+ * MappedByteBuffer is only unmapped when it's garbage collected, which would make "at
+ * most two chunks" a hope rather than a guarantee.<p>
+ *
+ * Within a chunk pair the rows are compared on a ForkJoinPool by an InOrderTask,
+ * one batch per row, and each row of each chunk pair is a group of its own. So the
+ * ResultSink only ever holds about one row of one chunk B per thread (at most
+ * threads * chunk B's size pairs) rather than a whole band, which would be outside the
+ * budget. The price is the order: the pairs come out band by band, then chunk B by
+ * chunk B, and only in (i, j) order within that. The binary format sorts each row's
+ * neighbors when it's finalized, and ComparisonEngine.compare sorts what it collects,
+ * but a text output is in that order too.
+ */
+public class OutOfCoreEngine implements ComparisonEngine {
+  private final int threads;
+  private final long chunkBytes;
+  private final OrganismSpill spill;
+  private SimilarityMetric metric = SimilarityMetric.AVERAGE;
+  private boolean prefilter = false;
+  private int chunksRead = 0;
+
+  /**
+   * @param threads number of worker threads
+   * @param memoryBudget bytes of k-mers to hold in the heap at once; two chunks' worth
+   * @param spill where the Organisms' k-mers were spilled
+   */
+  public OutOfCoreEngine(int threads, long memoryBudget, OrganismSpill spill) {
+    if (threads <= 0)
+      throw new IllegalArgumentException("Number of threads must be > 0: " + threads);
+    if (memoryBudget <= 0)
+      throw new IllegalArgumentException("Memory budget must be > 0: " + memoryBudget);
+    this.threads = threads;
+    this.chunkBytes = Math.max(1, memoryBudget / 2);
+    this.spill = spill;
+  }
+
+  /**
+   * Number of chunks read from the spill file by the last compare.
+   */
+  int chunksRead() {
+    return chunksRead;
+  }
+
+  /**
+   * @throws IllegalArgumentException for a weighted metric: the spill only has the k-mers, not their counts
+   */
+  @Override
+  public void setMetric(SimilarityMetric metric) {
+    if (metric.isWeighted())
+      throw new IllegalArgumentException("The out-of-core engine can't use the weighted metric " + metric.name());
+    this.metric = metric;
+  }
+
+  /**
+   * Screen the pairs with the Organisms' HyperLogLogs before intersecting them; see SizePruning.
+   */
+  public void setPrefilter(boolean prefilter) {
+    this.prefilter = prefilter;
+  }
+
+  @Override
+  public void compare(List<Organism> organisms, int firstNew, float threshold, ResultSink sink) {
+    Organism[] orgs = organisms.toArray(new Organism[0]);
+    int[] starts = chunkStarts(orgs, chunkBytes);
+    int chunks = starts.length - 1;
+    int n = orgs.length;
+    chunksRead = 0;
+    SizePruning pruning = new SizePruning(orgs, firstNew, metric, threshold, prefilter); // the stand-ins know their sizes
+
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      int batch = 0;
+      // held out here so that each chunk can be dropped before the next one is read: a
+      // local which is only overwritten by the load would keep the old chunk reachable
+      // during it, and that's three chunks in the heap
+      Organism[] rows = null;
+      Organism[] cols = null;
+      ChunkPair work = null;
+      for (int a = 0; a < chunks; a++) {
+        if (starts[chunks] <= firstNew || n - starts[a] < 2)
+          break; // nothing left with a new organism in it
+        work = null;
+        cols = null;
+        rows = null;
+
+        for (int b = a; b < chunks; b++) {
+          if (starts[b + 1] <= firstNew)
+            continue; // all old x old
+          if (b == a && starts[a + 1] - starts[a] < 2 && b + 1 < chunks)
+            continue; // a single organism has no pairs with itself
+
+          work = null;
+          cols = null;
+          if (rows == null)
+            rows = load(orgs, starts[a], starts[a + 1]);
+          cols = b == a ? rows : load(orgs, starts[b], starts[b + 1]);
+
+          work = new ChunkPair(rows, starts[a], cols, starts[b], firstNew, threshold, metric,
+                  pruning, sink, batch);
+          pool.invoke(new InOrderTask(rows.length, work::compareRow));
+          batch += rows.length;
+        }
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Split the Organisms into contiguous chunks whose k-mers (or sketches) take at most
+   * <code>chunkBytes</code>, or a single Organism if it's bigger than that on its own.
+   * @return the index of the first Organism of each chunk, followed by the number of Organisms
+   */
+  static int[] chunkStarts(Organism[] orgs, long chunkBytes) {
+    List<Integer> starts = new ArrayList<>();
+    long bytes = 0;
+    for (int i = 0; i < orgs.length; i++) {
+      long size = 8L * (orgs[i].isSketch() ? orgs[i].getSketch().size() : orgs[i].totalKmers());
+      if (starts.isEmpty() || bytes + size > chunkBytes) {
+        starts.add(i);
+        bytes = 0;
+      }
+      bytes += size;
+    }
+    starts.add(orgs.length);
+
+    int[] result = new int[starts.size()];
+    for (int c = 0; c < result.length; c++)
+      result[c] = starts.get(c);
+    return result;
+  }
+
+  // read a chunk's k-mers back into the heap
+  private Organism[] load(Organism[] orgs, int from, int to) {
+    Organism[] chunk = new Organism[to - from];
+    try {
+      for (int i = from; i < to; i++) {
+        chunk[i - from] = spill == null ? orgs[i] : spill.load(orgs[i]);
+        chunk[i - from].freeze(); // freeze() isn't thread safe, so do it before sharing them
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed reading spilled k-mers", e);
+    }
+    chunksRead++;
+    return chunk;
+  }
+
+  // everything the tasks of one chunk pair share: the two chunks
+  private static class ChunkPair {
+    final Organism[] rows;
+    final int firstRow;
+    final Organism[] cols;
+    final int firstCol;
+    final int firstNew;
+    final float threshold;
+    final SimilarityMetric metric;
+    final SizePruning pruning;
+    final ResultSink sink;
+    final int firstBatch;
+
+    ChunkPair(Organism[] rows, int firstRow, Organism[] cols, int firstCol, int firstNew, float threshold,
+              SimilarityMetric metric, SizePruning pruning, ResultSink sink, int firstBatch) {
+      this.rows = rows;
+      this.firstRow = firstRow;
+      this.cols = cols;
+      this.firstCol = firstCol;
+      this.firstNew = firstNew;
+      this.threshold = threshold;
+      this.metric = metric;
+      this.pruning = pruning;
+      this.sink = sink;
+      this.firstBatch = firstBatch;
+    }
+
+    void compareRow(int r) {
+      int i = firstRow + r;
+      Organism first = rows[r];
+      ResultSink.Producer producer = sink.producer();
+
+      int firstJ = Math.max(Math.max(i + 1, firstNew), firstCol);
+      int lastJ = firstCol + cols.length;
+      for (int j = firstJ; j < lastJ; j++) {
+        if (! pruning.canPass(i, j)) {
+          if (pruning.restOfRowFails(i, j))
+            break;
+          continue;
+        }
+        Organism second = cols[j - firstCol];
+        int intersection = pruning.intersectionCount(first, second, i, j);
+        if (metric.isSimilar(first, second, intersection, threshold))
+          producer.add(i, j, metric.score(first, second, intersection));
+      }
+
+      // write each row as soon as it's done rather than holding the band; see above
+      producer.compared(Math.max(0, lastJ - firstJ));
+      producer.endBatch(firstBatch + r, true);
+    }
+  }
+
+}
@@ -0,0 +1,114 @@
+package com.rpeck.karius;
+
+/**
+ * A genome read back from a PackedGenomeStore: its bases packed 2 bits apiece (A, C, G
+ * and T as KmerEncoder codes 0 to 3, four to a byte, the first in the high bits) in a
+ * memory-mapped file, plus where each contig starts and which runs of bases were
+ * ambiguous. That's 1/8 of the 16-bit chars FastaFile holds a genome in, and it isn't
+ * on the heap at all.<p>
+ *
+ * An ambiguous base (an IUPAC code, or anything else which isn't A, C, G or T) is
+ * packed as an A, so {@link #code(long)} alone can't tell them apart; the runs of them
+ * are kept on the side, and they're few enough (a run of N's per scaffold gap, say) that
+ * a binary search over them is cheap.<p>
+ *
+ * FastaStreamParser.parse(PackedGenome, int, int) turns one into an Organism, with exactly
+ * the k-mers the FASTA would have given.
+ */
+public class PackedGenome {
+  private final String organism;
+  private final String version;
+  private final String description;
+  private final long length;
+  private final long[] contigStarts;
+  private final long[] ambiguous; // start and end (exclusive) of each run
+  private final MappedRegion bases;
+
+  PackedGenome(String organism, String version, String description, long length,
+               long[] contigStarts, long[] ambiguous, MappedRegion bases) {
+    this.organism = organism;
+    this.version = version;
+    this.description = description;
+    this.length = length;
+    this.contigStarts = contigStarts;
+    this.ambiguous = ambiguous;
+    this.bases = bases;
+  }
+
+  public String getOrganism() {
+    return organism;
+  }
+
+  public String getVersion() {
+    return version;
+  }
+
+  public String getDescription() {
+    return description;
+  }
+
+  /**
+   * Number of bases, including ambiguous ones.
+   */
+  public long length() {
+    return length;
+  }
+
+  /**
+   * Number of contigs, i.e. of '&gt;' header lines in the FASTA.
+   */
+  public int contigs() {
+    return contigStarts.length;
+  }
+
+  /**
+   * Position of the first base of contig <code>c</code>.
+   */
+  long contigStart(int c) {
+    return contigStarts[c];
+  }
+
+  int ambiguousRuns() {
+    return ambiguous.length / 2;
+  }
+
+  long ambiguousStart(int run) {
+    return ambiguous[2 * run];
+  }
+
+  long ambiguousEnd(int run) {
+    return ambiguous[2 * run + 1];
+  }
+
+  /**
+   * The 2-bit code of base <code>i</code>: 0 if it's ambiguous.
+   */
+  int code(long i) {
+    return (bases.get(i >>> 2) >>> (6 - 2 * (int) (i & 3))) & 3;
+  }
+
+  /**
+   * Is base <code>i</code> something other than A, C, G or T?
+   */
+  public boolean isAmbiguous(long i) {
+    int lo = 0;
+    int hi = ambiguousRuns();
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (ambiguousEnd(mid) <= i)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+    return lo < ambiguousRuns() && ambiguousStart(lo) <= i;
+  }
+
+  /**
+   * Base <code>i</code> as a character: A, C, G or T, or N if it's ambiguous (whichever
+   * IUPAC code it was).
+   */
+  public char base(long i) {
+    return isAmbiguous(i) ? 'N' : "ACGT".charAt(code(i));
+  }
+
+}
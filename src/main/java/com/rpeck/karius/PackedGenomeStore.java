@@ -0,0 +1,279 @@
+package com.rpeck.karius;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+
+/**
+ * On-disk store of genomes packed 2 bits per base (see PackedGenome), so that re-running
+ * with a different --kmer (or --sketch-size, or anything else the OrganismIndex is keyed
+ * on) doesn't have to gunzip the FASTA and decode it all over again.<p>
+ *
+ * Each FASTA file is converted once, as a side effect of the first run which parses it:
+ * FastaStreamParser feeds every base to a {@link Writer} as well as to the k-mer encoder.
+ * Later runs map the packed file and stream the codes straight into the encoder. Like
+ * OrganismIndex, each entry records the source file's path, size and modification time,
+ * and a stale entry is just a miss which gets rewritten.<p>
+ *
+ * Format (big-endian), version 1:
+ * <pre>
+ *   int    magic "K2BT"
+ *   int    format version
+ *   long   source file size
+ *   long   source file modification time (ms)
+ *   string source path
+ *   byte[(length + 3) / 4] packed bases, four to a byte, the first in the high bits
+ *   string organism, version, description
+ *   long   length in bases
+ *   int    contig count
+ *   long[] position of each contig's first base
+ *   int    ambiguous run count
+ *   long[] start and end (exclusive) of each run of ambiguous bases
+ *   long   offset of the packed bases
+ *   long   offset of the organism string after them
+ * </pre>
+ * where a string is an int byte count followed by that many bytes of UTF-8. The offsets
+ * are at the end because the converter streams: it doesn't know where the bases end
+ * until it's seen them all.
+ */
+public class PackedGenomeStore {
+  static final int MAGIC = 0x4B324254; // "K2BT"
+  static final int FORMAT_VERSION = 1;
+  static final String SUFFIX = ".2bit";
+  private static final int FOOTER_SIZE = 16;
+
+  private final File dir;
+
+  /**
+   * Open (or create) a store in the given directory.
+   * @throws IOException if the directory can't be created or isn't writable
+   */
+  public PackedGenomeStore(File dir) throws IOException {
+    this.dir = dir;
+    if (! dir.exists() && ! dir.mkdirs())
+      throw new IOException("Can't create packed genome directory: " + dir);
+    if (! dir.isDirectory())
+      throw new FileNotFoundException("Specified packed genome path is not a directory: " + dir);
+  }
+
+  /**
+   * Return the packed file for a given FASTA file.
+   */
+  File entryFile(Path source) {
+    return new File(dir, BinaryFiles.entryName(source) + SUFFIX);
+  }
+
+  /**
+   * Map the packed genome for a FASTA file, if there's an up-to-date one.
+   *
+   * @param source the FASTA file
+   * @return the genome, or null if there's no usable entry
+   * @throws IOException on an error reading the source file's attributes or the entry
+   */
+  public PackedGenome load(Path source) throws IOException {
+    File f = entryFile(source);
+    if (! f.isFile())
+      return null;
+
+    BasicFileAttributes attrs = Files.readAttributes(source, BasicFileAttributes.class);
+    try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size < FOOTER_SIZE)
+        return null;
+      ByteBuffer footer = channel.map(FileChannel.MapMode.READ_ONLY, size - FOOTER_SIZE, FOOTER_SIZE);
+      long dataOffset = footer.getLong();
+      long metadataOffset = footer.getLong();
+      if (dataOffset < 0 || dataOffset > metadataOffset || metadataOffset > size - FOOTER_SIZE)
+        return null;
+
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, dataOffset);
+      if (header.remaining() < 24 || header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION
+              || header.getLong() != attrs.size() || header.getLong() != attrs.lastModifiedTime().toMillis()
+              || ! BinaryFiles.readString(header).equals(source.toAbsolutePath().toString()))
+        return null;
+
+      ByteBuffer metadata = channel.map(FileChannel.MapMode.READ_ONLY, metadataOffset, size - FOOTER_SIZE - metadataOffset);
+      String organism = BinaryFiles.readString(metadata);
+      String version = BinaryFiles.readString(metadata);
+      String description = BinaryFiles.readString(metadata);
+      long length = metadata.getLong();
+      long[] contigStarts = readLongs(metadata, metadata.getInt());
+      long[] ambiguous = readLongs(metadata, 2 * metadata.getInt());
+      if (metadataOffset - dataOffset != (length + 3) / 4)
+        throw new IOException("Packed bases don't match the length: " + length);
+
+      // the mapping outlives the channel
+      MappedRegion bases = new MappedRegion(channel, FileChannel.MapMode.READ_ONLY, dataOffset, (length + 3) / 4);
+      return new PackedGenome(organism, version, description, length, contigStarts, ambiguous, bases);
+    }
+    catch (RuntimeException e) {
+      throw BinaryFiles.corrupt("Corrupt packed genome", f, e);
+    }
+  }
+
+  /**
+   * Start converting a FASTA file. Feed its bases to the Writer (FastaStreamParser does
+   * that), then {@link Writer#finish(Organism)} it to replace any existing entry.
+   * @throws IOException if the source file's attributes can't be read, or the temp file created
+   */
+  public Writer writer(Path source) throws IOException {
+    BasicFileAttributes attrs = Files.readAttributes(source, BasicFileAttributes.class);
+    File f = entryFile(source);
+    return new Writer(File.createTempFile(f.getName(), ".tmp", dir), f, source, attrs);
+  }
+
+  /**
+   * Writes one genome, a base at a time, to a temp file which is renamed into place when
+   * it's finished, so a crash (or a concurrent run) never leaves a half-written entry.<p>
+   *
+   * {@link #add(int)} is called for every base of the genome, so it doesn't throw: a write
+   * error is remembered, everything after it is dropped, and {@link #finish(Organism)}
+   * throws it.
+   */
+  public static class Writer {
+    private final File tmp;
+    private final File target;
+    private final DataOutputStream out;
+    private final long dataOffset;
+    private final byte[] buffer = new byte[1 << 16];
+    private int buffered = 0;
+    private int current = 0;      // the bases of the byte being packed
+    private long length = 0;
+    private long[] contigStarts = new long[4];
+    private int contigs = 0;
+    private long[] ambiguous = new long[8];
+    private int ambiguousEnds = 0; // run starts and ends in ambiguous; odd while in a run
+    private IOException error = null;
+
+    private Writer(File tmp, File target, Path source, BasicFileAttributes attrs) throws IOException {
+      this.tmp = tmp;
+      this.target = target;
+      this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(attrs.size());
+        out.writeLong(attrs.lastModifiedTime().toMillis());
+        BinaryFiles.writeString(out, source.toAbsolutePath().toString());
+        this.dataOffset = out.size();
+      }
+      catch (IOException e) {
+        abort();
+        throw e;
+      }
+    }
+
+    /**
+     * A '&gt;' header: the next base starts a new contig.
+     */
+    public void startContig() {
+      if (contigs == contigStarts.length)
+        contigStarts = Arrays.copyOf(contigStarts, 2 * contigs);
+      contigStarts[contigs++] = length;
+    }
+
+    /**
+     * Append a base, as a KmerEncoder code: 0 to 3 for A, C, G and T, or negative if it's
+     * ambiguous.
+     */
+    public void add(int code) {
+      boolean inRun = (ambiguousEnds & 1) != 0;
+      if (code < 0) {
+        if (! inRun)
+          mark(length);
+        code = 0;
+      } else if (inRun) {
+        mark(length);
+      }
+
+      current = (current << 2) | code;
+      if ((++length & 3) == 0) {
+        buffer[buffered++] = (byte) current;
+        current = 0;
+        if (buffered == buffer.length)
+          flushBuffer();
+      }
+    }
+
+    /**
+     * Write out the rest of the genome and move it into place.
+     * @param o the Organism parsed from the same bases, for its name, version and description
+     * @throws IOException if anything failed to write; the entry is dropped
+     */
+    public void finish(Organism o) throws IOException {
+      if ((ambiguousEnds & 1) != 0)
+        mark(length);
+      int partial = (int) (length & 3);
+      if (partial != 0) {
+        buffer[buffered++] = (byte) (current << (2 * (4 - partial)));
+        current = 0;
+      }
+      flushBuffer();
+
+      try {
+        if (error != null)
+          throw error;
+        long metadataOffset = dataOffset + (length + 3) / 4;
+        BinaryFiles.writeString(out, o.getOrganism());
+        BinaryFiles.writeString(out, o.getVersion());
+        BinaryFiles.writeString(out, o.getDescription());
+        out.writeLong(length);
+        out.writeInt(contigs);
+        for (int c = 0; c < contigs; c++)
+          out.writeLong(contigStarts[c]);
+        out.writeInt(ambiguousEnds / 2);
+        for (int r = 0; r < ambiguousEnds; r++)
+          out.writeLong(ambiguous[r]);
+        out.writeLong(dataOffset);
+        out.writeLong(metadataOffset);
+        out.close();
+      }
+      catch (IOException e) {
+        abort();
+        throw e;
+      }
+
+      Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Give up on this genome, e.g. because its FASTA turned out to be bad.
+     */
+    public void abort() {
+      try {
+        out.close();
+      } catch (IOException e) {
+        // we're throwing it away anyway
+      }
+      tmp.delete();
+    }
+
+    private void mark(long position) {
+      if (ambiguousEnds == ambiguous.length)
+        ambiguous = Arrays.copyOf(ambiguous, 2 * ambiguousEnds);
+      ambiguous[ambiguousEnds++] = position;
+    }
+
+    private void flushBuffer() {
+      if (error == null) {
+        try {
+          out.write(buffer, 0, buffered);
+        } catch (IOException e) {
+          error = e;
+        }
+      }
+      buffered = 0;
+    }
+  }
+
+  private static long[] readLongs(ByteBuffer buf, int count) {
+    long[] values = new long[count];
+    buf.asLongBuffer().get(values);
+    buf.position(buf.position() + 8 * count);
+    return values;
+  }
+
+}
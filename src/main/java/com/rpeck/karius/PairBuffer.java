@@ -0,0 +1,129 @@
+package com.rpeck.karius;
+
+import java.util.Arrays;
+
+/**
+ * A growable buffer of (i, j, score) comparison results, kept in primitive arrays so
+ * that a few million of them don't turn into a few million objects.<p>
+ *
+ * Each pair of organism indexes is packed into one long, i in the high 32 bits and j in
+ * the low 32 bits, so sorting by that long sorts the pairs into the same row-major
+ * order that a simple nested loop over i and j would produce them in.
+ */
+public class PairBuffer {
+  private long[] pairs;
+  private float[] scores;
+  private int size = 0;
+
+  public PairBuffer() {
+    this(1024);
+  }
+
+  public PairBuffer(int capacity) {
+    capacity = Math.max(capacity, 16);
+    this.pairs = new long[capacity];
+    this.scores = new float[capacity];
+  }
+
+  public void add(int i, int j, float score) {
+    if (size == pairs.length)
+      grow(size + 1);
+    pairs[size] = ((long) i << 32) | (j & 0xffffffffL);
+    scores[size] = score;
+    size++;
+  }
+
+  public void addAll(PairBuffer other) {
+    if (size + other.size > pairs.length)
+      grow(size + other.size);
+    System.arraycopy(other.pairs, 0, pairs, size, other.size);
+    System.arraycopy(other.scores, 0, scores, size, other.size);
+    size += other.size;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public void clear() {
+    size = 0;
+  }
+
+  /**
+   * Index of the first organism of the n'th pair.
+   */
+  public int first(int n) {
+    return (int) (pairs[n] >>> 32);
+  }
+
+  /**
+   * Index of the second organism of the n'th pair.
+   */
+  public int second(int n) {
+    return (int) pairs[n];
+  }
+
+  public float score(int n) {
+    return scores[n];
+  }
+
+  /**
+   * Sort the pairs by (i, j). This is an LSD radix sort 16 bits at a time, skipping the
+   * digits which are the same for every pair (e.g. the top of i and j when there are
+   * fewer than 65536 organisms), so it's O(size) and the scores just come along for the
+   * ride.
+   */
+  public void sort() {
+    if (size < 2)
+      return;
+
+    long[] pairsFrom = pairs;
+    float[] scoresFrom = scores;
+    long[] pairsTo = new long[size];
+    float[] scoresTo = new float[size];
+    int[] counts = new int[1 << 16];
+
+    for (int shift = 0; shift < 64; shift += 16) {
+      Arrays.fill(counts, 0);
+      for (int n = 0; n < size; n++)
+        counts[(int) (pairsFrom[n] >>> shift) & 0xffff]++;
+      if (counts[(int) (pairsFrom[0] >>> shift) & 0xffff] == size)
+        continue; // every pair has the same digit here
+
+      int total = 0;
+      for (int d = 0; d < counts.length; d++) {
+        int c = counts[d];
+        counts[d] = total;
+        total += c;
+      }
+      for (int n = 0; n < size; n++) {
+        int to = counts[(int) (pairsFrom[n] >>> shift) & 0xffff]++;
+        pairsTo[to] = pairsFrom[n];
+        scoresTo[to] = scoresFrom[n];
+      }
+
+      long[] swapPairs = pairsFrom;
+      pairsFrom = pairsTo;
+      pairsTo = swapPairs;
+      float[] swapScores = scoresFrom;
+      scoresFrom = scoresTo;
+      scoresTo = swapScores;
+    }
+
+    if (pairsFrom != pairs) {
+      System.arraycopy(pairsFrom, 0, pairs, 0, size);
+      System.arraycopy(scoresFrom, 0, scores, 0, size);
+    }
+  }
+
+  private void grow(int minCapacity) {
+    int capacity = Math.max(minCapacity, pairs.length + (pairs.length >> 1));
+    pairs = Arrays.copyOf(pairs, capacity);
+    scores = Arrays.copyOf(scores, capacity);
+  }
+
+}
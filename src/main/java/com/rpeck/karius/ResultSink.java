@@ -0,0 +1,254 @@
+package com.rpeck.karius;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous destination for the similar pairs found by a ComparisonEngine, which
+ * takes the formatting and I/O off the comparison threads.<p>
+ *
+ * Each comparison thread gets its own single-producer, single-consumer ring buffer of
+ * primitive (i, j, score) records ({@link #producer()}), so pushing a result is a couple
+ * of array stores and an ordered write, with no locks and no garbage. One writer thread
+ * drains all of the rings in batches into a SimilarityMatrixWriter, and flushes it every
+ * <code>FLUSH_INTERVAL_MS</code>, so a long run can be tailed while it's going and
+ * whatever was found before a crash is on disk.<p>
+ *
+ * Engines hand out their work in numbered batches (e.g. blocks of the pair matrix), and
+ * a thread ends each batch with {@link Producer#endBatch(int, boolean)}. The writer
+ * thread holds on to batches which finish early until all the earlier ones are done, and
+ * sorts each group of consecutive batches by (i, j) before writing it, so the output is
+ * in the same order no matter how many threads there are or which of them finished first.
+ * Engines claim batches in sequence, so only a few batches per thread are ever waiting.
+ */
+public class ResultSink implements Closeable {
+  static final int RING_SIZE = 1 << 13; // records per producer; a power of 2
+  static final long FLUSH_INTERVAL_MS = 1000;
+
+  private final SimilarityMatrixWriter writer;
+  private final Metrics metrics;
+  private final List<Producer> producers = new CopyOnWriteArrayList<>();
+  private final ThreadLocal<Producer> threadProducer = ThreadLocal.withInitial(this::newProducer);
+  private final AtomicReference<Throwable> failure = new AtomicReference<>();
+  private final Thread writerThread;
+  private volatile boolean closing = false;
+  private boolean closed = false;
+
+  // writer thread state: batches which are done, waiting for their turn
+  private final Map<Integer, PairBuffer> finished = new HashMap<>();
+  private final Map<Integer, Boolean> finishedEndsGroup = new HashMap<>();
+  private final PairBuffer group = new PairBuffer();
+  private int nextBatch = 0;
+  private volatile long written = 0;
+
+  /**
+   * A comparison thread's end of the sink: a ring buffer of records. Each record is a
+   * pair packed as in PairBuffer (so >= 0) and a score, or an end-of-batch marker,
+   * which is negative.
+   */
+  public final class Producer {
+    private final long[] pairs = new long[RING_SIZE];
+    private final float[] scores = new float[RING_SIZE];
+    private final AtomicLong head = new AtomicLong(); // next to read; written by the writer thread
+    private final AtomicLong tail = new AtomicLong(); // next to write; written by the producer
+    private long cachedHead = 0;
+
+    // writer thread state: the batch being read from this ring
+    private PairBuffer current = new PairBuffer();
+
+    /**
+     * Push one similar pair, blocking if the writer thread has fallen a whole ring behind.
+     * @throws UncheckedIOException if the writer thread failed
+     */
+    public void add(int i, int j, float score) {
+      put(((long) i << 32) | (j & 0xffffffffL), score);
+    }
+
+    /**
+     * Count pairs which have been compared, whether or not they were similar, for the
+     * Metrics. Call it once per batch, not once per pair.
+     */
+    public void compared(long pairs) {
+      if (metrics != null)
+        metrics.compared(pairs);
+    }
+
+    /**
+     * End a batch of work. All of the pairs pushed since the last call belong to it.
+     * @param batch the batch's sequence number; each one from 0 up must be ended exactly once
+     * @param endsGroup whether the pairs of this and the preceding batches, back to the
+     *                  last one which ended a group, can be sorted and written
+     */
+    public void endBatch(int batch, boolean endsGroup) {
+      put(~(((long) batch << 1) | (endsGroup ? 1 : 0)), 0.0f);
+    }
+
+    private void put(long pair, float score) {
+      long t = tail.get();
+      if (t - cachedHead == RING_SIZE) {
+        while (t - (cachedHead = head.get()) == RING_SIZE) {
+          checkFailure();
+          LockSupport.parkNanos(10_000);
+        }
+      }
+      int slot = (int) t & (RING_SIZE - 1);
+      pairs[slot] = pair;
+      scores[slot] = score;
+      tail.lazySet(t + 1); // publishes the record
+    }
+
+    /**
+     * Writer thread: move everything in the ring into batches.
+     * @return the number of records drained
+     */
+    private int drain() throws IOException {
+      long h = head.get();
+      long t = tail.get();
+      for (long k = h; k < t; k++) {
+        int slot = (int) k & (RING_SIZE - 1);
+        long pair = pairs[slot];
+        if (pair >= 0) {
+          current.add((int) (pair >>> 32), (int) pair, scores[slot]);
+        } else {
+          long marker = ~pair;
+          finishBatch((int) (marker >>> 1), (marker & 1) != 0, current);
+          current = new PairBuffer();
+        }
+      }
+      head.lazySet(t);
+      return (int) (t - h);
+    }
+  }
+
+  /**
+   * Start the writer thread.
+   * @param writer where to write the pairs; left open on close
+   */
+  public ResultSink(SimilarityMatrixWriter writer) {
+    this(writer, null);
+  }
+
+  /**
+   * Start the writer thread, counting the pairs compared and written in <code>metrics</code>.
+   * @param writer where to write the pairs; left open on close
+   * @param metrics the metrics, or null
+   */
+  public ResultSink(SimilarityMatrixWriter writer, Metrics metrics) {
+    this.writer = writer;
+    this.metrics = metrics;
+    this.writerThread = new Thread(this::run, "result-writer");
+    this.writerThread.setDaemon(true);
+    this.writerThread.start();
+  }
+
+  /**
+   * The calling thread's Producer.
+   */
+  public Producer producer() {
+    return threadProducer.get();
+  }
+
+  /**
+   * Number of pairs written so far.
+   */
+  public long written() {
+    return written;
+  }
+
+  private Producer newProducer() {
+    Producer p = new Producer();
+    producers.add(p);
+    return p;
+  }
+
+  private void run() {
+    try {
+      long lastFlush = System.currentTimeMillis();
+      boolean dirty = false;
+      while (true) {
+        boolean wasClosing = closing; // read before draining, so we can't miss the last records
+        int drained = 0;
+        for (Producer p : producers)
+          drained += p.drain();
+        dirty |= drained > 0;
+
+        long now = System.currentTimeMillis();
+        if (dirty && now - lastFlush >= FLUSH_INTERVAL_MS) {
+          writer.flush();
+          lastFlush = now;
+          dirty = false;
+        }
+        if (drained == 0) {
+          if (wasClosing)
+            break;
+          LockSupport.parkNanos(100_000);
+        }
+      }
+      if (! finished.isEmpty() || ! group.isEmpty())
+        throw new IllegalStateException("Results for batch " + nextBatch + " never arrived");
+      writer.flush();
+    } catch (Throwable e) {
+      failure.compareAndSet(null, e);
+    }
+  }
+
+  // writer thread: file away a finished batch, and write out whatever is now in order
+  private void finishBatch(int batch, boolean endsGroup, PairBuffer pairs) throws IOException {
+    finished.put(batch, pairs);
+    finishedEndsGroup.put(batch, endsGroup);
+    while (finished.containsKey(nextBatch)) {
+      group.addAll(finished.remove(nextBatch));
+      if (finishedEndsGroup.remove(nextBatch)) {
+        group.sort();
+        writer.writeAll(group);
+        written += group.size();
+        if (metrics != null)
+          metrics.similar(group.size());
+        group.clear();
+      }
+      nextBatch++;
+    }
+  }
+
+  private void checkFailure() {
+    Throwable e = failure.get();
+    if (e != null) {
+      if (e instanceof IOException)
+        throw new UncheckedIOException("Failed writing results", (IOException) e);
+      throw new IllegalStateException("Failed writing results: " + e, e);
+    }
+  }
+
+  /**
+   * Wait for the writer thread to write everything which has been pushed, and flush the
+   * writer. Every batch must have been ended by now.
+   * @throws IOException if the writer thread failed
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed)
+      return;
+    closed = true;
+    closing = true;
+    try {
+      writerThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while writing results", e);
+    }
+    Throwable e = failure.get();
+    if (e instanceof IOException)
+      throw (IOException) e;
+    if (e != null)
+      throw new IOException("Failed writing results: " + e, e);
+  }
+
+}
@@ -0,0 +1,201 @@
+package com.rpeck.karius;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sharded runs, for --shard i/N and the merge subcommand.<p>
+ *
+ * Each of N worker processes (on one machine or on N batch nodes with a shared
+ * filesystem) is started with the same arguments plus <code>--shard i/N</code>. They all
+ * ingest the same files, so they all agree on the organisms and on the tiling of the pair
+ * matrix into blocks, and each one compares just its own contiguous range of blocks (see
+ * BlockedComparisonEngine.setShard). Shard i writes a finalized binary matrix of its pairs
+ * to <code>output.shard-i-of-N</code>, with its own manifest, and when that's all safely
+ * on disk, a <code>.done</code> marker next to it.<p>
+ *
+ * There's no coordinator to talk to: <code>merge --output output --shards N</code> (run
+ * whenever and wherever) checks that all N markers exist, and k-way merges the shards'
+ * pairs, which are each in (i, j) order, into a single matrix. A shard which died just
+ * gets re-run; it deletes its stale marker before starting, and the partial files are
+ * replaced atomically.
+ */
+public class Shards {
+  static final String DONE_SUFFIX = ".done";
+
+  private Shards() {
+  }
+
+  /**
+   * Parse a shard spec "i/N", where 0 &lt;= i &lt; N.
+   * @return {i, N}
+   * @throws IllegalArgumentException if it isn't one
+   */
+  static int[] parse(String spec) {
+    int slash = spec.indexOf('/');
+    if (slash < 0)
+      throw new IllegalArgumentException("--shard must be i/N: " + spec);
+    int shard = Integer.parseInt(spec.substring(0, slash).trim());
+    int shards = Integer.parseInt(spec.substring(slash + 1).trim());
+    if (shards <= 0 || shard < 0 || shard >= shards)
+      throw new IllegalArgumentException("--shard must be i/N with 0 <= i < N: " + spec);
+    return new int[] {shard, shards};
+  }
+
+  /**
+   * The partial output of one shard.
+   */
+  static File shardFile(String outputPath, int shard, int shards) {
+    return new File(outputPath + ".shard-" + shard + "-of-" + shards);
+  }
+
+  static File doneFile(File shardFile) {
+    return new File(shardFile.getPath() + DONE_SUFFIX);
+  }
+
+  /**
+   * Forget that a shard was done, before (re-)running it.
+   */
+  static void clearDone(File shardFile) throws IOException {
+    Files.deleteIfExists(doneFile(shardFile).toPath());
+  }
+
+  /**
+   * Mark a shard as done, once its output and manifest have been written.
+   */
+  static void markDone(File shardFile) throws IOException {
+    File done = doneFile(shardFile);
+    File tmp = new File(done.getPath() + ".tmp");
+    Files.write(tmp.toPath(), ("done " + shardFile.getName() + "\n").getBytes(StandardCharsets.UTF_8));
+    Files.move(tmp.toPath(), done.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * The shards which aren't done yet.
+   */
+  static List<Integer> missing(String outputPath, int shards) {
+    List<Integer> missing = new ArrayList<>();
+    for (int shard = 0; shard < shards; shard++) {
+      if (! doneFile(shardFile(outputPath, shard, shards)).isFile())
+        missing.add(shard);
+    }
+    return missing;
+  }
+
+  /**
+   * Merge all N shards of a run into <code>outputPath</code>, in the given format, with
+   * a manifest, as if it had been a single run.
+   *
+   * @param labels organism to cluster labels, to also write a mislabel report; or null
+   * @return the number of pairs
+   * @throws IllegalArgumentException if some shards aren't done, or they don't match
+   * @throws IOException on an error reading the shards or writing the output
+   */
+  public static long merge(String outputPath, int shards, String format, Map<String, String> labels)
+          throws IOException {
+    List<Integer> missing = missing(outputPath, shards);
+    if (! missing.isEmpty())
+      throw new IllegalArgumentException("Shards " + missing + " of " + shards + " aren't done yet");
+
+    MatrixManifest manifest = MatrixManifest.read(MatrixManifest.fileFor(shardFile(outputPath, 0, shards).getPath()));
+    List<String> names = manifest.getOrganisms();
+    if (labels != null && manifest.getMetric().equals("mash"))
+      throw new IllegalArgumentException("--clusters needs a similarity, not --metric mash, which is a distance");
+    List<SimilarityMatrixReader> parts = new ArrayList<>();
+    try {
+      for (int shard = 0; shard < shards; shard++) {
+        File f = shardFile(outputPath, shard, shards);
+        MatrixManifest other = MatrixManifest.read(MatrixManifest.fileFor(f.getPath()));
+        other.checkCompatible(manifest.getKmerLen(), manifest.getSketchSize(), manifest.getThreshold(), "binary",
+                manifest.getMetric());
+        SimilarityMatrixReader part = SimilarityMatrixReader.open(f);
+        parts.add(part);
+        if (! other.getOrganisms().equals(names) || part.organismCount() != names.size())
+          throw new IllegalArgumentException("Shard " + f + " has different organisms from shard 0");
+        if (! part.isFinalized())
+          throw new IllegalArgumentException("Shard " + f + " wasn't finalized");
+      }
+
+      ClusterAggregator clusters = labels == null ? null : new ClusterAggregator(names, labels);
+      long pairs;
+      try (SimilarityMatrixWriter writer = SimilarityMatrixWriter.open(format, new File(outputPath), names, false)) {
+        pairs = merge(parts, clusters == null ? writer : SimilarityMatrixWriter.tee(writer, clusters));
+      }
+      if (clusters != null)
+        clusters.writeReport(new File(outputPath + Main.MISLABELS_SUFFIX));
+      new MatrixManifest(manifest.getKmerLen(), manifest.getSketchSize(), manifest.getThreshold(), format,
+              manifest.getMetric(), names)
+              .write(MatrixManifest.fileFor(outputPath));
+      return pairs;
+    } finally {
+      for (SimilarityMatrixReader part : parts)
+        part.close();
+    }
+  }
+
+  /**
+   * K-way merge the pairs of several matrices, each in (i, j) order, into one writer in
+   * (i, j) order, with a binary heap of the parts ordered by their next pair.
+   * @return the number of pairs
+   */
+  static long merge(List<SimilarityMatrixReader> parts, SimilarityMatrixWriter writer) throws IOException {
+    int n = parts.size();
+    long[] cursors = new long[n];
+    long[] keys = new long[n];
+    int[] heap = new int[n];
+    int heapSize = 0;
+    for (int p = 0; p < n; p++) {
+      if (parts.get(p).pairCount() > 0) {
+        keys[p] = keyOf(parts.get(p), 0);
+        heap[heapSize++] = p;
+      }
+    }
+    for (int k = heapSize / 2 - 1; k >= 0; k--)
+      siftDown(heap, heapSize, k, keys);
+
+    long pairs = 0;
+    while (heapSize > 0) {
+      int p = heap[0];
+      SimilarityMatrixReader part = parts.get(p);
+      long c = cursors[p];
+      writer.write(part.pairFirst(c), part.pairSecond(c), part.pairScore(c));
+      pairs++;
+
+      if (++cursors[p] < part.pairCount())
+        keys[p] = keyOf(part, cursors[p]);
+      else
+        heap[0] = heap[--heapSize];
+      siftDown(heap, heapSize, 0, keys);
+    }
+    return pairs;
+  }
+
+  private static long keyOf(SimilarityMatrixReader part, long k) {
+    return ((long) part.pairFirst(k) << 32) | (part.pairSecond(k) & 0xffffffffL);
+  }
+
+  private static void siftDown(int[] heap, int heapSize, int k, long[] keys) {
+    if (k >= heapSize)
+      return;
+    int item = heap[k];
+    while (true) {
+      int child = 2 * k + 1;
+      if (child >= heapSize)
+        break;
+      if (child + 1 < heapSize && keys[heap[child + 1]] < keys[heap[child]])
+        child++;
+      if (keys[item] <= keys[heap[child]])
+        break;
+      heap[k] = heap[child];
+      k = child;
+    }
+    heap[k] = item;
+  }
+
+}
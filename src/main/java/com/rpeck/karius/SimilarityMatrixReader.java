@@ -0,0 +1,270 @@
+package com.rpeck.karius;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Random access to a binary similarity matrix written by BinaryMatrixWriter.<p>
+ *
+ * The file is memory-mapped, so opening it only reads the header and the organism
+ * names, and looking up one organism's neighbors ({@link #row(int)}) or one pair's score
+ * ({@link #score(int, int)}) only touches the pages of that row. If the file was never
+ * finalized there's no CSR section, so we fall back to scanning the COO section, which
+ * is O(pairs) per lookup but at least gets you the results of a run which died.<p>
+ *
+ * A reader isn't thread safe, but it's cheap to open one per thread.
+ */
+public class SimilarityMatrixReader implements Closeable {
+  private final FileChannel channel;
+  private final List<String> organisms;
+  private Map<String, Integer> indexes = null;
+  private final boolean finalized;
+  private final long pairCount;
+  private final MappedRegion coo;
+  private final MappedRegion csr; // null if not finalized
+  private final long neighborsOffset;
+  private final long scoresOffset;
+
+  /**
+   * One organism's neighbors and their scores, sorted by organism index.
+   */
+  public static class Row {
+    private final int[] neighbors;
+    private final float[] scores;
+
+    Row(int[] neighbors, float[] scores) {
+      this.neighbors = neighbors;
+      this.scores = scores;
+    }
+
+    public int size() {
+      return neighbors.length;
+    }
+
+    /**
+     * Index of the k'th neighbor.
+     */
+    public int neighbor(int k) {
+      return neighbors[k];
+    }
+
+    public float score(int k) {
+      return scores[k];
+    }
+  }
+
+  private SimilarityMatrixReader(FileChannel channel, List<String> organisms, boolean finalized, long pairCount,
+                                 MappedRegion coo, MappedRegion csr) {
+    this.channel = channel;
+    this.organisms = organisms;
+    this.finalized = finalized;
+    this.pairCount = pairCount;
+    this.coo = coo;
+    this.csr = csr;
+    this.neighborsOffset = 8L * (organisms.size() + 1);
+    this.scoresOffset = neighborsOffset + 8 * pairCount;
+  }
+
+  /**
+   * Open a binary similarity matrix.
+   * @throws IOException if it can't be read, or isn't a binary similarity matrix
+   */
+  public static SimilarityMatrixReader open(File f) throws IOException {
+    FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+    try {
+      long size = channel.size();
+      if (size < BinaryMatrixWriter.HEADER_SIZE)
+        throw new IOException("Not a binary similarity matrix: " + f);
+
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, BinaryMatrixWriter.HEADER_SIZE);
+      if (header.getInt() != BinaryMatrixWriter.MAGIC)
+        throw new IOException("Not a binary similarity matrix: " + f);
+      int version = header.getInt();
+      if (version != BinaryMatrixWriter.FORMAT_VERSION)
+        throw new IOException("Unsupported binary similarity matrix version " + version + ": " + f);
+      boolean finalized = (header.getInt() & BinaryMatrixWriter.FLAG_FINALIZED) != 0;
+      int n = header.getInt();
+      long cooOffset = header.getLong();
+      long pairCount = header.getLong();
+      long csrOffset = header.getLong();
+      if (cooOffset > size || cooOffset - BinaryMatrixWriter.HEADER_SIZE > Integer.MAX_VALUE)
+        throw new IOException("Corrupt binary similarity matrix: " + f);
+
+      ByteBuffer names = channel.map(FileChannel.MapMode.READ_ONLY, BinaryMatrixWriter.HEADER_SIZE,
+              cooOffset - BinaryMatrixWriter.HEADER_SIZE);
+      List<String> organisms = new ArrayList<>(n);
+      for (int i = 0; i < n; i++)
+        organisms.add(BinaryFiles.readString(names));
+
+      if (! finalized) {
+        // whatever complete pairs made it to disk
+        pairCount = (size - cooOffset) / BinaryMatrixWriter.PAIR_SIZE;
+      }
+      MappedRegion coo = new MappedRegion(channel, FileChannel.MapMode.READ_ONLY, cooOffset,
+              pairCount * BinaryMatrixWriter.PAIR_SIZE);
+      MappedRegion csr = null;
+      if (finalized) {
+        long csrSize = 8L * (n + 1) + 16 * pairCount;
+        if (csrOffset + csrSize > size)
+          throw new IOException("Truncated binary similarity matrix: " + f);
+        csr = new MappedRegion(channel, FileChannel.MapMode.READ_ONLY, csrOffset, csrSize);
+      }
+      return new SimilarityMatrixReader(channel, organisms, finalized, pairCount, coo, csr);
+    }
+    catch (IOException | RuntimeException e) {
+      channel.close();
+      if (e instanceof IOException)
+        throw (IOException) e;
+      throw BinaryFiles.corrupt("Corrupt binary similarity matrix", f, (RuntimeException) e);
+    }
+  }
+
+  public int organismCount() {
+    return organisms.size();
+  }
+
+  /**
+   * Name of the organism with the given index.
+   */
+  public String organism(int i) {
+    return organisms.get(i);
+  }
+
+  /**
+   * Index of the organism with the given name, or -1 if it isn't in the matrix.
+   */
+  public int indexOf(String name) {
+    if (indexes == null) {
+      indexes = new HashMap<>();
+      for (int i = 0; i < organisms.size(); i++)
+        indexes.put(organisms.get(i), i);
+    }
+    Integer i = indexes.get(name);
+    return i == null ? -1 : i;
+  }
+
+  /**
+   * Was the file finalized, i.e. does it have a CSR section for fast row access?
+   */
+  public boolean isFinalized() {
+    return finalized;
+  }
+
+  /**
+   * Number of similar pairs (i, j) with i &lt; j.
+   */
+  public long pairCount() {
+    return pairCount;
+  }
+
+  // the COO pairs, in the order they were written
+
+  public int pairFirst(long k) {
+    return coo.getInt(k * BinaryMatrixWriter.PAIR_SIZE);
+  }
+
+  public int pairSecond(long k) {
+    return coo.getInt(k * BinaryMatrixWriter.PAIR_SIZE + 4);
+  }
+
+  public float pairScore(long k) {
+    return coo.getFloat(k * BinaryMatrixWriter.PAIR_SIZE + 8);
+  }
+
+  /**
+   * Return all of an organism's similar neighbors, whichever side of the pair they were on.
+   */
+  public Row row(int i) {
+    checkIndex(i);
+    if (finalized) {
+      long start = csr.getLong(8L * i);
+      int len = (int) (csr.getLong(8L * (i + 1)) - start);
+      int[] neighbors = new int[len];
+      float[] scores = new float[len];
+      for (int k = 0; k < len; k++) {
+        neighbors[k] = csr.getInt(neighborsOffset + 4 * (start + k));
+        scores[k] = csr.getFloat(scoresOffset + 4 * (start + k));
+      }
+      return new Row(neighbors, scores);
+    }
+
+    int[] neighbors = new int[16];
+    float[] scores = new float[16];
+    int len = 0;
+    for (long k = 0; k < pairCount; k++) {
+      int first = pairFirst(k);
+      int second = pairSecond(k);
+      if (first != i && second != i)
+        continue;
+      if (len == neighbors.length) {
+        neighbors = Arrays.copyOf(neighbors, len * 2);
+        scores = Arrays.copyOf(scores, len * 2);
+      }
+      neighbors[len] = first == i ? second : first;
+      scores[len] = pairScore(k);
+      len++;
+    }
+    sortByNeighbor(neighbors, scores, len);
+    return new Row(Arrays.copyOf(neighbors, len), Arrays.copyOf(scores, len));
+  }
+
+  /**
+   * Return the score of a pair, in either order, or NaN if it isn't in the matrix
+   * (i.e. it wasn't similar enough).
+   */
+  public float score(int i, int j) {
+    checkIndex(i);
+    checkIndex(j);
+    if (! finalized) {
+      Row row = row(i);
+      int k = Arrays.binarySearch(row.neighbors, j);
+      return k >= 0 ? row.scores[k] : Float.NaN;
+    }
+
+    // binary search of row i
+    long lo = csr.getLong(8L * i);
+    long hi = csr.getLong(8L * (i + 1)) - 1;
+    while (lo <= hi) {
+      long mid = (lo + hi) >>> 1;
+      int neighbor = csr.getInt(neighborsOffset + 4 * mid);
+      if (neighbor < j)
+        lo = mid + 1;
+      else if (neighbor > j)
+        hi = mid - 1;
+      else
+        return csr.getFloat(scoresOffset + 4 * mid);
+    }
+    return Float.NaN;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  private void checkIndex(int i) {
+    if (i < 0 || i >= organisms.size())
+      throw new IndexOutOfBoundsException("No organism " + i + " in a matrix of " + organisms.size());
+  }
+
+  /**
+   * Sort the first len neighbors, and their scores, by neighbor.
+   */
+  static void sortByNeighbor(int[] neighbors, float[] scores, int len) {
+    // neighbors are >= 0, so packing them into the high half of a long sorts by them
+    long[] packed = new long[len];
+    for (int k = 0; k < len; k++)
+      packed[k] = ((long) neighbors[k] << 32) | (Float.floatToRawIntBits(scores[k]) & 0xffffffffL);
+    Arrays.sort(packed);
+    for (int k = 0; k < len; k++) {
+      neighbors[k] = (int) (packed[k] >>> 32);
+      scores[k] = Float.intBitsToFloat((int) packed[k]);
+    }
+  }
+
+}
@@ -0,0 +1,86 @@
+package com.rpeck.karius;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Destination for the similar pairs found by a ComparisonEngine, in one of the
+ * --output-format formats. Organisms are referred to by their index in the list the
+ * writer was opened with. The output isn't complete until the writer is closed, but
+ * flushing it makes everything written so far visible to readers.
+ */
+public interface SimilarityMatrixWriter extends Closeable, Flushable {
+
+  /**
+   * Write one similar pair.
+   * @param i index of the first organism
+   * @param j index of the second organism
+   * @param score similarity score of the pair
+   */
+  void write(int i, int j, float score) throws IOException;
+
+  /**
+   * Write all the pairs in a buffer, in order.
+   */
+  default void writeAll(PairBuffer pairs) throws IOException {
+    for (int n = 0; n < pairs.size(); n++)
+      write(pairs.first(n), pairs.second(n), pairs.score(n));
+  }
+
+  /**
+   * Return a writer which writes everything to both <code>first</code> and <code>second</code>,
+   * e.g. the output and a ClusterAggregator.
+   */
+  static SimilarityMatrixWriter tee(SimilarityMatrixWriter first, SimilarityMatrixWriter second) {
+    return new SimilarityMatrixWriter() {
+      @Override
+      public void write(int i, int j, float score) throws IOException {
+        first.write(i, j, score);
+        second.write(i, j, score);
+      }
+
+      @Override
+      public void flush() throws IOException {
+        first.flush();
+        second.flush();
+      }
+
+      @Override
+      public void close() throws IOException {
+        try {
+          first.close();
+        } finally {
+          second.close();
+        }
+      }
+    };
+  }
+
+  /**
+   * Open a writer for the given --output-format, creating the output's directory if need be.
+   *
+   * @param format "text" or "binary"
+   * @param f the output file
+   * @param organisms names of the organisms, in index order
+   * @param append add to the existing output rather than replacing it; the existing
+   *               output's organisms must be the first ones in <code>organisms</code>
+   * @throws IllegalArgumentException on an unknown format
+   */
+  static SimilarityMatrixWriter open(String format, File f, List<String> organisms, boolean append)
+          throws IOException {
+    File d = f.getAbsoluteFile().getParentFile();
+    if (! d.exists()) {
+      d.mkdirs();
+    }
+
+    switch (format) {
+      case "text": return new TextMatrixWriter(f, organisms, append);
+      case "binary": return new BinaryMatrixWriter(f, organisms, append);
+      default: throw new IllegalArgumentException("Unknown output format: " + format);
+    }
+  }
+
+}
@@ -0,0 +1,263 @@
+package com.rpeck.karius;
+
+/**
+ * How to turn the number of k-mers two Organisms share into the score which is compared
+ * against --threshold and written to the output. Every metric is a function of just the
+ * two k-mer counts and the intersection, so the engines count the intersection once and
+ * switching metrics never costs another pass over the k-mers.<p>
+ *
+ * The metrics, for --metric:
+ * <ul>
+ *   <li>average: |A &cap; B| / ((|A| + |B|) / 2), the original score, and the default</li>
+ *   <li>containment: |A &cap; B| / min(|A|, |B|), i.e. the larger of the two directed
+ *     containments |A &cap; B| / |A| and |A &cap; B| / |B|; how much of the smaller genome
+ *     is in the larger one, which is what flags a contaminated or mislabelled assembly
+ *     even when its size is very different from its neighbour's</li>
+ *   <li>min-containment: |A &cap; B| / max(|A|, |B|), the smaller of the two directed
+ *     containments, so that a pair passes only if each genome is mostly in the other</li>
+ *   <li>jaccard: |A &cap; B| / |A &cup; B|</li>
+ *   <li>mash: the Mash distance -ln(2J / (1 + J)) / k, an estimate of the per-base
+ *     mutation rate. Unlike the others it's a distance, so a pair is kept if it's
+ *     <em>below</em> the threshold, e.g. --threshold 0.05 for roughly 95% identity</li>
+ *   <li>weighted-jaccard: the Jaccard similarity of the genomes as multisets of k-mers,
+ *     &Sigma; min(a<sub>i</sub>, b<sub>i</sub>) / &Sigma; max(a<sub>i</sub>, b<sub>i</sub>)
+ *     over the k-mers' counts, so that a plasmid (or a contaminant) present in ten copies
+ *     weighs ten times as much as one which is there once</li>
+ *   <li>cosine: the cosine similarity of the k-mer count vectors,
+ *     &Sigma; a<sub>i</sub>b<sub>i</sub> / (|a| |b|)</li>
+ * </ul>
+ * The average is symmetric, but it under-rates a small genome which is entirely
+ * contained in a big one; that's what the containments are for.<p>
+ *
+ * The engines prune with {@link #canPass(int, int, float)} and
+ * {@link #requiredShared(int, int, float)}, which rely on two things every metric has to
+ * guarantee: more shared k-mers never makes a pair less similar, and for a fixed
+ * intersection a bigger genome never makes it more similar (the number of shared k-mers
+ * a pair needs is nondecreasing in each size).<p>
+ *
+ * The last two are {@link #isWeighted() weighted}: they need each k-mer's count, not just
+ * the intersection, so the Organisms are ingested with counts (see
+ * Organism.isCounted()) and the engines score each pair with
+ * {@link #weightedScore(Organism, Organism)}, a single merge pass over the k-mers and
+ * their counts. There's no size pruning for them. Their int versions are what they'd be
+ * if every count were 1.
+ */
+public interface SimilarityMetric {
+
+  /**
+   * The name of the metric, as given to --metric and recorded in the MatrixManifest.
+   */
+  String name();
+
+  /**
+   * The score of a pair of Organisms with <code>first</code> and <code>second</code>
+   * distinct k-mers, <code>intersection</code> of which they share.
+   */
+  float score(int first, int second, int intersection);
+
+  /**
+   * Should the pair be kept? By default, if its score is more than the threshold.
+   */
+  default boolean isSimilar(int first, int second, int intersection, float threshold) {
+    return score(first, second, intersection) > threshold;
+  }
+
+  /**
+   * Could a pair of these sizes pass at all, i.e. if all of the smaller one were shared?
+   */
+  default boolean canPass(int first, int second, float threshold) {
+    return isSimilar(first, second, Math.min(first, second), threshold);
+  }
+
+  /**
+   * The fewest shared k-mers with which a pair of these sizes passes, or more than the
+   * smaller size if it can't. It's a binary search over
+   * {@link #isSimilar(int, int, int, float)}, so it agrees with it exactly, and it's a
+   * couple of dozen multiplies: nothing next to an intersection.
+   */
+  default int requiredShared(int first, int second, float threshold) {
+    int lo = 0;
+    int hi = Math.min(first, second) + 1;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (isSimilar(first, second, mid, threshold))
+        hi = mid;
+      else
+        lo = mid + 1;
+    }
+    return lo;
+  }
+
+  /**
+   * Does this metric need the k-mers' counts? If so the engines score pairs with
+   * {@link #weightedScore(Organism, Organism)} rather than from the intersection.
+   */
+  default boolean isWeighted() {
+    return false;
+  }
+
+  /**
+   * The score of a pair of counted Organisms, for a weighted metric. A pair is kept if
+   * it's more than the threshold.
+   * @throws UnsupportedOperationException if the metric isn't weighted
+   */
+  default float weightedScore(Organism first, Organism second) {
+    throw new UnsupportedOperationException(name() + " isn't a weighted metric");
+  }
+
+  default float score(Organism first, Organism second, int intersection) {
+    return score(first.totalKmers(), second.totalKmers(), intersection);
+  }
+
+  default boolean isSimilar(Organism first, Organism second, int intersection, float threshold) {
+    return isSimilar(first.totalKmers(), second.totalKmers(), intersection, threshold);
+  }
+
+  SimilarityMetric AVERAGE = new SimilarityMetric() {
+    @Override
+    public String name() {
+      return "average";
+    }
+
+    @Override
+    public float score(int first, int second, int intersection) {
+      float averageKmers = (first + (long) second) / 2.0f;
+      return intersection / averageKmers;
+    }
+
+    @Override
+    public boolean isSimilar(int first, int second, int intersection, float threshold) {
+      // exactly as it always was, so that old outputs can be --appended to
+      float averageKmers = (first + (long) second) / 2.0f;
+      return intersection > averageKmers * threshold;
+    }
+  };
+
+  SimilarityMetric CONTAINMENT = new SimilarityMetric() {
+    @Override
+    public String name() {
+      return "containment";
+    }
+
+    @Override
+    public float score(int first, int second, int intersection) {
+      return intersection / (float) Math.min(first, second);
+    }
+  };
+
+  SimilarityMetric MIN_CONTAINMENT = new SimilarityMetric() {
+    @Override
+    public String name() {
+      return "min-containment";
+    }
+
+    @Override
+    public float score(int first, int second, int intersection) {
+      return intersection / (float) Math.max(first, second);
+    }
+  };
+
+  SimilarityMetric JACCARD = new SimilarityMetric() {
+    @Override
+    public String name() {
+      return "jaccard";
+    }
+
+    @Override
+    public float score(int first, int second, int intersection) {
+      return intersection / (float) (first + (long) second - intersection);
+    }
+  };
+
+  SimilarityMetric WEIGHTED_JACCARD = new SimilarityMetric() {
+    @Override
+    public String name() {
+      return "weighted-jaccard";
+    }
+
+    @Override
+    public float score(int first, int second, int intersection) {
+      return JACCARD.score(first, second, intersection);
+    }
+
+    @Override
+    public boolean isWeighted() {
+      return true;
+    }
+
+    @Override
+    public float weightedScore(Organism first, Organism second) {
+      // sum of the maxes = sum of the counts - sum of the mins
+      long min = first.minCountSum(second);
+      long max = first.totalCount() + second.totalCount() - min;
+      return max == 0 ? 0.0f : (float) ((double) min / max);
+    }
+  };
+
+  SimilarityMetric COSINE = new SimilarityMetric() {
+    @Override
+    public String name() {
+      return "cosine";
+    }
+
+    @Override
+    public float score(int first, int second, int intersection) {
+      return (float) (intersection / Math.sqrt((double) first * second));
+    }
+
+    @Override
+    public boolean isWeighted() {
+      return true;
+    }
+
+    @Override
+    public float weightedScore(Organism first, Organism second) {
+      long dot = first.countDotProduct(second); // throws if they aren't counted
+      double norms = first.countNorm() * second.countNorm();
+      return norms == 0 ? 0.0f : (float) (dot / norms);
+    }
+  };
+
+  /**
+   * The Mash distance for k-mers of length <code>kmerLen</code>.
+   */
+  static SimilarityMetric mash(int kmerLen) {
+    return new SimilarityMetric() {
+      @Override
+      public String name() {
+        return "mash";
+      }
+
+      @Override
+      public float score(int first, int second, int intersection) {
+        // 2J / (1 + J) = 2 |A & B| / (|A| + |B|), the average score, so this is -ln(average) / k
+        // (inverted rather than negated, so that identical genomes are 0 rather than -0)
+        return (float) (Math.log((first + (long) second) / (2.0 * intersection)) / kmerLen);
+      }
+
+      @Override
+      public boolean isSimilar(int first, int second, int intersection, float threshold) {
+        return intersection > 0 && score(first, second, intersection) < threshold;
+      }
+    };
+  }
+
+  /**
+   * Look up a metric by its --metric name.
+   * @throws IllegalArgumentException if there's no such metric
+   */
+  static SimilarityMetric forName(String name, int kmerLen) {
+    switch (name) {
+      case "average": return AVERAGE;
+      case "containment": return CONTAINMENT;
+      case "min-containment": return MIN_CONTAINMENT;
+      case "jaccard": return JACCARD;
+      case "mash": return mash(kmerLen);
+      case "weighted-jaccard": return WEIGHTED_JACCARD;
+      case "cosine": return COSINE;
+      default:
+        throw new IllegalArgumentException("--metric must be average, containment, min-containment, jaccard, mash, weighted-jaccard or cosine: " + name);
+    }
+  }
+
+}
@@ -0,0 +1,91 @@
+package com.rpeck.karius;
+
+/**
+ * Threshold-aware shortcuts for the pair loops of BlockedComparisonEngine and
+ * OutOfCoreEngine.<p>
+ *
+ * Two organisms can't share more k-mers than the smaller one has, so with a high
+ * --threshold a lot of pairs can be ruled out from their sizes alone: at 0.9 with the
+ * average metric, a genome can only match ones at most ~1.2x its size. Those pairs are
+ * skipped without touching their k-mers. Main sorts the organisms by size, so along a
+ * row the columns only get bigger, and once a column is too big for the row every later
+ * one is too (see SimilarityMetric for why), so the row can stop there. The pairs which
+ * survive are intersected with SortedLongArrays.intersectionCountAtLeast, which gives up
+ * as soon as the rest of the arrays can't make up the required count.<p>
+ *
+ * With --prefilter, a pair which gets that far is first screened with the Organisms'
+ * HyperLogLogs, which give an upper bound on the intersection from 8 KB of registers; if
+ * even that can't pass, neither can the pair. The bound is probabilistic, so unlike the
+ * rest of this it can (rarely) drop a pair which is only just over the threshold.<p>
+ *
+ * Sketch intersections are estimates which can exceed the smaller sketch's estimated
+ * size, so for sketches there's no pruning at all; they're cheap anyway. Nor is there
+ * for the weighted metrics, which don't score from the intersection.
+ */
+class SizePruning {
+  private final SimilarityMetric metric;
+  private final float threshold;
+  private final int[] sizes;
+  private final boolean enabled;
+  private final boolean ascending; // are the columns, from firstNew on, sorted by size?
+  private final HyperLogLog[] hlls; // for --prefilter, or null
+
+  SizePruning(Organism[] orgs, int firstNew, SimilarityMetric metric, float threshold) {
+    this(orgs, firstNew, metric, threshold, false);
+  }
+
+  /**
+   * @param prefilter whether to screen pairs with their HyperLogLogs before intersecting them
+   */
+  SizePruning(Organism[] orgs, int firstNew, SimilarityMetric metric, float threshold, boolean prefilter) {
+    this.metric = metric;
+    this.threshold = threshold;
+    this.sizes = new int[orgs.length];
+    for (int i = 0; i < orgs.length; i++)
+      sizes[i] = orgs[i].totalKmers();
+    this.enabled = orgs.length > 0 && ! orgs[0].isSketch() && ! metric.isWeighted();
+
+    boolean sorted = true;
+    for (int i = Math.max(1, firstNew + 1); i < orgs.length && sorted; i++)
+      sorted = sizes[i - 1] <= sizes[i];
+    this.ascending = sorted;
+
+    if (prefilter && enabled) {
+      hlls = new HyperLogLog[orgs.length];
+      for (int i = 0; i < orgs.length; i++)
+        hlls[i] = orgs[i].getHll();
+    } else {
+      hlls = null;
+    }
+  }
+
+  /**
+   * Could pair (i, j) pass the threshold if all of the smaller one were shared?
+   */
+  boolean canPass(int i, int j) {
+    return ! enabled || metric.canPass(sizes[i], sizes[j], threshold);
+  }
+
+  /**
+   * Given that (i, j) can't pass, can't any of (i, j + 1), (i, j + 2), ... either?
+   */
+  boolean restOfRowFails(int i, int j) {
+    return enabled && ascending && sizes[j] >= sizes[i];
+  }
+
+  /**
+   * Count the shared k-mers of pair (i, j), giving up early if it can't pass.
+   * @return the intersection count, or if it's too small to pass, some smaller number
+   */
+  int intersectionCount(Organism first, Organism second, int i, int j) {
+    if (! enabled)
+      return first.intersectionCount(second);
+    if (hlls != null) {
+      int bound = HyperLogLog.intersectionBound(hlls[i], hlls[j], sizes[i], sizes[j]);
+      if (! metric.isSimilar(sizes[i], sizes[j], bound, threshold))
+        return bound; // less than the required count, since even that isn't enough
+    }
+    return first.intersectionCountAtLeast(second, metric.requiredShared(sizes[i], sizes[j], threshold));
+  }
+
+}
@@ -0,0 +1,300 @@
+package com.rpeck.karius;
+
+/**
+ * Intersection kernels for sorted (signed), duplicate-free long arrays such as an
+ * Organism's frozen k-mers.<p>
+ *
+ * We only ever need the <i>size</i> of the intersection, so none of these allocate
+ * anything. The linear merge streams through both arrays sequentially, which is as
+ * friendly as it gets for the hardware prefetcher. When one array is much larger than
+ * the other we gallop (exponential search) through the larger one instead, which is
+ * O(m log(n / m)) rather than O(m + n).<p>
+ *
+ * On JDK 16+ with <code>--add-modules jdk.incubator.vector</code>, and the classes from
+ * src/vector on the classpath, the merges are done by VectorIntersection, which compares
+ * blocks of each array a vector register at a time. Otherwise (or with
+ * -Dkarius.vector=false) they're the scalar loops below, which give the same answers.
+ */
+public class SortedLongArrays {
+
+  /**
+   * If the larger array is more than this many times the size of the smaller one we
+   * gallop rather than merge. Empirically the crossover is somewhere around 20-50x.
+   */
+  static final int GALLOP_RATIO = 32;
+
+  static final String VECTOR_KERNEL_CLASS = "com.rpeck.karius.VectorIntersection";
+
+  // the SIMD merge kernel, or null if this JVM can't run it
+  private static final IntersectionKernel VECTOR = loadVectorKernel();
+
+  private SortedLongArrays() {
+  }
+
+  /**
+   * Count the elements common to two sorted arrays, picking whichever kernel should be
+   * faster for their relative sizes.
+   */
+  public static int intersectionCount(long[] a, long[] b) {
+    if (a.length > b.length) {
+      long[] t = a;
+      a = b;
+      b = t;
+    }
+    if (a.length == 0)
+      return 0;
+    if (b.length / a.length >= GALLOP_RATIO)
+      return gallopCount(a, b);
+    return VECTOR != null ? VECTOR.mergeCount(a, b) : mergeCount(a, b);
+  }
+
+  /**
+   * Like {@link #intersectionCount(long[], long[])}, but give up as soon as the elements
+   * left can't bring the count up to <code>required</code>. With a high --threshold most
+   * pairs fail, and they fail early: at 0.9, a merge stops after about a tenth of the
+   * smaller array has failed to match.
+   * @return the intersection count if it's at least <code>required</code>; otherwise some
+   *         number less than <code>required</code>
+   */
+  public static int intersectionCountAtLeast(long[] a, long[] b, int required) {
+    if (a.length > b.length) {
+      long[] t = a;
+      a = b;
+      b = t;
+    }
+    if (required <= 0)
+      return intersectionCount(a, b);
+    if (a.length < required)
+      return 0;
+    if (b.length / a.length >= GALLOP_RATIO)
+      return gallopCountAtLeast(a, b, required);
+    return VECTOR != null ? VECTOR.mergeCountAtLeast(a, b, required) : mergeCountAtLeast(a, b, required);
+  }
+
+  /**
+   * Count the common elements with a linear merge: O(a.length + b.length).
+   */
+  public static int mergeCount(long[] a, long[] b) {
+    int count = 0;
+    int i = 0;
+    int j = 0;
+    while (i < a.length && j < b.length) {
+      long x = a[i];
+      long y = b[j];
+      if (x < y) {
+        i++;
+      } else if (x > y) {
+        j++;
+      } else {
+        count++;
+        i++;
+        j++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * {@link #mergeCount(long[], long[])}, stopping as soon as the count can't reach
+   * <code>required</code>.
+   */
+  static int mergeCountAtLeast(long[] a, long[] b, int required) {
+    // how many more elements of each array can fail to match before the count can't
+    // reach required: a match uses up one of each, so it doesn't change either
+    int slackA = a.length - required;
+    int slackB = b.length - required;
+    if (slackA < 0 || slackB < 0)
+      return 0;
+    int count = 0;
+    int i = 0;
+    int j = 0;
+    while (i < a.length && j < b.length) {
+      long x = a[i];
+      long y = b[j];
+      if (x < y) {
+        i++;
+        if (--slackA < 0)
+          return count;
+      } else if (x > y) {
+        j++;
+        if (--slackB < 0)
+          return count;
+      } else {
+        count++;
+        i++;
+        j++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Count the common elements by looking up each element of the small array in the large
+   * one with an exponential search from where the previous lookup left off:
+   * O(small.length * log(large.length / small.length)).
+   */
+  public static int gallopCount(long[] small, long[] large) {
+    int count = 0;
+    int lo = 0;
+    for (int i = 0; i < small.length && lo < large.length; i++) {
+      long x = small[i];
+      if (large[lo] < x) {
+        // gallop: find a bound hi with large[hi] >= x, then binary search (lo, hi]
+        int step = 1;
+        int hi = lo + 1;
+        while (hi < large.length && large[hi] < x) {
+          lo = hi;
+          step <<= 1;
+          hi = lo + step;
+        }
+        if (hi > large.length - 1)
+          hi = large.length - 1;
+        lo = lowerBound(large, lo + 1, hi, x);
+        if (lo == large.length)
+          break;
+      }
+      if (large[lo] == x) {
+        count++;
+        lo++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * {@link #gallopCount(long[], long[])}, stopping as soon as the count can't reach
+   * <code>required</code>.
+   */
+  static int gallopCountAtLeast(long[] small, long[] large, int required) {
+    int slack = small.length - required; // elements of small which can still go unmatched
+    if (slack < 0)
+      return 0;
+    int count = 0;
+    int lo = 0;
+    for (int i = 0; i < small.length && lo < large.length; i++) {
+      long x = small[i];
+      if (large[lo] < x) {
+        int step = 1;
+        int hi = lo + 1;
+        while (hi < large.length && large[hi] < x) {
+          lo = hi;
+          step <<= 1;
+          hi = lo + step;
+        }
+        if (hi > large.length - 1)
+          hi = large.length - 1;
+        lo = lowerBound(large, lo + 1, hi, x);
+        if (lo == large.length)
+          break;
+      }
+      if (large[lo] == x) {
+        count++;
+        lo++;
+      } else if (--slack < 0) {
+        return count;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * The weighted intersection of two counted k-mer sets: the sum over the shared elements
+   * of the smaller of their two counts, in one merge pass. The counts are parallel to the
+   * arrays, and unsigned (see LongHashSet.MAX_COUNT).
+   */
+  public static long minCountSum(long[] a, short[] countsA, long[] b, short[] countsB) {
+    long sum = 0;
+    int i = 0;
+    int j = 0;
+    while (i < a.length && j < b.length) {
+      long x = a[i];
+      long y = b[j];
+      if (x < y) {
+        i++;
+      } else if (x > y) {
+        j++;
+      } else {
+        sum += Math.min(countsA[i] & 0xffff, countsB[j] & 0xffff);
+        i++;
+        j++;
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * The dot product of two counted k-mer sets as count vectors: the sum over the shared
+   * elements of the product of their counts, in one merge pass.
+   */
+  public static long countDotProduct(long[] a, short[] countsA, long[] b, short[] countsB) {
+    long sum = 0;
+    int i = 0;
+    int j = 0;
+    while (i < a.length && j < b.length) {
+      long x = a[i];
+      long y = b[j];
+      if (x < y) {
+        i++;
+      } else if (x > y) {
+        j++;
+      } else {
+        sum += (long) (countsA[i] & 0xffff) * (countsB[j] & 0xffff);
+        i++;
+        j++;
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * The SIMD kernel, if it's in use, for tests and benchmarks; otherwise null.
+   */
+  static IntersectionKernel vectorKernel() {
+    return VECTOR;
+  }
+
+  /**
+   * Load VectorIntersection, if it was built (it needs JDK 16+ to compile), the
+   * jdk.incubator.vector module is resolvable, and the machine has vector registers
+   * which hold more than one long. It has to agree with the scalar merge on a small
+   * example, too, or we don't trust it.
+   * @return the kernel, or null to use the scalar loops
+   */
+  static IntersectionKernel loadVectorKernel() {
+    if (! Boolean.parseBoolean(System.getProperty("karius.vector", "true")))
+      return null;
+    try {
+      IntersectionKernel kernel = (IntersectionKernel) Class.forName(VECTOR_KERNEL_CLASS)
+              .getDeclaredConstructor().newInstance();
+      long[] a = new long[64];
+      long[] b = new long[48];
+      for (int i = 0; i < a.length; i++)
+        a[i] = 3L * i - 50;
+      for (int i = 0; i < b.length; i++)
+        b[i] = 2L * i - 40;
+      if (kernel.mergeCount(a, b) != mergeCount(a, b))
+        return null;
+      return kernel;
+    } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+      // not built, no jdk.incubator.vector (e.g. Java 8, or no --add-modules), or no SIMD
+      return null;
+    }
+  }
+
+  /**
+   * Return the first index in [from, to] whose value is >= x, or to + 1 if there's none.
+   */
+  static int lowerBound(long[] a, int from, int to, long x) {
+    int lo = from;
+    int hi = to + 1;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (a[mid] < x)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+    return lo;
+  }
+
+}
@@ -0,0 +1,39 @@
+package com.rpeck.karius;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The original output format: one line per similar pair, like
+ * <pre>
+ *   GCF_000018125.1_ASM1812v1 X GCF_000007465.2_ASM746v2: 0.93
+ * </pre>
+ */
+public class TextMatrixWriter implements SimilarityMatrixWriter {
+  private final List<String> organisms;
+  private final BufferedWriter writer;
+
+  public TextMatrixWriter(File f, List<String> organisms, boolean append) throws IOException {
+    this.organisms = organisms;
+    this.writer = new BufferedWriter(new FileWriter(f, append));
+  }
+
+  @Override
+  public void write(int i, int j, float score) throws IOException {
+    writer.write(organisms.get(i) + " X " + organisms.get(j) + ": " + score + "\n");
+  }
+
+  @Override
+  public void flush() throws IOException {
+    writer.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    writer.close();
+  }
+
+}
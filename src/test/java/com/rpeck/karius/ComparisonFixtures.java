@@ -0,0 +1,70 @@
+package com.rpeck.karius;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Random Organisms and result checks shared by the ComparisonEngine tests.
+ */
+class ComparisonFixtures {
+
+  private ComparisonFixtures() {
+  }
+
+  /**
+   * A family of organisms which share more or less of a common pool of k-mers, with up to
+   * 1000 each.
+   */
+  static List<Organism> randomOrganisms(Random random, int count) {
+    return randomOrganisms(random, count, 1000, 1000);
+  }
+
+  /**
+   * Like {@link #randomOrganisms(Random, int)}, with from <code>minKmers</code> up to (but
+   * not including) <code>maxKmers</code> draws from the pool each, so that their sizes
+   * differ. Organism n has n duplicate hashes, so that they can be told apart.
+   */
+  static List<Organism> randomOrganisms(Random random, int count, int minKmers, int maxKmers) {
+    List<Organism> organisms = new ArrayList<>();
+    for (int n = 0; n < count; n++) {
+      long range = 2000 + random.nextInt(4000);
+      int draws = maxKmers > minKmers ? minKmers + random.nextInt(maxKmers - minKmers) : minKmers;
+      long[] kmers = LongStream.generate(() -> (long) (random.nextDouble() * range))
+              .limit(draws).distinct().sorted().toArray();
+      organisms.add(Organism.fromKmers("org" + n, "v1", "desc", kmers, n));
+    }
+    return organisms;
+  }
+
+  /**
+   * Three unrelated families of organisms like those of {@link #randomOrganisms(Random, int)},
+   * as sketches of <code>sketchSize</code> hashes, or exact k-mer sets if it's 0.
+   */
+  static List<Organism> randomFamilies(Random random, int count, int sketchSize) {
+    List<Organism> organisms = new ArrayList<>();
+    for (int n = 0; n < count; n++) {
+      long offset = random.nextInt(3) * 100000L;
+      long range = 2000 + random.nextInt(4000);
+      Organism o = new Organism("org" + n, "v1", "desc", 0, sketchSize, false);
+      for (int k = 0; k < 1000; k++)
+        o.addKmer(offset + (long) (random.nextDouble() * range));
+      o.freeze();
+      organisms.add(o);
+    }
+    return organisms;
+  }
+
+  static void assertSameResults(PairBuffer expected, PairBuffer actual, String message) {
+    assertEquals(expected.size(), actual.size(), message);
+    for (int n = 0; n < expected.size(); n++) {
+      assertEquals(expected.first(n), actual.first(n), message);
+      assertEquals(expected.second(n), actual.second(n), message);
+      assertEquals(expected.score(n), actual.score(n), message);
+    }
+  }
+
+}
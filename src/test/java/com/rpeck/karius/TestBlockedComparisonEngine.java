@@ -0,0 +1,155 @@
+package com.rpeck.karius;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.LongStream;
+
+import static com.rpeck.karius.ComparisonFixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestBlockedComparisonEngine {
+
+  // the slow, obvious way
+  private static PairBuffer naiveCompare(List<Organism> organisms, int firstNew, float threshold) {
+    PairBuffer results = new PairBuffer();
+    for (int i = 0; i < organisms.size(); i++) {
+      for (int j = Math.max(i + 1, firstNew); j < organisms.size(); j++) {
+        Organism first = organisms.get(i);
+        Organism second = organisms.get(j);
+        float averageKmers = (first.totalKmers() + second.totalKmers()) / 2.0f;
+        int intersection = first.intersectionCount(second);
+        if (intersection > averageKmers * threshold)
+          results.add(i, j, intersection / averageKmers);
+      }
+    }
+    return results;
+  }
+
+  @Test
+  void testMatchesNestedLoop() {
+    List<Organism> organisms = randomOrganisms(new Random(42), 37);
+    PairBuffer expected = naiveCompare(organisms, 0, 0.3f);
+    assertTrue(expected.size() > 0);
+
+    for (int threads : new int[] {1, 2, 4, 7}) {
+      BlockedComparisonEngine engine = new BlockedComparisonEngine(threads);
+      assertSameResults(expected, engine.compare(organisms, 0, 0.3f), threads + " threads");
+
+      for (int blockSize : new int[] {1, 3, 8, 100}) {
+        engine.setBlockSize(blockSize);
+        assertSameResults(expected, engine.compare(organisms, 0, 0.3f),
+                threads + " threads, block size " + blockSize);
+      }
+    }
+  }
+
+  @Test
+  void testFirstNew() {
+    List<Organism> organisms = randomOrganisms(new Random(7), 25);
+    BlockedComparisonEngine engine = new BlockedComparisonEngine(3);
+    for (int firstNew : new int[] {0, 1, 5, 24, 25}) {
+      for (int blockSize : new int[] {1, 4, 10}) {
+        engine.setBlockSize(blockSize);
+        assertSameResults(naiveCompare(organisms, firstNew, 0.2f), engine.compare(organisms, firstNew, 0.2f),
+                "firstNew " + firstNew + ", block size " + blockSize);
+      }
+    }
+  }
+
+  @Test
+  void testEdgeCases() {
+    BlockedComparisonEngine engine = new BlockedComparisonEngine(2);
+    assertEquals(0, engine.compare(new ArrayList<>(), 0, 0.5f).size());
+    assertEquals(0, engine.compare(randomOrganisms(new Random(1), 1), 0, 0.0f).size());
+    assertEquals(1, engine.chooseBlockSize(new Organism[0]));
+  }
+
+  @Test
+  void testWideMatrixGetsShortBands() {
+    // tiny Organisms would all fit in the cache, but a band of 256 rows would be 5M pairs
+    Organism[] orgs = new Organism[20000];
+    for (int n = 0; n < orgs.length; n++)
+      orgs[n] = Organism.fromKmers("org" + n, "v1", "desc", new long[] {n}, 0);
+    int b = new BlockedComparisonEngine(1).chooseBlockSize(orgs);
+    assertEquals(BlockedComparisonEngine.MAX_BAND_PAIRS / orgs.length, b);
+    assertEquals(BlockedComparisonEngine.MAX_BLOCK_SIZE, new BlockedComparisonEngine(1).chooseBlockSize(Arrays.copyOf(orgs, 1000)));
+  }
+
+  @Test
+  void testPairBufferSort() {
+    Random random = new Random(3);
+    PairBuffer buffer = new PairBuffer(4);
+    for (int n = 0; n < 10000; n++) {
+      int i = random.nextInt(n % 2 == 0 ? 100 : 200000);
+      int j = i + 1 + random.nextInt(100000);
+      buffer.add(i, j, (float) i + j);
+    }
+    buffer.sort();
+
+    for (int n = 0; n < buffer.size(); n++) {
+      assertEquals((float) buffer.first(n) + buffer.second(n), buffer.score(n));
+      if (n > 0) {
+        long prev = ((long) buffer.first(n - 1) << 32) | buffer.second(n - 1);
+        long cur = ((long) buffer.first(n) << 32) | buffer.second(n);
+        assertTrue(prev <= cur);
+      }
+    }
+  }
+
+  @Test
+  void testPruningMatchesNestedLoop() {
+    // prefixes of one pool of k-mers: a pair's similarity only depends on their sizes,
+    // so at a high threshold each genome only matches a narrow band of others
+    Random random = new Random(9);
+    long[] pool = LongStream.generate(random::nextLong).limit(5000).distinct().toArray();
+    List<Organism> organisms = new ArrayList<>();
+    for (int n = 0; n < 60; n++) {
+      long[] kmers = LongStream.of(pool).limit(500 + random.nextInt(4500)).sorted().toArray();
+      organisms.add(Organism.fromKmers("org" + n, "v1", "desc", kmers, 0));
+    }
+    List<Organism> sorted = new ArrayList<>(organisms);
+    sorted.sort((a, b) -> Integer.compare(a.totalKmers(), b.totalKmers()));
+
+    for (List<Organism> list : Arrays.asList(organisms, sorted)) {
+      for (String name : new String[] {"average", "min-containment", "jaccard"}) {
+        SimilarityMetric metric = SimilarityMetric.forName(name, 20);
+        for (float threshold : new float[] {0.5f, 0.8f, 0.95f}) {
+          for (int firstNew : new int[] {0, 41}) {
+            PairBuffer expected = new PairBuffer();
+            for (int i = 0; i < list.size(); i++) {
+              for (int j = Math.max(i + 1, firstNew); j < list.size(); j++) {
+                int intersection = list.get(i).intersectionCount(list.get(j));
+                if (metric.isSimilar(list.get(i), list.get(j), intersection, threshold))
+                  expected.add(i, j, metric.score(list.get(i), list.get(j), intersection));
+              }
+            }
+            BlockedComparisonEngine engine = new BlockedComparisonEngine(3);
+            engine.setBlockSize(5);
+            engine.setMetric(metric);
+            assertSameResults(expected, engine.compare(list, firstNew, threshold),
+                    (list == sorted ? "sorted, " : "") + name + " " + threshold + ", firstNew " + firstNew);
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  void testRequiredShared() {
+    for (String name : new String[] {"average", "containment", "min-containment", "jaccard", "mash"}) {
+      SimilarityMetric metric = SimilarityMetric.forName(name, 20);
+      float threshold = name.equals("mash") ? 0.01f : 0.9f;
+      for (int[] sizes : new int[][] {{100, 100}, {100, 110}, {100, 1000}, {0, 10}, {7, 3}}) {
+        int required = metric.requiredShared(sizes[0], sizes[1], threshold);
+        if (required <= Math.min(sizes[0], sizes[1]))
+          assertTrue(metric.isSimilar(sizes[0], sizes[1], required, threshold), name);
+        assertFalse(required > 0 && metric.isSimilar(sizes[0], sizes[1], required - 1, threshold), name);
+        assertEquals(required <= Math.min(sizes[0], sizes[1]), metric.canPass(sizes[0], sizes[1], threshold), name);
+      }
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package com.rpeck.karius;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestClusterAggregator {
+
+  private static final List<String> NAMES = Arrays.asList("a1", "a2", "a3", "b1", "b2", "b3", "x");
+
+  private static Map<String, String> labels() {
+    Map<String, String> labels = new HashMap<>();
+    for (String name : NAMES) {
+      if (! name.equals("x"))
+        labels.put(name, name.startsWith("a") ? "species A" : "species B");
+    }
+    return labels;
+  }
+
+  @Test
+  void testSuspects() {
+    ClusterAggregator clusters = new ClusterAggregator(NAMES, labels());
+    assertEquals(6, clusters.labelled());
+
+    clusters.write(0, 1, 0.9f); // a1 - a2
+    clusters.write(0, 2, 0.2f); // a1 - a3: a3 is really a B
+    clusters.write(2, 3, 0.8f);
+    clusters.write(2, 4, 0.7f);
+    clusters.write(2, 5, 0.9f);
+    clusters.write(3, 4, 0.95f);
+    clusters.write(4, 5, 0.9f);
+    clusters.write(1, 6, 1.0f); // x isn't in any cluster, so it's ignored
+
+    // averages over all the other members, counting missing pairs as 0
+    assertEquals(0.55f, clusters.similarity(0, 0), 1e-6); // a1 -> A: (0.9 + 0.2) / 2
+    assertEquals(0.1f, clusters.similarity(2, 0), 1e-6);  // a3 -> A: (0.2 + 0) / 2
+    assertEquals(0.8f, clusters.similarity(2, 1), 1e-6);  // a3 -> B: (0.8 + 0.7 + 0.9) / 3
+    assertEquals(3, clusters.count(2, 1));
+
+    List<ClusterAggregator.Suspect> suspects = clusters.suspects();
+    assertEquals(1, suspects.size());
+    ClusterAggregator.Suspect s = suspects.get(0);
+    assertEquals("a3", s.organism);
+    assertEquals("species A", s.label);
+    assertEquals("species B", s.bestCluster);
+    assertEquals(0.9f, s.bestMax);
+    assertEquals(0.7f, s.margin(), 1e-6);
+  }
+
+  @Test
+  void testRanking() {
+    ClusterAggregator clusters = new ClusterAggregator(NAMES, labels());
+    clusters.write(0, 3, 0.5f); // a1 and b1 both look like the other species...
+    clusters.write(1, 4, 0.9f); // ... but a2 and b2 more so
+    List<ClusterAggregator.Suspect> suspects = clusters.suspects();
+    assertEquals(Arrays.asList("a2", "b2", "a1", "b1"),
+            Arrays.asList(suspects.get(0).organism, suspects.get(1).organism,
+                    suspects.get(2).organism, suspects.get(3).organism));
+  }
+
+  @Test
+  void testReportThroughMain(@TempDir Path tmp) throws Exception {
+    Path clustersFile = tmp.resolve("clusters.tsv");
+    Files.write(clustersFile, Arrays.asList("# organism\tspecies", "a1\tA", "a2\tA", "", "b1\tB", "b2\tB"),
+            StandardCharsets.UTF_8);
+    Map<String, String> labels = ClusterAggregator.readClusters(clustersFile.toFile());
+    assertEquals(4, labels.size());
+    assertEquals("B", labels.get("b2"));
+
+    // a2 shares everything with the Bs and nothing with a1
+    List<Organism> organisms = new ArrayList<>();
+    organisms.add(Organism.fromKmers("a1", "v1", "desc", new long[] {1, 2, 3, 4}, 0));
+    organisms.add(Organism.fromKmers("a2", "v1", "desc", new long[] {5, 6, 7, 8}, 0));
+    organisms.add(Organism.fromKmers("b1", "v1", "desc", new long[] {5, 6, 7, 9}, 0));
+    organisms.add(Organism.fromKmers("b2", "v1", "desc", new long[] {5, 6, 7, 8}, 0));
+
+    File output = tmp.resolve("out.txt").toFile();
+    ClusterAggregator clusters = new ClusterAggregator(MatrixManifest.namesOf(organisms), labels);
+    try (SimilarityMatrixWriter writer = SimilarityMatrixWriter.open("text", output, MatrixManifest.namesOf(organisms), false)) {
+      Main.computeIntersectionsAndWriteOutput(organisms, 0, 0.5f, new BlockedComparisonEngine(2),
+              SimilarityMatrixWriter.tee(writer, clusters), null);
+    }
+    File report = tmp.resolve("out.txt" + Main.MISLABELS_SUFFIX).toFile();
+    clusters.writeReport(report);
+
+    List<String> lines = Files.readAllLines(report.toPath(), StandardCharsets.UTF_8);
+    assertEquals(2, lines.size());
+    assertTrue(lines.get(0).startsWith("organism\t"));
+    assertTrue(lines.get(1).startsWith("a2\tA\t0.0\tB\t0.875\t1.0\t"), lines.get(1));
+    assertEquals(3, Files.readAllLines(output.toPath()).size()); // the output is still all there
+  }
+}
@@ -0,0 +1,68 @@
+package com.rpeck.karius;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestFastaStreamParser {
+
+  @Test
+  void testStreamingParser() throws Exception {
+    // two records (say, a chromosome and a plasmid), with k-mers spanning line breaks
+    // but not records, and an IUPAC code in the middle of the first one
+    String fasta = ">NC_000001.1 Some organism, complete genome\n"
+            + "ACGTTGCA\nTGCAAC\r\nGTNACGGT\n"
+            + ">NC_000002.1 Some organism plasmid\n"
+            + "TTTTGGGG\nCCCC\n";
+    byte[] bytes = fasta.getBytes(StandardCharsets.US_ASCII);
+
+    Organism expected = new Organism("org", "v1", "desc");
+    expected.addFragment("ACGTTGCATGCAACGT", 5);
+    expected.addFragment("ACGGT", 5);
+    expected.addFragment("TTTTGGGGCCCC", 5);
+
+    // feed it in every possible chunk size, to make sure state carries across chunks
+    FastaStreamParser parser = new FastaStreamParser(16);
+    for (int chunk = 1; chunk <= bytes.length; chunk++) {
+      parser.begin("GCF_000000001.1_Test_genomic.fna.gz", 0, 5, 0);
+      for (int off = 0; off < bytes.length; off += chunk)
+        parser.feed(bytes, off, Math.min(chunk, bytes.length - off));
+      Organism o = parser.finish();
+
+      assertEquals(2, parser.records());
+      assertEquals("GCF_000000001.1_Test", o.getOrganism());
+      assertEquals("NC_000001.1", o.getVersion());
+      assertEquals("Some organism, complete genome", o.getDescription());
+      assertArrayEquals(expected.getKmers(), o.getKmers(), "chunk size " + chunk);
+    }
+
+    // several k-mer lengths in one pass: the same as a pass for each
+    int[] ks = {5, 3, 33};
+    parser.begin("GCF_000000001.1_Test_genomic.fna.gz", 0, ks, 0);
+    parser.feed(bytes, 0, bytes.length);
+    Organism[] all = parser.finishAll();
+    assertEquals(ks.length, all.length);
+    for (int i = 0; i < ks.length; i++) {
+      parser.begin("GCF_000000001.1_Test_genomic.fna.gz", 0, ks[i], 0);
+      parser.feed(bytes, 0, bytes.length);
+      Organism single = parser.finish();
+      assertEquals(single.getVersion(), all[i].getVersion());
+      assertArrayEquals(single.getKmers(), all[i].getKmers(), "k = " + ks[i]);
+    }
+
+    // the whole file: every k-mer of every contig, split only at IUPAC codes
+    Organism o = parser.parse(new File(TestMain.testFile1).toPath(), 20, 0);
+    assertEquals("GCF_000018125.1_ASM1812v1", o.getOrganism());
+    assertEquals("NC_011375.1", o.getVersion());
+    assertEquals("Streptococcus pyogenes NZ131, complete genome", o.getDescription());
+    assertEquals(1769274, o.totalKmers());
+
+    // ... which is just what representOrganism gets from the lines
+    FastaFile ff = FastaParser.parseSingleFile(new File(TestMain.testFile1).toPath());
+    assertArrayEquals(FastaParser.representOrganism(ff, 20).getKmers(), o.getKmers());
+  }
+
+}
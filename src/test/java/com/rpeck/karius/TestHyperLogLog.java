@@ -0,0 +1,84 @@
+package com.rpeck.karius;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestHyperLogLog {
+
+  @Test
+  void testEstimate() {
+    Random random = new Random(1);
+    for (int size : new int[] {0, 10, 1000, 100000, 2000000}) {
+      long[] kmers = LongStream.generate(random::nextLong).limit(size).distinct().sorted().toArray();
+      HyperLogLog hll = HyperLogLog.of(kmers);
+      // well within 4 standard errors
+      assertEquals(kmers.length, hll.estimate(), Math.max(1, 4 * HyperLogLog.RELATIVE_ERROR * kmers.length), size + " k-mers");
+
+      // adding them again changes nothing
+      for (long kmer : kmers)
+        hll.add(kmer);
+      assertArrayEquals(HyperLogLog.of(kmers).registers(), hll.registers());
+    }
+  }
+
+  @Test
+  void testIntersectionBound() {
+    Random random = new Random(2);
+    long[] pool = LongStream.generate(random::nextLong).limit(400000).distinct().toArray();
+    for (int trial = 0; trial < 20; trial++) {
+      // two random slices of the pool, which overlap by anything from all to nothing
+      int sizeA = 50000 + random.nextInt(150000);
+      int sizeB = 50000 + random.nextInt(150000);
+      int startA = random.nextInt(pool.length - sizeA);
+      int startB = random.nextInt(pool.length - sizeB);
+      long[] a = LongStream.of(pool).skip(startA).limit(sizeA).sorted().toArray();
+      long[] b = LongStream.of(pool).skip(startB).limit(sizeB).sorted().toArray();
+      int intersection = SortedLongArrays.intersectionCount(a, b);
+
+      int bound = HyperLogLog.intersectionBound(HyperLogLog.of(a), HyperLogLog.of(b), sizeA, sizeB);
+      assertTrue(bound >= intersection, "bound " + bound + " < " + intersection);
+      assertTrue(bound <= Math.min(sizeA, sizeB));
+      // and it's tight enough to be worth having: within the slack of the union
+      assertTrue(bound - intersection < 2 * HyperLogLog.UNION_SLACK * (sizeA + sizeB), "bound " + bound + " vs " + intersection);
+    }
+  }
+
+  @Test
+  void testPrefilterMatchesExact() {
+    // unrelated families, and near-duplicates within each
+    Random random = new Random(3);
+    List<Organism> organisms = new ArrayList<>();
+    for (int n = 0; n < 40; n++) {
+      long family = random.nextInt(4) * 1000000L;
+      long[] kmers = LongStream.generate(() -> family + random.nextInt(30000))
+              .limit(20000).distinct().sorted().toArray();
+      organisms.add(Organism.fromKmers("org" + n, "v1", "desc", kmers, 0));
+    }
+
+    for (float threshold : new float[] {0.2f, 0.4f}) {
+      PairBuffer expected = new BlockedComparisonEngine(2).compare(organisms, 0, threshold);
+      assertTrue(expected.size() > 0);
+      for (ComparisonEngine engine : new ComparisonEngine[] {new BlockedComparisonEngine(2),
+                                                             new OutOfCoreEngine(2, 8L * 20000 * 10, null)}) {
+        if (engine instanceof BlockedComparisonEngine)
+          ((BlockedComparisonEngine) engine).setPrefilter(true);
+        else
+          ((OutOfCoreEngine) engine).setPrefilter(true);
+        PairBuffer actual = engine.compare(organisms, 0, threshold);
+        assertEquals(expected.size(), actual.size());
+        for (int k = 0; k < expected.size(); k++) {
+          assertEquals(expected.first(k), actual.first(k));
+          assertEquals(expected.second(k), actual.second(k));
+          assertEquals(expected.score(k), actual.score(k));
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,103 @@
+package com.rpeck.karius;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestIngestionPipeline {
+
+  // a random genome of very roughly the given size, in 80 column lines, so that some
+  // files are much quicker to build than others and the builders finish out of order
+  private static Path writeGenome(Path dir, int n, int bases, Random random) throws IOException {
+    Path path = dir.resolve("GCF_" + String.format("%09d", n) + ".1_Test" + n + "_genomic.fna.gz");
+    StringBuilder fasta = new StringBuilder(">NC_" + n + ".1 Test organism " + n + ", complete genome\n");
+    for (int i = 0; i < bases; i++) {
+      fasta.append("ACGT".charAt(random.nextInt(4)));
+      if (i % 80 == 79)
+        fasta.append('\n');
+    }
+    fasta.append('\n');
+    try (OutputStream out = new GZIPOutputStream(new FileOutputStream(path.toFile()))) {
+      out.write(fasta.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+    return path;
+  }
+
+  private static List<Path> writeGenomes(Path dir, int count) throws IOException {
+    Random random = new Random(31);
+    List<Path> paths = new ArrayList<>();
+    for (int n = 0; n < count; n++)
+      paths.add(writeGenome(dir, n, 1000 + random.nextInt(3) * 200000, random));
+    return paths;
+  }
+
+  private static String organismName(Path path) {
+    String name = path.getFileName().toString();
+    return name.substring(0, name.indexOf("_genomic"));
+  }
+
+  @Test
+  void testOutputIsInInputOrder(@TempDir Path dir) throws Exception {
+    List<Path> paths = writeGenomes(dir, 12);
+    for (int threads : new int[] {1, 2, 5}) {
+      List<Organism> organisms = new IngestionPipeline(threads, 15, 0, null, false).run(paths);
+      assertEquals(paths.size(), organisms.size(), threads + " threads");
+      for (int i = 0; i < paths.size(); i++) {
+        assertEquals(organismName(paths.get(i)), organisms.get(i).getOrganism(), threads + " threads");
+        assertArrayEquals(new FastaStreamParser().parse(paths.get(i), 15, 0).getKmers(), organisms.get(i).getKmers());
+      }
+    }
+  }
+
+  @Test
+  void testBadFilesAreSkipped(@TempDir Path dir) throws Exception {
+    List<Path> paths = writeGenomes(dir, 6);
+
+    // one which isn't gzipped at all, and one which is cut off half way
+    Path notGzipped = dir.resolve("GCF_000000100.1_NotGzipped_genomic.fna.gz");
+    Files.write(notGzipped, ">NC_100.1 Not gzipped\nACGTACGT\n".getBytes(StandardCharsets.US_ASCII));
+    Path truncated = dir.resolve("GCF_000000101.1_Truncated_genomic.fna.gz");
+    byte[] whole = Files.readAllBytes(paths.get(paths.size() - 1));
+    Files.write(truncated, Arrays.copyOf(whole, whole.length / 2));
+
+    List<Path> withBad = new ArrayList<>(paths);
+    withBad.add(1, notGzipped);
+    withBad.add(4, truncated);
+    for (int threads : new int[] {1, 4}) {
+      List<Organism> organisms = new IngestionPipeline(threads, 15, 0, null, false).run(withBad);
+      assertEquals(paths.size(), organisms.size(), threads + " threads");
+      for (int i = 0; i < paths.size(); i++)
+        assertEquals(organismName(paths.get(i)), organisms.get(i).getOrganism(), threads + " threads");
+    }
+  }
+
+  @Test
+  void testWorkerFailureReachesRun(@TempDir Path dir) throws Exception {
+    List<Path> paths = writeGenomes(dir, 6);
+
+    // unlike a bad input file, failing to spill fails the whole run
+    OrganismSpill spill = new OrganismSpill(dir.toFile());
+    spill.close();
+    for (int threads : new int[] {1, 4}) {
+      IngestionPipeline pipeline = new IngestionPipeline(threads, 15, 0, null, false);
+      pipeline.setSpill(spill);
+      IOException e = assertThrows(IOException.class, () -> pipeline.run(paths));
+      assertTrue(e.getMessage().startsWith("Failed ingesting FASTA files"), e.getMessage());
+      assertNotNull(e.getCause());
+    }
+  }
+
+}
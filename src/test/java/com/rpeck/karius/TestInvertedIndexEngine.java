@@ -0,0 +1,64 @@
+package com.rpeck.karius;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static com.rpeck.karius.ComparisonFixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestInvertedIndexEngine {
+
+  @Test
+  void testPostingLists() {
+    List<Organism> organisms = new ArrayList<>();
+    organisms.add(Organism.fromKmers("a", "v1", "desc", new long[] {1, 2, 3}, 0));
+    organisms.add(Organism.fromKmers("b", "v1", "desc", new long[] {2, 3, 4}, 0));
+    organisms.add(Organism.fromKmers("c", "v1", "desc", new long[] {3, 5}, 0));
+    InvertedIndexEngine.Index index = InvertedIndexEngine.Index.build(organisms.toArray(new Organism[0]));
+
+    // 1, 4 and 5 are unique, so only 2 -> {a, b} and 3 -> {a, b, c} are kept
+    assertArrayEquals(new int[] {0, ~1, 0, 1, ~2}, index.postings);
+    assertArrayEquals(new int[] {0, 2, 3, 3}, index.starts);
+    assertArrayEquals(new int[] {0, 2, 3}, index.positions);
+  }
+
+  @Test
+  void testMatchesBlockedEngine() {
+    for (int sketchSize : new int[] {0, 200}) {
+      List<Organism> organisms = randomFamilies(new Random(42), 40, sketchSize);
+      for (float threshold : new float[] {0.0f, 0.3f}) {
+        for (int firstNew : new int[] {0, 17, 40}) {
+          PairBuffer expected = new BlockedComparisonEngine(2).compare(organisms, firstNew, threshold);
+          for (int threads : new int[] {1, 3}) {
+            PairBuffer actual = new InvertedIndexEngine(threads).compare(organisms, firstNew, threshold);
+            assertSameResults(expected, actual, "sketch size " + sketchSize + ", threshold " + threshold
+                    + ", firstNew " + firstNew + ", " + threads + " threads");
+          }
+        }
+        if (threshold == 0.0f) {
+          // pairs from unrelated families share nothing, so they're never even looked at
+          assertTrue(new InvertedIndexEngine(1).compare(organisms, 0, threshold).size() < 40 * 39 / 2);
+        }
+      }
+    }
+  }
+
+  @Test
+  void testEdgeCases() {
+    InvertedIndexEngine engine = new InvertedIndexEngine(2);
+    assertEquals(0, engine.compare(new ArrayList<>(), 0, 0.5f).size());
+
+    List<Organism> organisms = new ArrayList<>();
+    organisms.add(Organism.fromKmers("empty", "v1", "desc", new long[0], 0));
+    organisms.add(Organism.fromKmers("a", "v1", "desc", new long[] {1, 2}, 0));
+    organisms.add(Organism.fromKmers("b", "v1", "desc", new long[] {1, 2}, 0));
+    PairBuffer results = engine.compare(organisms, 0, 0.5f);
+    assertEquals(1, results.size());
+    assertEquals(1, results.first(0));
+    assertEquals(2, results.second(0));
+    assertEquals(1.0f, results.score(0));
+  }
+}
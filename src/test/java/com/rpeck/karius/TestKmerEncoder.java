@@ -0,0 +1,154 @@
+package com.rpeck.karius;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestKmerEncoder {
+
+  private static final String sequence =
+          "TTGTTGATATTCTGTTTTTTCTTTTTTAGTTTTCCACATAAAAAATAGTTGAAAACAATAGCGGTGTCACCTTAAAATGA";
+
+  private static String reverseComplement(String s) {
+    StringBuilder sb = new StringBuilder(s.length());
+    for (int i = s.length() - 1; i >= 0; i--) {
+      switch (s.charAt(i)) {
+        case 'A': sb.append('T'); break;
+        case 'C': sb.append('G'); break;
+        case 'G': sb.append('C'); break;
+        case 'T': sb.append('A'); break;
+        default: sb.append('N');
+      }
+    }
+    return sb.toString();
+  }
+
+  // the slow, obvious way: pack each substring from scratch
+  private static long pack(String kmer) {
+    long packed = 0;
+    for (char c : kmer.toCharArray())
+      packed = (packed << 2) | "ACGT".indexOf(c);
+    return packed;
+  }
+
+  private static Set<Long> encodeAll(String s, int k) {
+    Set<Long> kmers = new HashSet<>();
+    KmerEncoder encoder = new KmerEncoder(k);
+    for (int i = 0; i < s.length(); i++) {
+      if (encoder.push(s.charAt(i)))
+        kmers.add(encoder.canonical());
+    }
+    return kmers;
+  }
+
+  @Test
+  void testPackedKmersAreExact() {
+    for (int k : new int[] {1, 4, 16, 20, 31, 32}) {
+      KmerEncoder encoder = new KmerEncoder(k);
+      assertTrue(encoder.isExact());
+      for (int i = 0; i < sequence.length(); i++) {
+        boolean full = encoder.push(sequence.charAt(i));
+        assertEquals(i >= k - 1, full);
+        if (full) {
+          String kmer = sequence.substring(i - k + 1, i + 1);
+          long expected = Long.compareUnsigned(pack(kmer), pack(reverseComplement(kmer))) <= 0
+                  ? pack(kmer) : pack(reverseComplement(kmer));
+          assertEquals(expected, encoder.canonical(), "k=" + k + " at " + i);
+        }
+      }
+    }
+  }
+
+  @Test
+  void testCanonicalMatchesReverseComplement() {
+    for (int k : new int[] {5, 20, 32, 33, 40, 64, 65, 80}) {
+      assertEquals(encodeAll(sequence, k), encodeAll(reverseComplement(sequence), k), "k=" + k);
+    }
+  }
+
+  @Test
+  void testHashedKmersRoll() {
+    // for k > 32 the rolling hash must agree with hashing each window from scratch
+    for (int k : new int[] {40, 70}) {
+      KmerEncoder rolling = new KmerEncoder(k);
+      assertFalse(rolling.isExact());
+      for (int i = 0; i < sequence.length(); i++) {
+        if (rolling.push(sequence.charAt(i))) {
+          KmerEncoder fresh = new KmerEncoder(k);
+          for (char c : sequence.substring(i - k + 1, i + 1).toCharArray())
+            fresh.push(c);
+          assertEquals(fresh.canonical(), rolling.canonical(), "k=" + k + " at " + i);
+        }
+      }
+    }
+  }
+
+  @Test
+  void testSplitRotation() {
+    long x = 0x8000000100000001L; // the top bit of each part, and the bottom of the low one
+    assertEquals(0x0000000200000003L, KmerEncoder.splitRotateLeft(x));
+    assertEquals(x, KmerEncoder.splitRotateRight(KmerEncoder.splitRotateLeft(x)));
+    long y = 0x123456789abcdef0L;
+    long rotated = y;
+    for (int n = 0; n < 100; n++) {
+      assertEquals(rotated, KmerEncoder.splitRotateLeft(y, n), "n=" + n);
+      rotated = KmerEncoder.splitRotateLeft(rotated);
+    }
+    assertEquals(y, KmerEncoder.splitRotateLeft(y, 33 * 31));
+  }
+
+  @Test
+  void testLongKmersDontCollide() {
+    // a plain 64-bit rotation would give bases 64 apart the same rotation, so swapping them
+    // wouldn't change the hash
+    int k = 80;
+    String window = sequence.substring(0, k);
+    for (int i = 0; i + 64 < k; i++) {
+      if (window.charAt(i) == window.charAt(i + 64))
+        continue;
+      char[] swapped = window.toCharArray();
+      swapped[i] = window.charAt(i + 64);
+      swapped[i + 64] = window.charAt(i);
+      assertNotEquals(encodeAll(window, k), encodeAll(new String(swapped), k), "swapping " + i + " and " + (i + 64));
+    }
+  }
+
+  @Test
+  void testInvalidBasesResetTheWindow() {
+    KmerEncoder encoder = new KmerEncoder(3);
+    assertFalse(encoder.push('A'));
+    assertFalse(encoder.push('C'));
+    assertFalse(encoder.push('N'));
+    assertFalse(encoder.push('G'));
+    assertFalse(encoder.push('T'));
+    assertTrue(encoder.push('a')); // soft-masked lower case is fine
+    assertEquals(pack("GTA") < pack("TAC") ? pack("GTA") : pack("TAC"), encoder.canonical());
+  }
+
+  @Test
+  void testMultiKMatchesSingleK() {
+    int[] ks = {21, 1, 16, 31, 32, 33, 40};
+    String s = sequence.substring(0, 70) + "N" + sequence.substring(70) + "ACGTRACGT";
+    MultiKmerEncoder multi = new MultiKmerEncoder(ks);
+    KmerEncoder[] single = new KmerEncoder[ks.length];
+    for (int i = 0; i < ks.length; i++)
+      single[i] = new KmerEncoder(ks[i]);
+
+    for (int pos = 0; pos < s.length(); pos++) {
+      int code = KmerEncoder.code(s.charAt(pos));
+      if (code < 0)
+        multi.reset();
+      else
+        multi.pushCode(code);
+      for (int i = 0; i < ks.length; i++) {
+        boolean full = single[i].push(s.charAt(pos));
+        assertEquals(full, multi.isFull(i), "k=" + ks[i] + " at " + pos);
+        if (full)
+          assertEquals(single[i].canonical(), multi.canonical(i), "k=" + ks[i] + " at " + pos);
+      }
+    }
+  }
+}
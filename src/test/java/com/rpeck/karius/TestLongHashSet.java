@@ -0,0 +1,101 @@
+package com.rpeck.karius;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestLongHashSet {
+
+  @Test
+  void testAddAndContains() {
+    LongHashSet set = new LongHashSet();
+    assertTrue(set.isEmpty());
+    assertTrue(set.add(42));
+    assertFalse(set.add(42));
+    assertTrue(set.add(-42));
+    assertTrue(set.contains(42));
+    assertTrue(set.contains(-42));
+    assertFalse(set.contains(43));
+    assertEquals(2, set.size());
+  }
+
+  @Test
+  void testZeroIsAKey() {
+    // 0 is AAAA... so it has to be a legal key even though it marks empty slots
+    LongHashSet set = new LongHashSet();
+    assertFalse(set.contains(0));
+    assertTrue(set.add(0));
+    assertFalse(set.add(0));
+    assertTrue(set.contains(0));
+    assertEquals(1, set.size());
+    assertArrayEquals(new long[] {0}, set.toSortedArray());
+  }
+
+  @Test
+  void testGrowthAgainstHashSet() {
+    Random random = new Random(17);
+    LongHashSet set = new LongHashSet(10, 0.5f); // undersized on purpose, so that it grows
+    Set<Long> expected = new HashSet<>();
+    for (int i = 0; i < 100000; i++) {
+      long key = random.nextInt(50000) * 0x100000001L; // plenty of dupes; keys with low bits in common
+      assertEquals(expected.add(key), set.add(key));
+    }
+    assertEquals(expected.size(), set.size());
+
+    long[] sorted = set.toSortedArray();
+    long[] expectedSorted = expected.stream().mapToLong(Long::longValue).sorted().toArray();
+    assertArrayEquals(expectedSorted, sorted);
+  }
+
+  @Test
+  void testCounts() {
+    LongHashSet set = new LongHashSet(10, 0.5f, true); // grows, and the counts have to move with the keys
+    assertTrue(set.isCounting());
+    assertThrows(IllegalStateException.class, () -> new LongHashSet().count(1));
+    for (long key = 0; key < 1000; key++) {
+      for (int n = 0; n <= key % 5; n++)
+        set.add(key * 0x100000001L);
+    }
+    for (long key = 0; key < 1000; key++)
+      assertEquals(key % 5 + 1, set.count(key * 0x100000001L), "key " + key);
+    assertEquals(0, set.count(-1));
+
+    // counts saturate rather than wrapping
+    for (int n = 0; n < LongHashSet.MAX_COUNT + 10; n++)
+      set.add(-7);
+    assertEquals(LongHashSet.MAX_COUNT, set.count(-7));
+    short[] counts = set.countsOf(new long[] {-7, 0, 3 * 0x100000001L});
+    assertEquals(LongHashSet.MAX_COUNT, counts[0] & 0xffff);
+    assertEquals(1, counts[1]);
+    assertEquals(4, counts[2]);
+  }
+
+  @Test
+  void testFrozenOrganism() {
+    Organism o = new Organism("org", "v1", "desc", 100, 0, false);
+    o.addFragment("TCAGACTAGACAGAT", 4);
+    assertFalse(o.isFrozen());
+    int kmers = o.totalKmers();
+
+    o.freeze();
+    assertTrue(o.isFrozen());
+    assertEquals(kmers, o.totalKmers());
+    long[] frozen = o.getKmers();
+    long[] sorted = frozen.clone();
+    Arrays.sort(sorted);
+    assertArrayEquals(sorted, frozen);
+
+    assertThrows(IllegalStateException.class, () -> o.addFragment("ACGT", 4));
+  }
+
+  @Test
+  void testBadLoadFactor() {
+    assertThrows(IllegalArgumentException.class, () -> new LongHashSet(10, 1.0f));
+    assertThrows(IllegalArgumentException.class, () -> new LongHashSet(10, 0.0f));
+  }
+}
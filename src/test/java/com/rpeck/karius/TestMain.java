@@ -5,15 +5,15 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import java.io.File;
-import java.util.Iterator;
+import java.util.*;
 
 import static org.junit.jupiter.api.Assertions.*;
 
 class TestMain {
 
   // TODO: use Java resource magic to find the files.
-  private static final String testFile1 = "/Users/rpeck/Source/Interviews/Similarity_Exercise_Raymond/data/GCF_000018125.1_ASM1812v1_genomic.fna.gz";
-  private static final String testFile2 = "/Users/rpeck/Source/Interviews/Similarity_Exercise_Raymond/data/GCF_000013505.1_ASM1350v1_genomic.fna.gz";
+  static final String testFile1 = "/Users/rpeck/Source/Interviews/Similarity_Exercise_Raymond/data/GCF_000018125.1_ASM1812v1_genomic.fna.gz";
+  static final String testFile2 = "/Users/rpeck/Source/Interviews/Similarity_Exercise_Raymond/data/GCF_000013505.1_ASM1350v1_genomic.fna.gz";
 
   @BeforeEach
   void setUp() {
@@ -66,53 +66,75 @@ class TestMain {
     }
     assertEquals(38, iupacCount);
 
-    // one k-mer [long enough] line
+    // k-mers span line breaks, and only the ones containing an IUPAC code are lost:
+    // 1812832 of them in all, and 37646 repeats (either strand). k > 32 are hashes, but
+    // these are exactly the distinct k-mers a String-by-String count gives.
     Organism o1 = FastaParser.representOrganism(ff, 80);
     assertEquals("GCF_000018125.1_ASM1812v1", o1.getOrganism());
     assertEquals("NC_011375.1", o1.getVersion());
     assertEquals("Streptococcus pyogenes NZ131, complete genome", o1.getDescription());
-    assertEquals(22697 - iupacCount, o1.totalKmers()); // NOTE: last line isn't 80, so no k-mer!
+    assertEquals(1775186, o1.totalKmers());
+    assertEquals(1812832, o1.totalKmers() + o1.duplicateHashes());
 
-    // two k-mers per [long-enough] line
     Organism o2 = FastaParser.representOrganism(ff, 79);
     assertEquals("GCF_000018125.1_ASM1812v1", o2.getOrganism());
     assertEquals("NC_011375.1", o2.getVersion());
     assertEquals("Streptococcus pyogenes NZ131, complete genome", o2.getDescription());
-    // assume iupac chars aren't the first or last:
-    assertEquals(2 * (22697 - iupacCount) - o2.duplicateHashes(), o2.totalKmers()); // NOTE: last line isn't 80, so no k-mer!
+    assertEquals(1775134, o2.totalKmers());
+    assertEquals(1812857, o2.totalKmers() + o2.duplicateHashes());
 
     // one k-mer per unique character
     Organism o3 = FastaParser.representOrganism(ff, 1);
     assertEquals("GCF_000018125.1_ASM1812v1", o3.getOrganism());
     assertEquals("NC_011375.1", o3.getVersion());
     assertEquals("Streptococcus pyogenes NZ131, complete genome", o3.getDescription());
-    // should have only 4: A, C, G and T:
-    assertEquals(4, o3.totalKmers()); // NOTE: de-duped char count
+    // should have only 2: A/T and C/G, since a base and its complement are the same canonical 1-mer:
+    assertEquals(2, o3.totalKmers()); // NOTE: de-duped char count
   }
 
   @Test
   void testKmerMatching() {
     Organism o1 = new Organism("org1", "v1", "desc");
-    o1.addFragment("ABCD", 4);
+    o1.addFragment("CAGA", 4);
 
     Organism o2 = new Organism("org2", "v1", "desc");
-    o2.addFragment("QABCDZ", 4);
+    o2.addFragment("TCAGAT", 4);
 
-    assertEquals(1, o1.intersect(o1).size());
-    assertEquals(3, o2.intersect(o2).size());
-    assertEquals(1, o1.intersect(o2).size());
-    assertEquals(1, o2.intersect(o1).size());
+    assertEquals(1, o1.intersectionCount(o1));
+    assertEquals(3, o2.intersectionCount(o2));
+    assertEquals(1, o1.intersectionCount(o2));
+    assertEquals(1, o2.intersectionCount(o1));
 
     Organism o3 = new Organism("org3", "v1", "desc");
-    o3.addFragment("9ABCDAQBCDABCDZ", 4);
-    assertEquals(1, o1.intersect(o3).size()); // ABCD is a dupe; not counted twice
-    assertEquals(1, o3.intersect(o1).size()); // ABCD is a dupe; not counted twice
-    assertEquals(10, o3.intersect(o3).size());
+    o3.addFragment("TCAGACTAGACAGAT", 4);
+    assertEquals(1, o1.intersectionCount(o3)); // CAGA is a dupe; not counted twice
+    assertEquals(1, o3.intersectionCount(o1)); // CAGA is a dupe; not counted twice
+    assertEquals(10, o3.intersectionCount(o3));
 
     Organism o4 = new Organism("org4", "v1", "desc");
-    o4.addFragment("ABCDBCDA", 4);
-    assertEquals(2, o3.intersect(o4).size()); // ABCD BCDA
-    assertEquals(2, o4.intersect(o3).size()); // ABCD BCDA
-    assertEquals(5, o4.intersect(o4).size());
+    o4.addFragment("CAGAAGAC", 4);
+    assertEquals(2, o3.intersectionCount(o4)); // CAGA AGAC
+    assertEquals(2, o4.intersectionCount(o3)); // CAGA AGAC
+    assertEquals(5, o4.intersectionCount(o4));
   }
-}
\ No newline at end of file
+
+  @Test
+  void testKmerLengths() {
+    assertArrayEquals(new int[] {20}, Main.parseKmerLengths("20"));
+    assertArrayEquals(new int[] {16, 21, 31}, Main.parseKmerLengths("16, 21,31"));
+    assertThrows(NumberFormatException.class, () -> Main.parseKmerLengths("16,0"));
+    assertThrows(NumberFormatException.class, () -> Main.parseKmerLengths("21,21"));
+    assertThrows(NumberFormatException.class, () -> Main.parseKmerLengths("16;21"));
+
+    assertEquals("out.txt", Main.outputFor("out.txt", new int[] {21}, 21));
+    assertEquals("out.txt.k21", Main.outputFor("out.txt", new int[] {16, 21}, 21));
+  }
+
+  @Test
+  void testParseBytes() {
+    assertEquals(24L << 30, Main.parseBytes("24g"));
+    assertEquals(512L << 20, Main.parseBytes("512M"));
+    assertEquals(100, Main.parseBytes("100"));
+    assertThrows(NumberFormatException.class, () -> Main.parseBytes("lots"));
+  }
+}
@@ -0,0 +1,78 @@
+package com.rpeck.karius;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestMatrixManifest {
+
+  private static List<Organism> smallOrganisms() {
+    String[] genomes = {"TCAGACTAGACAGAT", "CAGAAGACTAGACAG", "GGGTTTCCCAAAGGT", "TCAGACTAGACTGAT"};
+    List<Organism> organisms = new ArrayList<>();
+    for (int i = 0; i < genomes.length; i++) {
+      Organism o = new Organism("org" + i, "v1", "desc");
+      o.addFragment(genomes[i], 4);
+      o.freeze();
+      organisms.add(o);
+    }
+    return organisms;
+  }
+
+  private static Set<String> readPairs(Path p) throws Exception {
+    Set<String> pairs = new HashSet<>();
+    for (String line : Files.readAllLines(p)) {
+      String[] names = line.substring(0, line.lastIndexOf(':')).split(" X ");
+      Arrays.sort(names);
+      pairs.add(names[0] + " " + names[1] + line.substring(line.lastIndexOf(':')));
+    }
+    return pairs;
+  }
+
+  @Test
+  void testAppendMatchesFullRun(@TempDir Path dir) throws Exception {
+    Path full = dir.resolve("full.txt");
+    Main.computeIntersectionsAndWriteOutput(full.toString(), smallOrganisms(), 0, 0.1f, new BlockedComparisonEngine(2));
+
+    // first two organisms, then append the rest in a different order
+    Path appended = dir.resolve("appended.txt");
+    List<Organism> organisms = smallOrganisms();
+    Main.computeIntersectionsAndWriteOutput(appended.toString(), organisms.subList(0, 2), 0, 0.1f, new BlockedComparisonEngine(2));
+    MatrixManifest manifest = new MatrixManifest(4, 0, 0.1f, "text", "average", MatrixManifest.namesOf(organisms.subList(0, 2)));
+    manifest.write(MatrixManifest.fileFor(appended.toString()));
+
+    MatrixManifest existing = MatrixManifest.read(MatrixManifest.fileFor(appended.toString()));
+    existing.checkCompatible(4, 0, 0.1f, "text", "average");
+    assertThrows(IllegalArgumentException.class, () -> existing.checkCompatible(5, 0, 0.1f, "text", "average"));
+
+    Collections.reverse(organisms);
+    int firstNew = existing.orderOldFirst(organisms);
+    assertEquals(2, firstNew);
+    assertEquals(Arrays.asList("org0", "org1", "org3", "org2"), MatrixManifest.namesOf(organisms));
+    Main.computeIntersectionsAndWriteOutput(appended.toString(), organisms, firstNew, 0.1f, new BlockedComparisonEngine(2));
+
+    assertFalse(readPairs(full).isEmpty());
+    assertEquals(readPairs(full), readPairs(appended));
+  }
+
+  @Test
+  void testManifestRecordsMetric(@TempDir Path dir) throws Exception {
+    File f = dir.resolve("out.txt.organisms").toFile();
+    new MatrixManifest(20, 0, 0.9f, "text", "containment", Arrays.asList("a", "b")).write(f);
+    MatrixManifest manifest = MatrixManifest.read(f);
+    assertEquals("containment", manifest.getMetric());
+    manifest.checkCompatible(20, 0, 0.9f, "text", "containment");
+    assertThrows(IllegalArgumentException.class, () -> manifest.checkCompatible(20, 0, 0.9f, "text", "average"));
+
+    // manifests from before --metric were always the average
+    Files.write(f.toPath(), Arrays.asList("kmer 20", "sketch-size 0", "threshold 0.9", "organism a", "organism b"));
+    assertEquals("average", MatrixManifest.read(f).getMetric());
+    assertEquals("text", MatrixManifest.read(f).getFormat());
+  }
+
+}
@@ -0,0 +1,127 @@
+package com.rpeck.karius;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestMetrics {
+
+  @Test
+  void testIngestCounters(@TempDir Path dir) throws Exception {
+    // two records of 30 and 12 bases, one with an N in it; k = 10
+    try (Writer out = new OutputStreamWriter(new GZIPOutputStream(
+            new FileOutputStream(dir.resolve("a.fna.gz").toFile())), StandardCharsets.UTF_8)) {
+      out.write(">NC_1 first\nACGTACGTACGTACGTACGTACGTACGTAC\n>NC_2 second\nACGTANGTACGT\n");
+    }
+
+    Metrics metrics = new Metrics();
+    FastaParser parser = new FastaParser(dir.toString());
+    parser.setMetrics(metrics);
+    List<Organism> organisms;
+    Metrics.Phase phase = metrics.phase(Metrics.INGEST);
+    try {
+      organisms = parser.parseAllFiles(false, 10, 0);
+    }
+    finally {
+      phase.close();
+    }
+    metrics.setOrganisms(organisms);
+
+    assertEquals(1, metrics.filesParsed());
+    assertEquals(0, metrics.filesLoaded());
+    assertEquals(42, metrics.bases());
+    assertEquals(21, metrics.kmers()); // 30 - 10 + 1, and none in the second record
+    assertTrue(metrics.getPhase(Metrics.INGEST).isDone());
+    assertTrue(metrics.heapPeak() > 0);
+
+    Organism o = organisms.get(0);
+    assertEquals(metrics.kmers(), o.totalKmers() + o.duplicateHashes());
+    String json = metrics.toJson();
+    assertTrue(json.contains("\"name\": \"" + o.getOrganism() + "\", \"kmers\": " + o.totalKmers() + ", \"duplicateHashes\": " + o.duplicateHashes()), json);
+    assertTrue(json.contains("\"bases\": 42"), json);
+  }
+
+  @Test
+  void testCompareCounters(@TempDir Path dir) throws Exception {
+    Random random = new Random(42);
+    List<Organism> organisms = new ArrayList<>();
+    for (int i = 0; i < 30; i++) {
+      long[] kmers = random.longs(200, 0, 1000).distinct().sorted().toArray();
+      organisms.add(Organism.fromKmers("org" + i, "v1", "desc", kmers, 0));
+    }
+
+    for (ComparisonEngine engine : new ComparisonEngine[] {new BlockedComparisonEngine(3), new InvertedIndexEngine(3)}) {
+      for (int firstNew : new int[] {0, 20}) {
+        Metrics metrics = new Metrics();
+        File output = dir.resolve("out.txt").toFile();
+        try (SimilarityMatrixWriter writer = SimilarityMatrixWriter.open(
+                "text", output, MatrixManifest.namesOf(organisms), false)) {
+          Main.computeIntersectionsAndWriteOutput(organisms, firstNew, 0.2f, engine, writer, metrics);
+        }
+
+        assertEquals(Metrics.pairsToCompare(30, firstNew), metrics.pairsTotal());
+        assertEquals(metrics.pairsTotal(), metrics.pairsCompared());
+        assertEquals(Files.readAllLines(output.toPath()).size(), metrics.pairsSimilar());
+        assertTrue(metrics.pairsSimilar() > 0);
+        assertTrue(metrics.getPhase(Metrics.COMPARE).isDone());
+      }
+    }
+
+    // each shard only counts its own share, and the shares add up
+    for (int firstNew : new int[] {0, 20}) {
+      long total = 0;
+      for (int shard = 0; shard < 3; shard++) {
+        BlockedComparisonEngine engine = new BlockedComparisonEngine(2);
+        engine.setShard(shard, 3);
+        Metrics metrics = new Metrics();
+        try (SimilarityMatrixWriter writer = SimilarityMatrixWriter.open(
+                "text", dir.resolve("shard.txt").toFile(), MatrixManifest.namesOf(organisms), false)) {
+          Main.computeIntersectionsAndWriteOutput(organisms, firstNew, 0.2f, engine, writer, metrics);
+        }
+        assertEquals(metrics.pairsTotal(), metrics.pairsCompared());
+        assertTrue(metrics.pairsTotal() < Metrics.pairsToCompare(30, firstNew));
+        total += metrics.pairsTotal();
+      }
+      assertEquals(Metrics.pairsToCompare(30, firstNew), total);
+    }
+  }
+
+  @Test
+  void testSummary(@TempDir Path dir) throws Exception {
+    Metrics metrics = new Metrics();
+    metrics.setOrganisms(Collections.singletonList(
+            Organism.fromKmers("quote\"d", "v1", "desc", new long[] {1, 2, 3}, 4)));
+    Metrics.Phase phase = metrics.phase(Metrics.COMPARE);
+    try {
+      metrics.setPairsTotal(10);
+      metrics.compared(4);
+      assertTrue(metrics.progress().contains("4 / 10 pairs"), metrics.progress());
+    }
+    finally {
+      phase.close();
+    }
+
+    File summary = dir.resolve("metrics.json").toFile();
+    metrics.writeSummary(summary);
+    String json = new String(Files.readAllBytes(summary.toPath()), StandardCharsets.UTF_8);
+    assertTrue(json.contains("\"name\": \"quote\\\"d\", \"kmers\": 3, \"duplicateHashes\": 4"), json);
+    assertTrue(json.contains("\"pairsCompared\": 4"), json);
+    assertTrue(json.contains("{\"name\": \"compare\", \"wallSeconds\": "), json);
+    assertEquals("0:01:01", Metrics.duration(61_000_000_000L));
+  }
+
+}
@@ -0,0 +1,49 @@
+package com.rpeck.karius;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestOrganism {
+
+  @Test
+  void testReverseComplementMatching() {
+    Organism forward = new Organism("fwd", "v1", "desc");
+    forward.addFragment("ACCGTTAGCATTGAC", 5);
+
+    // same sequence, read off the other strand:
+    Organism reverse = new Organism("rev", "v1", "desc");
+    reverse.addFragment("GTCAATGCTAACGGT", 5);
+
+    assertEquals(forward.totalKmers(), forward.intersectionCount(reverse));
+
+    // IUPAC codes break the window rather than being hashed:
+    Organism iupac = new Organism("iupac", "v1", "desc");
+    iupac.addFragment("ACCGTNTAGCA", 5);
+    assertEquals(2, iupac.totalKmers()); // ACCGT TAGCA
+  }
+
+  @Test
+  void testSketchSimilarity() throws Exception {
+    FastaFile ff1 = FastaParser.parseSingleFile(new File(TestMain.testFile1).toPath());
+    FastaFile ff2 = FastaParser.parseSingleFile(new File(TestMain.testFile2).toPath());
+
+    Organism exact1 = FastaParser.representOrganism(ff1, 20);
+    Organism exact2 = FastaParser.representOrganism(ff2, 20);
+    Organism sketch1 = FastaParser.representOrganism(ff1, 20, 2000);
+    Organism sketch2 = FastaParser.representOrganism(ff2, 20, 2000);
+    assertTrue(sketch1.isSketch());
+
+    assertEquals(1.0, sketch1.getSketch().jaccard(sketch1.getSketch()));
+    assertEquals(exact1.totalKmers(), sketch1.totalKmers(), 0.05 * exact1.totalKmers());
+
+    float exactAverage = (exact1.totalKmers() + exact2.totalKmers()) / 2.0f;
+    float exactSimilarity = exact1.intersectionCount(exact2) / exactAverage;
+    float sketchAverage = (sketch1.totalKmers() + sketch2.totalKmers()) / 2.0f;
+    float sketchSimilarity = sketch1.intersectionCount(sketch2) / sketchAverage;
+    assertEquals(exactSimilarity, sketchSimilarity, 0.05);
+  }
+
+}
@@ -0,0 +1,63 @@
+package com.rpeck.karius;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestOrganismIndex {
+
+  @Test
+  void testIndexRoundTrip(@TempDir Path indexDir) throws Exception {
+    Path source = new File(TestMain.testFile2).toPath();
+    OrganismIndex index = new OrganismIndex(indexDir.toFile());
+    assertNull(index.load(source, 20, 0));
+
+    Organism exact = FastaParser.representOrganism(FastaParser.parseSingleFile(source), 20);
+    index.store(source, 20, exact);
+    Organism loaded = index.load(source, 20, 0);
+    assertNotNull(loaded);
+    assertEquals(exact.getOrganism(), loaded.getOrganism());
+    assertEquals(exact.getVersion(), loaded.getVersion());
+    assertEquals(exact.getDescription(), loaded.getDescription());
+    assertEquals(exact.duplicateHashes(), loaded.duplicateHashes());
+    assertArrayEquals(exact.getKmers(), loaded.getKmers());
+
+    // the HyperLogLog is only made (and stored) for --prefilter
+    assertNull(exact.hllIfMade());
+    assertNull(loaded.hllIfMade());
+    exact.getHll();
+    index.store(source, 20, exact);
+    assertArrayEquals(exact.getHll().registers(), index.load(source, 20, 0).hllIfMade().registers());
+
+    // a different k or representation is a different entry:
+    assertNull(index.load(source, 21, 0));
+    assertNull(index.load(source, 20, 1000));
+
+    Organism sketch = FastaParser.representOrganism(FastaParser.parseSingleFile(source), 20, 1000);
+    index.store(source, 20, sketch);
+    Organism loadedSketch = index.load(source, 20, 1000);
+    assertTrue(loadedSketch.isSketch());
+    assertEquals(sketch.totalKmers(), loadedSketch.totalKmers());
+    assertEquals(sketch.intersectionCount(sketch), loadedSketch.intersectionCount(sketch));
+
+    // an entry without counts is a miss for the weighted metrics; one with them serves both
+    assertNull(index.load(source, 20, 0, true));
+    FastaStreamParser parser = new FastaStreamParser();
+    parser.setCounted(true);
+    Organism counted = parser.parse(source, 20, 0);
+    assertTrue(counted.isCounted());
+    index.store(source, 20, counted);
+    Organism loadedCounted = index.load(source, 20, 0, true);
+    assertNotNull(loadedCounted);
+    assertArrayEquals(counted.getKmers(), loadedCounted.getKmers());
+    assertArrayEquals(counted.getCounts(), loadedCounted.getCounts());
+    assertEquals(counted.totalCount(), loadedCounted.totalCount());
+    assertArrayEquals(exact.getKmers(), index.load(source, 20, 0).getKmers());
+    assertFalse(index.load(source, 20, 0).isCounted());
+  }
+
+}
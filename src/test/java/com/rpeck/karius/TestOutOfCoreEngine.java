@@ -0,0 +1,93 @@
+package com.rpeck.karius;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.LongStream;
+
+import static com.rpeck.karius.ComparisonFixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestOutOfCoreEngine {
+
+  @Test
+  void testSpillRoundTrip(@TempDir Path dir) throws Exception {
+    List<Organism> organisms = randomOrganisms(new Random(1), 5, 500, 1500);
+    // and one bigger than the I/O buffer
+    organisms.add(Organism.fromKmers("big", "v2", "big one", LongStream.range(0, 300_000).map(k -> k * 3).toArray(), 7));
+
+    try (OrganismSpill spill = new OrganismSpill(dir.toFile())) {
+      for (Organism o : organisms) {
+        Organism stub = spill.spill(o);
+        assertTrue(stub.isSpilled());
+        assertTrue(stub.isFrozen());
+        assertEquals(o.totalKmers(), stub.totalKmers());
+        assertEquals(o.duplicateHashes(), stub.duplicateHashes());
+        assertThrows(IllegalStateException.class, stub::getKmers);
+
+        Organism loaded = spill.load(stub);
+        assertFalse(loaded.isSpilled());
+        assertEquals(o.getOrganism(), loaded.getOrganism());
+        assertEquals(o.getDescription(), loaded.getDescription());
+        assertArrayEquals(o.getKmers(), loaded.getKmers());
+      }
+    }
+    assertEquals(0, dir.toFile().list().length); // deleted on close
+  }
+
+  @Test
+  void testChunkStarts() {
+    List<Organism> organisms = new ArrayList<>();
+    for (int size : new int[] {10, 10, 10, 50, 5, 5})
+      organisms.add(Organism.fromKmers("o", "v", "d", new long[size], 0));
+    Organism[] orgs = organisms.toArray(new Organism[0]);
+
+    assertArrayEquals(new int[] {0, 6}, OutOfCoreEngine.chunkStarts(orgs, 8 * 1000));
+    assertArrayEquals(new int[] {0, 2, 3, 4, 6}, OutOfCoreEngine.chunkStarts(orgs, 8 * 20));
+    assertArrayEquals(new int[] {0, 1, 2, 3, 4, 5, 6}, OutOfCoreEngine.chunkStarts(orgs, 1));
+    assertArrayEquals(new int[] {0}, OutOfCoreEngine.chunkStarts(new Organism[0], 8));
+  }
+
+  @Test
+  void testMatchesBlockedEngine(@TempDir Path dir) throws Exception {
+    List<Organism> organisms = randomOrganisms(new Random(42), 30, 500, 1500);
+    try (OrganismSpill spill = new OrganismSpill(dir.toFile())) {
+      List<Organism> stubs = new ArrayList<>();
+      for (Organism o : organisms)
+        stubs.add(spill.spill(o));
+
+      for (long budget : new long[] {1, 16 * 1024, 80 * 1024, 1L << 30}) {
+        for (int firstNew : new int[] {0, 13, 29, 30}) {
+          for (float threshold : new float[] {0.0f, 0.3f}) {
+            String message = "budget " + budget + ", firstNew " + firstNew + ", threshold " + threshold;
+            OutOfCoreEngine engine = new OutOfCoreEngine(3, budget, spill);
+            PairBuffer expected = new BlockedComparisonEngine(2).compare(organisms, firstNew, threshold);
+            assertSameResults(expected, engine.compare(stubs, firstNew, threshold), message);
+          }
+        }
+      }
+
+      // each column chunk is re-read once per row chunk before it
+      OutOfCoreEngine engine = new OutOfCoreEngine(1, 1, spill);
+      engine.compare(stubs, 0, 0.5f);
+      assertEquals(30 * 29 / 2 + 29, engine.chunksRead()); // 29 rows with a chunk of their own
+    }
+  }
+
+  @Test
+  void testEdgeCases(@TempDir Path dir) throws Exception {
+    try (OrganismSpill spill = new OrganismSpill(dir.toFile())) {
+      OutOfCoreEngine engine = new OutOfCoreEngine(2, 1024, spill);
+      assertEquals(0, engine.compare(new ArrayList<>(), 0, 0.5f).size());
+      Organism one = spill.spill(Organism.fromKmers("one", "v", "d", new long[] {1, 2, 3}, 0));
+      assertEquals(0, engine.compare(Collections.singletonList(one), 0, 0.5f).size());
+      assertThrows(IllegalArgumentException.class, () -> new OutOfCoreEngine(2, 0, spill));
+    }
+  }
+
+}
@@ -0,0 +1,112 @@
+package com.rpeck.karius;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class TestPackedGenomeStore {
+
+  // three records: IUPAC codes (one run of them spanning a record boundary), soft-masked
+  // bases, CRLF line endings, and an empty record
+  private static final String FASTA = ">NC_000001.1 Some organism, complete genome\n"
+          + "ACGTTGCAtgcaac\r\nGTNACGGTRYACGTACNN\n"
+          + ">NC_000002.1 Some organism plasmid\n"
+          + "NNTTTTGGGGCCCCA\n"
+          + ">NC_000003.1 Empty\n"
+          + ">NC_000004.1 Another plasmid\n"
+          + "CCCCGGGGAAATTTAAA\n";
+  private static final String BASES = "ACGTTGCATGCAACGTNACGGTNNACGTACNN" + "NNTTTTGGGGCCCCA" + "CCCCGGGGAAATTTAAA";
+
+  private static Path writeFasta(Path dir) throws Exception {
+    Path path = dir.resolve("GCF_000000001.1_Test_genomic.fna.gz");
+    try (OutputStream out = new GZIPOutputStream(new FileOutputStream(path.toFile()))) {
+      out.write(FASTA.getBytes(StandardCharsets.US_ASCII));
+    }
+    return path;
+  }
+
+  @Test
+  void testRoundTrip(@TempDir Path dir) throws Exception {
+    Path source = writeFasta(dir);
+    PackedGenomeStore store = new PackedGenomeStore(dir.resolve("packed").toFile());
+    assertNull(store.load(source));
+
+    FastaStreamParser parser = new FastaStreamParser();
+    parser.begin(source.getFileName().toString(), 0, 5, 0);
+    PackedGenomeStore.Writer writer = store.writer(source);
+    parser.packInto(writer);
+    byte[] bytes = FASTA.getBytes(StandardCharsets.US_ASCII);
+    for (int off = 0; off < bytes.length; off += 7)
+      parser.feed(bytes, off, Math.min(7, bytes.length - off));
+    writer.finish(parser.finish());
+
+    PackedGenome genome = store.load(source);
+    assertNotNull(genome);
+    assertEquals("GCF_000000001.1_Test", genome.getOrganism());
+    assertEquals("NC_000001.1", genome.getVersion());
+    assertEquals("Some organism, complete genome", genome.getDescription());
+    assertEquals(BASES.length(), genome.length());
+    assertEquals(4, genome.contigs());
+    assertEquals(3, genome.ambiguousRuns()); // N, RY and NN + NN
+    StringBuilder bases = new StringBuilder();
+    for (long i = 0; i < genome.length(); i++)
+      bases.append(genome.base(i));
+    assertEquals(BASES, bases.toString());
+
+    // the same k-mers as the FASTA, whatever k is
+    for (int k : new int[] {1, 3, 5, 13, 33}) {
+      Organism expected = new FastaStreamParser().parse(source, k, 0);
+      Organism packed = parser.parse(genome, k, 0);
+      assertEquals(expected.getOrganism(), packed.getOrganism());
+      assertArrayEquals(expected.getKmers(), packed.getKmers(), "k = " + k);
+      assertEquals(4, parser.records());
+      assertEquals(BASES.length(), parser.bases());
+    }
+
+    // a changed FASTA file is a miss
+    Files.setLastModifiedTime(source, FileTime.fromMillis(Files.getLastModifiedTime(source).toMillis() + 1000));
+    assertNull(store.load(source));
+  }
+
+  @Test
+  void testIngestionUsesPackedGenomes(@TempDir Path dir) throws Exception {
+    FastaParser fasta = new FastaParser("data");
+    List<Path> files = fasta.listFastaFiles();
+    assumeTrue(files.size() >= 3, "the genomes in data/ aren't there");
+
+    // the first run packs them...
+    File packedDir = dir.resolve("packed").toFile();
+    FastaParser parser = new FastaParser("data");
+    parser.setThreads(2);
+    parser.setPackedStore(new PackedGenomeStore(packedDir));
+    List<Organism> first = parser.parseAllFiles(false, 20, 0);
+    assertEquals(files.size(), packedDir.list().length);
+    for (File f : packedDir.listFiles())
+      assertTrue(f.getName().endsWith(PackedGenomeStore.SUFFIX), f.getName());
+
+    // ... and re-runs with any k read them rather than the FASTA
+    for (int k : new int[] {20, 21}) {
+      List<Organism> expected = k == 20 ? first : fasta.parseAllFiles(false, k, 0);
+      List<Organism> packed = parser.parseAllFiles(false, k, 0);
+      assertEquals(expected.size(), packed.size());
+      for (int i = 0; i < expected.size(); i++) {
+        assertEquals(expected.get(i).getOrganism(), packed.get(i).getOrganism());
+        assertEquals(expected.get(i).getDescription(), packed.get(i).getDescription());
+        assertArrayEquals(expected.get(i).getKmers(), packed.get(i).getKmers(), expected.get(i).getOrganism());
+      }
+    }
+  }
+
+}
@@ -0,0 +1,103 @@
+package com.rpeck.karius;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestResultSink {
+
+  // records what it's given, in order
+  private static class CollectingWriter implements SimilarityMatrixWriter {
+    final PairBuffer pairs = new PairBuffer();
+    int failAfter = Integer.MAX_VALUE;
+
+    @Override
+    public void write(int i, int j, float score) throws IOException {
+      if (pairs.size() == failAfter)
+        throw new IOException("disk full");
+      pairs.add(i, j, score);
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  @Test
+  void testOrdering() throws Exception {
+    // 4 threads racing through 200 batches of rows, each of which is 5 batches of
+    // columns, with more pairs in all than fit in a ring
+    int rows = 200;
+    int colBatches = 5;
+    int cols = 40;
+    CollectingWriter writer = new CollectingWriter();
+    try (ResultSink sink = new ResultSink(writer)) {
+      AtomicInteger next = new AtomicInteger();
+      List<Thread> threads = new ArrayList<>();
+      for (int t = 0; t < 4; t++) {
+        threads.add(new Thread(() -> {
+          for (int batch = next.getAndIncrement(); batch < rows * colBatches; batch = next.getAndIncrement()) {
+            ResultSink.Producer producer = sink.producer();
+            int i = batch / colBatches;
+            int firstCol = (batch % colBatches) * cols;
+            // backwards, to make sure the sink sorts each group
+            for (int j = firstCol + cols - 1; j >= firstCol; j--)
+              producer.add(i, rows + j, i + j);
+            producer.endBatch(batch, batch % colBatches == colBatches - 1);
+          }
+        }));
+      }
+      for (Thread t : threads)
+        t.start();
+      for (Thread t : threads)
+        t.join();
+    }
+
+    assertTrue(rows * colBatches * cols > ResultSink.RING_SIZE);
+    assertEquals(rows * colBatches * cols, writer.pairs.size());
+    int n = 0;
+    for (int i = 0; i < rows; i++) {
+      for (int j = 0; j < colBatches * cols; j++) {
+        assertEquals(i, writer.pairs.first(n));
+        assertEquals(rows + j, writer.pairs.second(n));
+        assertEquals((float) i + j, writer.pairs.score(n));
+        n++;
+      }
+    }
+  }
+
+  @Test
+  void testMissingBatch() {
+    ResultSink sink = new ResultSink(new CollectingWriter());
+    sink.producer().add(0, 1, 0.5f);
+    sink.producer().endBatch(1, true); // never ends batch 0
+    assertThrows(IOException.class, sink::close);
+  }
+
+  @Test
+  void testWriterFailure() {
+    CollectingWriter writer = new CollectingWriter();
+    writer.failAfter = 10;
+    ResultSink sink = new ResultSink(writer);
+
+    // the producer finds out once its ring fills up, rather than blocking forever
+    assertThrows(UncheckedIOException.class, () -> {
+      for (int batch = 0; ; batch++) {
+        sink.producer().add(batch, batch + 1, 1.0f);
+        sink.producer().endBatch(batch, true);
+      }
+    });
+    IOException e = assertThrows(IOException.class, sink::close);
+    assertEquals("disk full", e.getMessage());
+  }
+}
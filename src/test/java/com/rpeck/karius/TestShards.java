@@ -0,0 +1,104 @@
+package com.rpeck.karius;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static com.rpeck.karius.ComparisonFixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestShards {
+
+  @Test
+  void testParse() {
+    assertArrayEquals(new int[] {0, 1}, Shards.parse("0/1"));
+    assertArrayEquals(new int[] {3, 8}, Shards.parse("3/8"));
+    assertThrows(IllegalArgumentException.class, () -> Shards.parse("8/8"));
+    assertThrows(IllegalArgumentException.class, () -> Shards.parse("-1/8"));
+    assertThrows(IllegalArgumentException.class, () -> Shards.parse("3"));
+    assertThrows(NumberFormatException.class, () -> Shards.parse("a/b"));
+  }
+
+  @Test
+  void testShardsPartitionTheBlocks() {
+    int n = 101;
+    int b = 4;
+    List<Long> all = new ArrayList<>();
+    for (int rows = 0; rows < n; rows += b) {
+      for (int cols = rows; cols < n; cols += b)
+        all.add(((long) rows << 32) | cols);
+    }
+    long[] blocks = all.stream().mapToLong(Long::longValue).toArray();
+
+    for (int shards : new int[] {1, 2, 5, 16}) {
+      List<Long> together = new ArrayList<>();
+      for (int shard = 0; shard < shards; shard++) {
+        BlockedComparisonEngine engine = new BlockedComparisonEngine(1);
+        engine.setShard(shard, shards);
+        long[] mine = engine.shardOf(blocks, b, n, 0);
+
+        long pairs = 0;
+        for (long block : mine) {
+          together.add(block);
+          int firstRow = (int) (block >>> 32);
+          int firstCol = (int) block;
+          for (int i = firstRow; i < Math.min(n, firstRow + b); i++)
+            pairs += Math.max(0, Math.min(n, firstCol + b) - Math.max(i + 1, firstCol));
+        }
+        // within a block's worth of pairs of an even share
+        assertEquals(n * (n - 1) / 2.0 / shards, pairs, b * b, shards + " shards");
+      }
+      assertEquals(all, together, shards + " shards");
+    }
+  }
+
+  @Test
+  void testMergeMatchesFullRun(@TempDir Path dir) throws Exception {
+    List<Organism> organisms = randomOrganisms(new Random(7), 25);
+    List<String> names = MatrixManifest.namesOf(organisms);
+    float threshold = 0.2f;
+
+    BlockedComparisonEngine unsharded = new BlockedComparisonEngine(2);
+    unsharded.setBlockSize(3);
+    File full = dir.resolve("full.txt").toFile();
+    Main.computeIntersectionsAndWriteOutput(full.getPath(), organisms, 0, threshold, unsharded);
+    List<String> expected = Files.readAllLines(full.toPath());
+    assertTrue(expected.size() > 10);
+
+    for (int shards : new int[] {1, 3, 7}) {
+      String output = dir.resolve("sharded-" + shards + ".txt").toString();
+      assertEquals(shards, Shards.missing(output, shards).size());
+
+      for (int shard = 0; shard < shards; shard++) {
+        BlockedComparisonEngine engine = new BlockedComparisonEngine(2);
+        engine.setBlockSize(3);
+        engine.setShard(shard, shards);
+        File f = Shards.shardFile(output, shard, shards);
+        try (SimilarityMatrixWriter writer = SimilarityMatrixWriter.open("binary", f, names, false)) {
+          Main.computeIntersectionsAndWriteOutput(organisms, 0, threshold, engine, writer, null);
+        }
+        new MatrixManifest(20, 0, threshold, "binary", "average", names).write(MatrixManifest.fileFor(f.getPath()));
+
+        if (shard == shards - 1)
+          assertThrows(IllegalArgumentException.class, () -> Shards.merge(output, shards, "text", null));
+        Shards.markDone(f);
+      }
+      assertTrue(Shards.missing(output, shards).isEmpty());
+
+      assertEquals(expected.size(), Shards.merge(output, shards, "text", null));
+      assertEquals(expected, Files.readAllLines(new File(output).toPath()), shards + " shards");
+      assertEquals(names, MatrixManifest.read(MatrixManifest.fileFor(output)).getOrganisms());
+
+      // a re-run of a shard starts by forgetting it was done
+      Shards.clearDone(Shards.shardFile(output, 0, shards));
+      assertEquals(1, Shards.missing(output, shards).size());
+    }
+  }
+
+}
@@ -0,0 +1,159 @@
+package com.rpeck.karius;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestSimilarityMatrix {
+
+  private static List<String> names(int n) {
+    List<String> names = new ArrayList<>();
+    for (int i = 0; i < n; i++)
+      names.add("GCF_" + i + "_ASM" + i + "v1");
+    return names;
+  }
+
+  // random pairs, in (i, j) order like Main writes them
+  private static PairBuffer randomPairs(Random random, int n, int firstNew) {
+    PairBuffer pairs = new PairBuffer();
+    for (int i = 0; i < n; i++) {
+      for (int j = Math.max(i + 1, firstNew); j < n; j++) {
+        if (random.nextInt(4) == 0)
+          pairs.add(i, j, random.nextFloat());
+      }
+    }
+    return pairs;
+  }
+
+  // the expected rows, the slow, obvious way
+  private static Map<Integer, TreeMap<Integer, Float>> rowsOf(PairBuffer... buffers) {
+    Map<Integer, TreeMap<Integer, Float>> rows = new HashMap<>();
+    for (PairBuffer pairs : buffers) {
+      for (int n = 0; n < pairs.size(); n++) {
+        rows.computeIfAbsent(pairs.first(n), k -> new TreeMap<>()).put(pairs.second(n), pairs.score(n));
+        rows.computeIfAbsent(pairs.second(n), k -> new TreeMap<>()).put(pairs.first(n), pairs.score(n));
+      }
+    }
+    return rows;
+  }
+
+  private static void assertRows(Map<Integer, TreeMap<Integer, Float>> expected, SimilarityMatrixReader reader) {
+    for (int i = 0; i < reader.organismCount(); i++) {
+      TreeMap<Integer, Float> expectedRow = expected.getOrDefault(i, new TreeMap<>());
+      SimilarityMatrixReader.Row row = reader.row(i);
+      assertEquals(expectedRow.size(), row.size(), "row " + i);
+      int k = 0;
+      for (Map.Entry<Integer, Float> e : expectedRow.entrySet()) {
+        assertEquals((int) e.getKey(), row.neighbor(k), "row " + i);
+        assertEquals((float) e.getValue(), row.score(k), "row " + i);
+        assertEquals((float) e.getValue(), reader.score(i, e.getKey()));
+        k++;
+      }
+      for (int j = 0; j < reader.organismCount(); j++) {
+        if (! expectedRow.containsKey(j))
+          assertTrue(Float.isNaN(reader.score(i, j)));
+      }
+    }
+  }
+
+  @Test
+  void testRoundTrip(@TempDir Path tmp) throws Exception {
+    File f = tmp.resolve("matrix.bin").toFile();
+    List<String> names = names(30);
+    PairBuffer pairs = randomPairs(new Random(42), names.size(), 0);
+    try (SimilarityMatrixWriter writer = SimilarityMatrixWriter.open("binary", f, names, false)) {
+      writer.writeAll(pairs);
+    }
+
+    try (SimilarityMatrixReader reader = SimilarityMatrixReader.open(f)) {
+      assertTrue(reader.isFinalized());
+      assertEquals(names.size(), reader.organismCount());
+      assertEquals(pairs.size(), reader.pairCount());
+      assertEquals("GCF_7_ASM7v1", reader.organism(7));
+      assertEquals(7, reader.indexOf("GCF_7_ASM7v1"));
+      assertEquals(-1, reader.indexOf("nope"));
+      assertRows(rowsOf(pairs), reader);
+    }
+
+    // smaller than the text output, even with a CSR copy of each pair in both directions
+    File text = tmp.resolve("matrix.txt").toFile();
+    try (SimilarityMatrixWriter writer = SimilarityMatrixWriter.open("text", text, names, false)) {
+      writer.writeAll(pairs);
+    }
+    assertTrue(f.length() < text.length());
+  }
+
+  @Test
+  void testUnfinalized(@TempDir Path tmp) throws Exception {
+    File f = tmp.resolve("matrix.bin").toFile();
+    List<String> names = names(20);
+    PairBuffer pairs = randomPairs(new Random(1), names.size(), 0);
+    try (SimilarityMatrixWriter writer = SimilarityMatrixWriter.open("binary", f, names, false)) {
+      writer.writeAll(pairs);
+    }
+
+    // what a run which died before closing its writer would leave behind: no CSR, no
+    // pair count, and half a record
+    long csrOffset;
+    try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+      raf.seek(32);
+      csrOffset = raf.readLong();
+      raf.seek(8);
+      raf.writeInt(0);
+      raf.seek(24);
+      raf.writeLong(0);
+      raf.seek(32);
+      raf.writeLong(0);
+      raf.setLength(csrOffset);
+    }
+
+    try (SimilarityMatrixReader reader = SimilarityMatrixReader.open(f)) {
+      assertFalse(reader.isFinalized());
+      assertEquals(pairs.size(), reader.pairCount());
+      assertRows(rowsOf(pairs), reader);
+    }
+  }
+
+  @Test
+  void testAppend(@TempDir Path tmp) throws Exception {
+    File f = tmp.resolve("matrix.bin").toFile();
+    List<String> names = names(25);
+    Random random = new Random(7);
+    PairBuffer old = randomPairs(random, 15, 0);
+    try (SimilarityMatrixWriter writer = SimilarityMatrixWriter.open("binary", f, names.subList(0, 15), false)) {
+      writer.writeAll(old);
+    }
+
+    PairBuffer added = randomPairs(random, names.size(), 15);
+    try (SimilarityMatrixWriter writer = SimilarityMatrixWriter.open("binary", f, names, true)) {
+      writer.writeAll(added);
+    }
+
+    try (SimilarityMatrixReader reader = SimilarityMatrixReader.open(f)) {
+      assertTrue(reader.isFinalized());
+      assertEquals(names.size(), reader.organismCount());
+      assertEquals(old.size() + added.size(), reader.pairCount());
+      assertRows(rowsOf(old, added), reader);
+    }
+
+    // the existing organisms have to come first, in order
+    List<String> shuffled = new ArrayList<>(names);
+    Collections.swap(shuffled, 0, 1);
+    assertThrows(java.io.IOException.class, () -> SimilarityMatrixWriter.open("binary", f, shuffled, true));
+  }
+
+  @Test
+  void testNotAMatrix(@TempDir Path tmp) throws Exception {
+    File f = tmp.resolve("matrix.txt").toFile();
+    try (SimilarityMatrixWriter writer = SimilarityMatrixWriter.open("text", f, names(3), false)) {
+      writer.write(0, 2, 0.5f);
+    }
+    assertThrows(java.io.IOException.class, () -> SimilarityMatrixReader.open(f));
+  }
+}
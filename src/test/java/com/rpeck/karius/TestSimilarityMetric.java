@@ -0,0 +1,191 @@
+package com.rpeck.karius;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestSimilarityMetric {
+
+  @Test
+  void testScores() {
+    // |A| = 100, |B| = 400, |A & B| = 80
+    assertEquals(80 / 250.0f, SimilarityMetric.AVERAGE.score(100, 400, 80));
+    assertEquals(0.8f, SimilarityMetric.CONTAINMENT.score(100, 400, 80));
+    assertEquals(0.8f, SimilarityMetric.CONTAINMENT.score(400, 100, 80));
+    assertEquals(0.2f, SimilarityMetric.MIN_CONTAINMENT.score(100, 400, 80));
+    assertEquals(80 / 420.0f, SimilarityMetric.JACCARD.score(100, 400, 80));
+
+    // Mash: -ln(2J / (1 + J)) / k
+    SimilarityMetric mash = SimilarityMetric.forName("mash", 21);
+    double jaccard = 80 / 420.0;
+    assertEquals((float) (-Math.log(2 * jaccard / (1 + jaccard)) / 21), mash.score(100, 400, 80), 1e-6f);
+    assertEquals(0.0f, mash.score(100, 100, 100));
+
+    // the Organism forms score by the Organisms' sizes
+    Organism a = Organism.fromKmers("a", "v1", "desc", new long[] {1, 2, 3, 4}, 0);
+    Organism b = Organism.fromKmers("b", "v1", "desc", new long[] {3, 4}, 0);
+    assertEquals(2 / 3.0f, SimilarityMetric.AVERAGE.score(a, b, 2));
+    assertEquals(1.0f, SimilarityMetric.CONTAINMENT.score(a, b, 2));
+  }
+
+  @Test
+  void testIsSimilar() {
+    assertTrue(SimilarityMetric.CONTAINMENT.isSimilar(100, 400, 80, 0.75f));
+    assertFalse(SimilarityMetric.AVERAGE.isSimilar(100, 400, 80, 0.75f));
+    assertFalse(SimilarityMetric.CONTAINMENT.isSimilar(100, 400, 80, 0.8f)); // strictly more
+
+    // a distance: similar if it's below the threshold, and never if nothing is shared
+    SimilarityMetric mash = SimilarityMetric.forName("mash", 21);
+    assertTrue(mash.isSimilar(100, 100, 100, 0.05f));
+    assertFalse(mash.isSimilar(100, 100, 1, 0.05f));
+    assertFalse(mash.isSimilar(100, 100, 0, Float.MAX_VALUE));
+
+    // empty organisms are never similar to anything
+    for (String name : new String[] {"average", "containment", "min-containment", "jaccard", "mash"})
+      assertFalse(SimilarityMetric.forName(name, 21).isSimilar(0, 0, 0, 0.0f), name);
+
+    assertThrows(IllegalArgumentException.class, () -> SimilarityMetric.forName("euclidean", 21));
+  }
+
+  @Test
+  void testEnginesAgree() {
+    Random random = new Random(11);
+    List<Organism> organisms = new ArrayList<>();
+    for (int n = 0; n < 30; n++) {
+      // a pool of k-mers, and genomes of very different sizes drawn from it
+      Organism o = new Organism("org" + n, "v1", "desc", 0, 0, false);
+      int size = 200 + random.nextInt(3000);
+      for (int k = 0; k < size; k++)
+        o.addKmer(random.nextInt(4000));
+      o.freeze();
+      organisms.add(o);
+    }
+
+    for (String name : new String[] {"average", "containment", "min-containment", "jaccard", "mash"}) {
+      SimilarityMetric metric = SimilarityMetric.forName(name, 21);
+      float threshold = name.equals("mash") ? 0.05f : 0.5f;
+
+      BlockedComparisonEngine blocked = new BlockedComparisonEngine(2);
+      blocked.setBlockSize(4);
+      blocked.setMetric(metric);
+      PairBuffer expected = blocked.compare(organisms, 0, threshold);
+
+      // check the blocked engine against the definition
+      int n = 0;
+      for (int i = 0; i < organisms.size(); i++) {
+        for (int j = i + 1; j < organisms.size(); j++) {
+          Organism first = organisms.get(i);
+          Organism second = organisms.get(j);
+          int intersection = first.intersectionCount(second);
+          if (metric.isSimilar(first, second, intersection, threshold)) {
+            assertEquals(i, expected.first(n), name);
+            assertEquals(j, expected.second(n), name);
+            assertEquals(metric.score(first, second, intersection), expected.score(n), name);
+            n++;
+          }
+        }
+      }
+      assertEquals(n, expected.size(), name);
+
+      InvertedIndexEngine inverted = new InvertedIndexEngine(2);
+      inverted.setMetric(metric);
+      OutOfCoreEngine outOfCore = new OutOfCoreEngine(2, 8L * 4000 * 3, null);
+      outOfCore.setMetric(metric);
+      for (ComparisonEngine engine : Arrays.asList(inverted, outOfCore)) {
+        PairBuffer actual = engine.compare(organisms, 0, threshold);
+        assertEquals(expected.size(), actual.size(), name);
+        for (int k = 0; k < expected.size(); k++) {
+          assertEquals(expected.first(k), actual.first(k), name);
+          assertEquals(expected.second(k), actual.second(k), name);
+          assertEquals(expected.score(k), actual.score(k), name);
+        }
+      }
+    }
+  }
+
+  @Test
+  void testWeightedMetrics() {
+    // A = {1: 3, 2: 1, 3: 2}, B = {2: 4, 3: 2, 4: 1}
+    Organism a = Organism.fromKmers("a", "v1", "desc", new long[] {1, 2, 3}, 0, null, new short[] {3, 1, 2});
+    Organism b = Organism.fromKmers("b", "v1", "desc", new long[] {2, 3, 4}, 0, null, new short[] {4, 2, 1});
+    assertEquals(6, a.totalCount());
+    assertEquals(3, a.minCountSum(b));
+    assertEquals(8, a.countDotProduct(b));
+    assertEquals(3 / 10.0f, SimilarityMetric.WEIGHTED_JACCARD.weightedScore(a, b));
+    assertEquals((float) (8 / Math.sqrt(14 * 21)), SimilarityMetric.COSINE.weightedScore(a, b), 1e-6f);
+    assertEquals(1.0f, SimilarityMetric.COSINE.weightedScore(a, a), 1e-6f);
+
+    // with every count 1 they're the unweighted metrics
+    Organism c = Organism.fromKmers("c", "v1", "desc", new long[] {1, 2, 3}, 0, null, new short[] {1, 1, 1});
+    Organism d = Organism.fromKmers("d", "v1", "desc", new long[] {2, 3, 4}, 0, null, new short[] {1, 1, 1});
+    assertEquals(SimilarityMetric.JACCARD.score(c, d, 2), SimilarityMetric.WEIGHTED_JACCARD.weightedScore(c, d));
+    assertEquals(2 / 3.0f, SimilarityMetric.COSINE.weightedScore(c, d), 1e-6f);
+
+    // and they need counts
+    Organism uncounted = Organism.fromKmers("e", "v1", "desc", new long[] {1, 2}, 0);
+    assertThrows(IllegalStateException.class, () -> SimilarityMetric.COSINE.weightedScore(a, uncounted));
+    assertThrows(IllegalArgumentException.class, () -> new InvertedIndexEngine(1).setMetric(SimilarityMetric.COSINE));
+  }
+
+  @Test
+  void testWeightedMatchesNestedLoop() {
+    // genomes with repeats, so that the counts differ from k-mer to k-mer
+    Random random = new Random(23);
+    List<Organism> organisms = new ArrayList<>();
+    for (int n = 0; n < 20; n++) {
+      Organism o = new Organism("org" + n, "v1", "desc", 0, 0, true);
+      int size = 200 + random.nextInt(3000);
+      for (int k = 0; k < size; k++)
+        o.addKmer(random.nextInt(1500));
+      o.freeze();
+      organisms.add(o);
+    }
+    assertTrue(organisms.get(0).isCounted());
+
+    for (SimilarityMetric metric : new SimilarityMetric[] {SimilarityMetric.WEIGHTED_JACCARD, SimilarityMetric.COSINE}) {
+      BlockedComparisonEngine blocked = new BlockedComparisonEngine(2);
+      blocked.setBlockSize(3);
+      blocked.setMetric(metric);
+      PairBuffer actual = blocked.compare(organisms, 0, 0.3f);
+
+      int n = 0;
+      for (int i = 0; i < organisms.size(); i++) {
+        for (int j = i + 1; j < organisms.size(); j++) {
+          Organism first = organisms.get(i);
+          Organism second = organisms.get(j);
+          long min = 0;
+          long max = 0;
+          long dot = 0;
+          for (long kmer = 0; kmer < 1500; kmer++) {
+            int ci = countOf(first, kmer);
+            int cj = countOf(second, kmer);
+            min += Math.min(ci, cj);
+            max += Math.max(ci, cj);
+            dot += (long) ci * cj;
+          }
+          float expected = metric == SimilarityMetric.COSINE
+                  ? (float) (dot / (first.countNorm() * second.countNorm())) : (float) min / max;
+          if (expected > 0.3f) {
+            assertEquals(i, actual.first(n), metric.name());
+            assertEquals(j, actual.second(n), metric.name());
+            assertEquals(expected, actual.score(n), 1e-5f, metric.name());
+            n++;
+          }
+        }
+      }
+      assertTrue(n > 0, metric.name());
+      assertEquals(n, actual.size(), metric.name());
+    }
+  }
+
+  private static int countOf(Organism o, long kmer) {
+    int i = Arrays.binarySearch(o.getKmers(), kmer);
+    return i < 0 ? 0 : o.getCounts()[i] & 0xffff;
+  }
+
+}
@@ -0,0 +1,111 @@
+package com.rpeck.karius;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestSortedLongArrays {
+
+  private static long[] randomSorted(Random random, int size, long range) {
+    return LongStream.generate(() -> (long) (random.nextDouble() * range) - range / 2)
+            .limit(size).distinct().sorted().toArray();
+  }
+
+  // the slow, obvious way
+  private static int naiveCount(long[] a, long[] b) {
+    int count = 0;
+    for (long x : a) {
+      for (long y : b) {
+        if (x == y)
+          count++;
+      }
+    }
+    return count;
+  }
+
+  @Test
+  void testCountKernels() {
+    Random random = new Random(5);
+    for (int trial = 0; trial < 50; trial++) {
+      long[] a = randomSorted(random, random.nextInt(300), 500);
+      long[] b = randomSorted(random, random.nextInt(300), 500);
+      short[] ca = new short[a.length];
+      short[] cb = new short[b.length];
+      for (int i = 0; i < a.length; i++)
+        ca[i] = (short) (1 + random.nextInt(LongHashSet.MAX_COUNT)); // the high ones are negative shorts
+      for (int i = 0; i < b.length; i++)
+        cb[i] = (short) (1 + random.nextInt(LongHashSet.MAX_COUNT));
+
+      long min = 0;
+      long dot = 0;
+      for (int i = 0; i < a.length; i++) {
+        for (int j = 0; j < b.length; j++) {
+          if (a[i] == b[j]) {
+            min += Math.min(ca[i] & 0xffff, cb[j] & 0xffff);
+            dot += (long) (ca[i] & 0xffff) * (cb[j] & 0xffff);
+          }
+        }
+      }
+      assertEquals(min, SortedLongArrays.minCountSum(a, ca, b, cb));
+      assertEquals(dot, SortedLongArrays.countDotProduct(a, ca, b, cb));
+    }
+  }
+
+  @Test
+  void testEdgeCases() {
+    long[] empty = new long[0];
+    long[] some = {-5, 0, 3, 9};
+    assertEquals(0, SortedLongArrays.intersectionCount(empty, some));
+    assertEquals(0, SortedLongArrays.intersectionCount(some, empty));
+    assertEquals(4, SortedLongArrays.intersectionCount(some, some));
+    assertEquals(4, SortedLongArrays.gallopCount(some, some));
+    assertEquals(1, SortedLongArrays.gallopCount(new long[] {9}, some));
+    assertEquals(0, SortedLongArrays.gallopCount(new long[] {10}, some));
+    assertEquals(0, SortedLongArrays.gallopCount(new long[] {-6}, some));
+  }
+
+  @Test
+  void testKernelsAgree() {
+    Random random = new Random(3);
+    for (int[] sizes : new int[][] {{10, 10}, {100, 1000}, {5, 5000}, {1000, 100}, {1, 20000}}) {
+      for (long range : new long[] {1000, 100000, Long.MAX_VALUE}) {
+        long[] a = randomSorted(random, sizes[0], range);
+        long[] b = randomSorted(random, sizes[1], range);
+        int expected = naiveCount(a, b);
+        assertEquals(expected, SortedLongArrays.mergeCount(a, b));
+        assertEquals(expected, SortedLongArrays.gallopCount(a, b));
+        assertEquals(expected, SortedLongArrays.gallopCount(b, a));
+        assertEquals(expected, SortedLongArrays.intersectionCount(a, b));
+        assertEquals(expected, SortedLongArrays.intersectionCount(b, a));
+      }
+    }
+  }
+
+  @Test
+  void testAtLeast() {
+    Random random = new Random(5);
+    for (int[] sizes : new int[][] {{10, 10}, {100, 1000}, {5, 5000}, {1000, 100}, {1, 20000}}) {
+      for (long range : new long[] {1000, 100000}) {
+        long[] a = randomSorted(random, sizes[0], range);
+        long[] b = randomSorted(random, sizes[1], range);
+        int expected = naiveCount(a, b);
+        for (int required = 0; required <= Math.min(a.length, b.length) + 1; required++) {
+          String message = a.length + " x " + b.length + ", " + expected + " shared, " + required + " required";
+          for (int actual : new int[] {SortedLongArrays.intersectionCountAtLeast(a, b, required),
+                                       SortedLongArrays.intersectionCountAtLeast(b, a, required),
+                                       SortedLongArrays.mergeCountAtLeast(a, b, required),
+                                       SortedLongArrays.gallopCountAtLeast(a, b, required)}) {
+            // exact if it's enough, otherwise anything which is clearly not enough
+            if (expected >= required)
+              assertEquals(expected, actual, message);
+            else
+              assertTrue(actual < required && actual <= expected, message);
+          }
+        }
+      }
+    }
+  }
+}
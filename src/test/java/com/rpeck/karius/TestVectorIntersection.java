@@ -0,0 +1,84 @@
+package com.rpeck.karius;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * The SIMD kernel against the scalar merge. These only run where the kernel loads: JDK
+ * 16+, with src/vector on the classpath and --add-modules jdk.incubator.vector (which
+ * build.gradle passes to the tests).
+ */
+class TestVectorIntersection {
+
+  private static IntersectionKernel kernel() {
+    IntersectionKernel kernel = SortedLongArrays.vectorKernel();
+    assumeTrue(kernel != null, "jdk.incubator.vector isn't available");
+    return kernel;
+  }
+
+  private static long[] randomSorted(Random random, int size, long range) {
+    return LongStream.generate(() -> (long) (random.nextDouble() * range) - range / 2)
+            .limit(size).distinct().sorted().toArray();
+  }
+
+  @Test
+  void testMatchesScalarOnRandomArrays() {
+    IntersectionKernel kernel = kernel();
+    Random random = new Random(17);
+    // sizes around the block size, so the tails and the all-equal blocks get exercised
+    for (int sizeA : new int[] {0, 1, 3, 4, 7, 8, 9, 16, 100, 1000}) {
+      for (int sizeB : new int[] {0, 2, 4, 5, 8, 15, 64, 1000}) {
+        for (long range : new long[] {20, 2000, Long.MAX_VALUE}) {
+          long[] a = randomSorted(random, sizeA, range);
+          long[] b = randomSorted(random, sizeB, range);
+          int expected = SortedLongArrays.mergeCount(a, b);
+          String message = a.length + " x " + b.length + " in " + range;
+          assertEquals(expected, kernel.mergeCount(a, b), message);
+          assertEquals(expected, kernel.mergeCount(b, a), message);
+          for (int required : new int[] {1, expected, expected + 1, Math.min(a.length, b.length)}) {
+            int actual = kernel.mergeCountAtLeast(a, b, required);
+            if (expected >= required)
+              assertEquals(expected, actual, message + ", " + required + " required");
+            else
+              assertTrue(actual < required, message + ", " + required + " required");
+          }
+        }
+      }
+    }
+    long[] same = randomSorted(random, 1003, 1 << 20);
+    assertEquals(same.length, kernel.mergeCount(same, same));
+  }
+
+  @Test
+  void testMatchesScalarOnGenomes() throws Exception {
+    IntersectionKernel kernel = kernel();
+    List<Path> files = new FastaParser("data").listFastaFiles();
+    assumeTrue(files.size() >= 3, "the genomes in data/ aren't there");
+
+    List<long[]> genomes = new ArrayList<>();
+    for (Path path : files.subList(0, 3))
+      genomes.add(FastaParser.representOrganism(FastaParser.parseSingleFile(path), 20).getKmers());
+    genomes.add(FastaParser.representOrganism(FastaParser.parseSingleFile(new File("data",
+            "GCF_000018125.1_ASM1812v1_genomic.fna.gz").toPath()), 20).getKmers());
+
+    for (int x = 0; x < genomes.size(); x++) {
+      for (int y = x; y < genomes.size(); y++) {
+        long[] a = genomes.get(x);
+        long[] b = genomes.get(y);
+        int expected = SortedLongArrays.mergeCount(a, b);
+        assertEquals(expected, kernel.mergeCount(a, b), "genomes " + x + " and " + y);
+        assertEquals(expected, kernel.mergeCountAtLeast(a, b, expected), "genomes " + x + " and " + y);
+      }
+    }
+  }
+
+}
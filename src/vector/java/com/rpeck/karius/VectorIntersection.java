@@ -0,0 +1,84 @@
+package com.rpeck.karius;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Sorted-array intersection with the (incubating) Vector API, for JDK 16+ run with
+ * <code>--add-modules jdk.incubator.vector</code>. This is the only class in src/vector,
+ * which is compiled separately from src/main so that the rest of the code still builds
+ * and runs on Java 8; SortedLongArrays loads it by name if it's there and the module is
+ * resolvable, and otherwise sticks to its scalar merge.<p>
+ *
+ * The scalar merge does one compare and one unpredictable branch per element. Here both
+ * arrays are instead walked in blocks of as many longs as fit in a vector register (4
+ * with AVX2, 8 with AVX-512), and each pair of blocks is compared all-against-all: a
+ * block of <code>a</code> is loaded into a vector, compared for equality with each
+ * element of the block of <code>b</code> broadcast across the lanes, and the OR of the
+ * masks has a bit set for each element of the <code>a</code> block which is in the
+ * <code>b</code> block. Then whichever block ends with the smaller value is done and is
+ * replaced by the next one, as in the scalar merge (both, if they end with the same
+ * value). Nothing is counted twice, since no pair of blocks is ever compared twice, and
+ * nothing is missed: a block is only dropped once everything after it in the other
+ * array is bigger than its last element. That's lanes^2 comparisons per 2 * lanes
+ * elements, but they're lanes-wide, and there's one branch per block rather than per
+ * element. The tails which don't fill a block are merged the scalar way.
+ */
+final class VectorIntersection implements IntersectionKernel {
+  private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+
+  VectorIntersection() {
+    if (SPECIES.length() < 2)
+      throw new UnsupportedOperationException("No SIMD registers for longs: " + SPECIES);
+  }
+
+  @Override
+  public int mergeCount(long[] a, long[] b) {
+    return mergeCountAtLeast(a, b, 0);
+  }
+
+  @Override
+  public int mergeCountAtLeast(long[] a, long[] b, int required) {
+    int lanes = SPECIES.length();
+    int count = 0;
+    int i = 0;
+    int j = 0;
+    while (i + lanes <= a.length && j + lanes <= b.length) {
+      LongVector block = LongVector.fromArray(SPECIES, a, i);
+      VectorMask<Long> found = block.eq(b[j]);
+      for (int k = 1; k < lanes; k++)
+        found = found.or(block.eq(b[j + k]));
+      count += found.trueCount();
+
+      long lastA = a[i + lanes - 1];
+      long lastB = b[j + lanes - 1];
+      if (lastA <= lastB)
+        i += lanes;
+      if (lastB <= lastA)
+        j += lanes;
+      // an upper bound on the final count: the matches still to be found are all in
+      // a[i..] and b[j..] (that may include some from the current blocks already counted)
+      if (count + Math.min(a.length - i, b.length - j) < required)
+        return count;
+    }
+
+    // the tails: any match already counted has its a element before i or its b element
+    // before j, so none of them are counted again
+    while (i < a.length && j < b.length) {
+      long x = a[i];
+      long y = b[j];
+      if (x < y) {
+        i++;
+      } else if (x > y) {
+        j++;
+      } else {
+        count++;
+        i++;
+        j++;
+      }
+    }
+    return count;
+  }
+
+}